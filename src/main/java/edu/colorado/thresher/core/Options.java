@@ -51,6 +51,12 @@ public class Options {
 
   @boolOpt(description = "Use control-feasibility information for more precise jumps", _default = false)
   public static boolean CONTROL_FEASIBILITY = false;
+
+  @boolOpt(description = "Use call graph reachability (up and down sets) to decide where to jump. Off means jumping is flow-insensitive interprocedurally", _default = false)
+  public static boolean USE_REACHABILITY_INFO = false;
+
+  @boolOpt(description = "Compute the library/application frontier of all application methods, in parallel, before answering any queries", _default = false)
+  public static boolean PRECOMPUTE_CONTROL_FEASIBILITY = false;
   
   @boolOpt(description = "(under development)", _default = false)
   public static boolean SYNTHESIS = false;
@@ -76,6 +82,9 @@ public class Options {
   @boolOpt(description = "Check divison by zero", _default = false)
   public static boolean CHECK_DIV_BY_ZERO = false;
 
+  @boolOpt(description = "Run the unit tests of solvers, indices, and data structures (with -regressions)", _default = false)
+  public static boolean UNIT_TESTS = false;
+
   // should we use Manu's demand cast checker to easily prove the safety of casts requiring context-sensitivity?
   @boolOpt(description = "Filter cast checking results using demand cast checker", _default = false)
   public static boolean USE_DEMAND_CAST_CHECKER = false;
@@ -105,6 +114,54 @@ public class Options {
   @boolOpt(description = "Processs queries in parallel. Still an experimental feature", _default = false)
   public static boolean PARALLEL = false;
 
+  @intOpt(description = "Number of worker threads to use when processing queries in parallel. -1 means one per core", _default = -1)
+  public static int NUM_THREADS = -1;
+
+  @intOpt(description = "Number of worker threads exploring the paths of a single query. 1 means sequential exploration; -1 means one per core", _default = 1)
+  public static int PATH_THREADS = 1;
+
+  @stringOpt(description = "Run a benchmark on the regression programs instead of the regression tests (with -regressions). scaling measures how the throughput of checking derefs in parallel scales from 1 thread to one per core; allocation compares the memory allocated with and without persistent_constraints", _default = "")
+  public static String BENCHMARK = "";
+
+  @stringOpt(description = "Order in which the executor explores paths: dfs, bfs, fewest-constraints, closest-to-entry, or cost (jumping execution only)", _default = "dfs")
+  public static String PATH_SCHEDULER = "dfs";
+
+  @stringOpt(description = "SMT solver to use. z3 uses the Z3 Java bindings in-process; smtlib2 talks to the solver given by smt_solver_cmd over a pipe; dpll uses a pure-JVM solver for linear integer/boolean constraints", _default = "z3")
+  public static String SMT_SOLVER = "z3";
+
+  @stringOpt(description = "Command that starts an SMT solver reading SMT-LIB2 from stdin. Only used when smt_solver is smtlib2", _default = "z3 -in -smt2 -t:10000")
+  public static String SMT_SOLVER_CMD = "z3 -in -smt2 -t:10000";
+
+  @boolOpt(description = "Cache solver results for constraint sets that are equal up to renaming of variables", _default = true)
+  public static boolean SAT_CACHE = true;
+
+  @boolOpt(description = "Check constraint sets against recent models from the solver before calling it", _default = true)
+  public static boolean MODEL_CACHE = true;
+
+  @boolOpt(description = "Decide simple null, boolean, and difference-bound int constraints in the JVM before calling the solver", _default = true)
+  public static boolean DIFFERENCE_BOUND_DECIDER = true;
+
+  @boolOpt(description = "Learn unsatisfiable cores from the solver and refute constraint sets that contain an instance of one without calling it", _default = true)
+  public static boolean REFUTATION_LEMMAS = true;
+
+  @stringOpt(description = "File in which to keep summaries of the fields each method may write across runs. Summaries of methods whose bytecode (and that of their callees) is unchanged are reused. Empty means no summaries", _default = "")
+  public static String SUMMARY_CACHE = "";
+
+  @boolOpt(description = "Remember callee entries that were refuted and refute later entries from the same call site that entail them without exploring the callee", _default = false)
+  public static boolean CALLEE_SUMMARIES = false;
+
+  @boolOpt(description = "Keep the loop and call-site invariants of refuted queries and use them to refute later queries", _default = false)
+  public static boolean KEEP_INVARIANT_MAPS = false;
+
+  @boolOpt(description = "Intern points-to edges and pure constraints so that equal ones are shared. Its hit rate is printed with the other statistics", _default = true)
+  public static boolean INTERN_STATE = true;
+
+  @boolOpt(description = "Store query constraints in persistent sets so that forking a path shares them rather than copying them. Turn off to compare against copied sets (see -benchmark allocation)", _default = true)
+  public static boolean PERSISTENT_CONSTRAINTS = true;
+
+  @intOpt(description = "Memory budget (in MB) for the cache of producer instructions used when jumping, which is shared by all queries. -1 means 1/32 of the maximum heap size", _default = -1)
+  public static int PRODUCER_CACHE_MB = -1;
+
   @intOpt(description = "Time out and report a witness if we spend more time than this on a query", _default = 10)
   public static int TIMEOUT = 10;  
 
@@ -10,7 +10,6 @@ import com.ibm.wala.ssa.*;
 import com.ibm.wala.ssa.SSACFG.ExceptionHandlerBasicBlock;
 import com.ibm.wala.types.MethodReference;
 import com.ibm.wala.types.TypeReference;
-import com.ibm.wala.util.collections.HashMapFactory;
 import com.ibm.wala.util.collections.HashSetFactory;
 import com.ibm.wala.util.collections.Pair;
 import com.ibm.wala.util.graph.Acyclic;
@@ -21,6 +20,7 @@ import com.ibm.wala.util.graph.traverse.BFSPathFinder;
 import com.ibm.wala.util.intset.*;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * utility class for asking various common questions about WALA CFG's
@@ -30,15 +30,21 @@ import java.util.*;
  */
 public class WALACFGUtil {
 
+  // the caches are concurrent because they are shared by the workers of
+  // parallel path exploration. two workers that miss at the same time both
+  // compute the (identical) entry, and one of them wins
+
   // optimization: map from IR to loop headers for that IR to save us from
   // recomputing loop heads
-  private static final Map<IR, MutableIntSet> loopHeadersCache = HashMapFactory.make();
+  private static final Map<IR, MutableIntSet> loopHeadersCache = new ConcurrentHashMap<IR, MutableIntSet>();
   // optimization: map from IR to dominators for that IR to save us from
   // recomputing dominators
-  private static final Map<IR, Dominators<ISSABasicBlock>> dominatorsCache = HashMapFactory.make();
+  private static final Map<IR, Dominators<ISSABasicBlock>> dominatorsCache =
+    new ConcurrentHashMap<IR, Dominators<ISSABasicBlock>>();
   // optimization: map from (IR, loop head) to blocks contained in that loop
   // head
-  private static final Map<Pair<IR, SSACFG.BasicBlock>, Set<ISSABasicBlock>> loopBodyCache = HashMapFactory.make();
+  private static final Map<Pair<IR, SSACFG.BasicBlock>, Set<ISSABasicBlock>> loopBodyCache =
+    new ConcurrentHashMap<Pair<IR, SSACFG.BasicBlock>, Set<ISSABasicBlock>>();
 
   // CGNode for class initializers
   private static CGNode fakeWorldClinit = null;
@@ -50,6 +56,7 @@ public class WALACFGUtil {
   public static void clearCaches() {
     loopHeadersCache.clear();
     dominatorsCache.clear();
+    loopBodyCache.clear();
     fakeWorldClinit = null;
   }
 
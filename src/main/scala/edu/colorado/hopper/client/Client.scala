@@ -18,6 +18,7 @@ import edu.colorado.hopper.client.Client._
 import edu.colorado.hopper.executor.{DefaultSymbolicExecutor, SymbolicExecutor, TransferFunctions}
 import edu.colorado.hopper.jumping.{JumpingTransferFunctions, DefaultJumpingSymbolicExecutor, RelevanceRelation}
 import edu.colorado.hopper.synthesis.{SynthesisSymbolicExecutor, SynthesisTransferFunctions}
+import edu.colorado.hopper.util.Region
 import edu.colorado.thresher.core._
 import edu.colorado.walautil.cg.ImprovedZeroXContainerCFABuilder
 import edu.colorado.walautil._
@@ -69,6 +70,7 @@ abstract class Client[T](appPath : String, libPath : Option[String], mainClass :
     if (DEBUG) println(CallGraphStats.getStats(cg))
     val pa = cgBuilder.getPointerAnalysis()
     SameReceiverEntrypoint.clearCachedArgs()
+    Region.reset() // number the instance keys of this analysis from scratch
     new WrappedWalaAnalysisResults(cg, pa)
   }
 
@@ -257,3 +259,40 @@ abstract class ClientTests {
   protected def getJVMVersion : String = System.getProperty("java.version")
 
 }
+
+/** Tests of a single component (a solver, an index, a data structure) rather than of a client. like the client tests,
+  * they run with -regressions, can be narrowed to one test with -test, and stop at the first failure */
+abstract class UnitTests extends ClientTests {
+  // the tests to run, by name
+  def tests : List[(String, () => Unit)]
+
+  // unit tests don't run the symbolic executor, so there is nothing to gain from running them again piecewise
+  override def isPiecewiseCompatible : Boolean = false
+
+  /** @return the call graph and points-to analysis of the compiled regression program in @param test (e.g.,
+    * casts/BasicCastRefute), analyzed from the main method of its Main class as in the client tests. this starts a
+    * fresh numbering of instance keys (see Region.reset), so build the regions a test compares after calling it */
+  protected def makeWalaRes(test : String) : WalaAnalysisResults =
+    new Client[Unit](s"target/scala-2.10/test-classes/$test", Util.strToOption(Options.LIB), s"L$test/Main", "main",
+                     isRegression = true) {
+      override def check : Unit = ()
+    }.makeCallGraphAndPointsToAnalysis
+
+  override def runRegressionTests() : Unit = {
+    var testNum = 0
+    tests.foreach(pair => {
+      val (test, body) = pair
+      if (Options.TEST == null || Options.TEST.isEmpty() || Options.TEST == test) {
+        println("Running test " + testNum + ": " + test)
+        try body()
+        catch {
+          case e : Throwable =>
+            printTestFailureMsg(test, testNum)
+            throw e
+        }
+        println("Test " + test + " (#" + testNum + ") passed!")
+      }
+      testNum += 1
+    })
+  }
+}
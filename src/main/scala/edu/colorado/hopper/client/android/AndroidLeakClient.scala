@@ -12,8 +12,8 @@ import com.ibm.wala.util.graph.traverse.DFS
 import edu.colorado.hopper.client.ClientTests
 import edu.colorado.hopper.executor.BudgetExceededException
 import edu.colorado.hopper.jumping.RelevanceRelation
-import edu.colorado.hopper.solver.Z3Solver
-import edu.colorado.hopper.state.{CallStack, Fld, HeapPtEdge, ObjVar, Path, PtEdge, PureConstraint, Qry}
+import edu.colorado.hopper.solver.Solver
+import edu.colorado.hopper.state.{CallStack, Fld, HeapPtEdge, ObjVar, Path, PtEdge, PureConstraint, Qry, SharedSet}
 import edu.colorado.walautil.Types._
 import edu.colorado.walautil.{ClassUtil, LoopUtil, Timer, Util}
 import edu.colorado.walautil.WalaAnalysisResults
@@ -238,9 +238,9 @@ class AndroidLeakClient(appPath : String, androidJar : File, libPath : Option[St
     import walaRes._
     val exec = makeSymbolicExecutor(walaRes)    
     // TODO: extract a relevance relation that doesn't need a Qry as input so we don't need this
-    val heapConstraints = Util.makeSet[HeapPtEdge]
+    val heapConstraints = SharedSet.make[HeapPtEdge]
     heapConstraints += witnessMe.asInstanceOf[HeapPtEdge]
-    val emptyQry = new Qry(heapConstraints, Util.makeSet[PureConstraint], new CallStack, new Z3Solver)
+    val emptyQry = new Qry(heapConstraints, SharedSet.make[PureConstraint], new CallStack, Solver.make())
     val path = new Path(emptyQry)
     var instrNum = 1
     val producers = relRelation.getProducers(witnessMe, emptyQry)
@@ -1,6 +1,7 @@
 package edu.colorado.hopper.client.android
 
 import java.io.File
+import java.lang.management.ManagementFactory
 import java.util
 
 import com.ibm.wala.analysis.pointers.HeapGraph
@@ -12,15 +13,17 @@ import com.ibm.wala.util.intset.OrdinalSet
 import edu.colorado.droidel.driver.AbsurdityIdentifier
 import edu.colorado.hopper.client.android.AndroidUtil._
 import edu.colorado.hopper.client.{ClientTests, NullDereferenceTransferFunctions}
-import edu.colorado.hopper.executor.{BudgetExceededException, DefaultSymbolicExecutor}
-import edu.colorado.hopper.jumping.{JumpingTransferFunctions, RelevanceRelation}
-import edu.colorado.hopper.solver.{ThreadSafeZ3Solver, Z3Solver}
+import edu.colorado.hopper.executor.{BudgetExceededException, DefaultSymbolicExecutor, SymbolicExecutor}
+import edu.colorado.hopper.jumping.{ControlFeasibilityFacts, JumpingTransferFunctions, RelevanceIndices, RelevanceRelation}
+import edu.colorado.hopper.solver.{ModelCache, RefutationLemmas, SATCache, Solver, SolverPool}
 import edu.colorado.hopper.state._
 import edu.colorado.hopper.util.PtUtil
 import edu.colorado.thresher.core.Options
 import edu.colorado.walautil._
 
 import scala.collection.JavaConversions._
+import scala.collection.parallel.ForkJoinTaskSupport
+import scala.concurrent.forkjoin.ForkJoinPool
 import scala.sys.process._
 
 class AndroidNullDereferenceClient(appPath : String, androidLib : File, useJPhantom : Boolean = true)
@@ -33,9 +36,14 @@ class AndroidNullDereferenceClient(appPath : String, androidLib : File, useJPhan
   val rr = if (PARALLEL) None else Some(makeRR())
   val tf = if (PARALLEL) None else Some(makeTF(getOrCreateRelevanceRelation()))
   val exec = if (PARALLEL) None else Some(makeExec)
-  // need a single solver with synchronized methods rather than a solver per-query because the Z3 bindings are not
-  // thread-safe and tend to crash even when we use multiple solvers with no shared state.
-  val solver = Some(makeSolver())
+  // in parallel mode, each worker thread gets its own solver (Z3 context or solver process) from the pool. sharing a
+  // single solver with synchronized methods serializes all of the workers on solver calls
+  val solverPool = if (PARALLEL) Some(new SolverPool(() => makeSolver())) else None
+  // shared by the transfer functions of all workers
+  lazy val androidCGReachability = makeAndroidCGReachability(walaRes.cg)
+  lazy val controlFeasibilityFacts = new ControlFeasibilityFacts
+  // shared by the relevance relations of all queries, so that we build each index once
+  lazy val relevanceIndices = new RelevanceIndices(walaRes.cg, walaRes.hg, walaRes.cha)
 
   def getOrCreate[T](tOpt : Option[T], makeT : Unit => T) : T = tOpt match {
     case Some(t) => t
@@ -48,17 +56,20 @@ class AndroidNullDereferenceClient(appPath : String, androidLib : File, useJPhan
 
   def getOrCreateSymbolicExecutor() = getOrCreate(exec, (_ : Unit) => makeExec())
 
-  def getOrCreateSolver() = getOrCreate(solver, (_ : Unit) => makeSolver())
+  def getOrCreateSolver() = getOrCreate(solverPool.map(pool => pool.get), (_ : Unit) => makeSolver())
 
-  def makeSolver() = if (PARALLEL) new ThreadSafeZ3Solver() else new Z3Solver()
+  def makeSolver() : Solver[_] = Solver.make()
 
   def makeRR() : RelevanceRelation =
     if (Options.JUMPING_EXECUTION)
-      if (Options.CONTROL_FEASIBILITY)
+      if (Options.CONTROL_FEASIBILITY) {
         // use control-feasibility information from Android lifecycle
-        new AndroidRelevanceRelation(appTransformer, walaRes.cg, walaRes.hg, walaRes.hm, walaRes.cha)
-      else
-        new RelevanceRelation(walaRes.cg, walaRes.hg, walaRes.hm, walaRes.cha)
+        val rr = new AndroidRelevanceRelation(appTransformer, walaRes.cg, walaRes.hg, walaRes.hm, walaRes.cha,
+                                              controlFeasibilityFacts, relevanceIndices)
+        if (Options.PRECOMPUTE_CONTROL_FEASIBILITY) controlFeasibilityFacts.precomputeOnce(rr.precomputeFacts())
+        rr
+      } else
+        new RelevanceRelation(walaRes.cg, walaRes.hg, walaRes.hm, walaRes.cha, relevanceIndices)
     else null
 
   def makeTF(rr : RelevanceRelation) = new NullDereferenceTransferFunctions(walaRes, new File(s"$appPath/nit_annots.xml")) {
@@ -96,7 +107,7 @@ class AndroidNullDereferenceClient(appPath : String, androidLib : File, useJPhan
       if (Options.JUMPING_EXECUTION)
         isRetvalRelevant(i, caller, qry) ||
         JumpingTransferFunctions.doesCalleeModifyHeap(callee, qry, rr, cg,
-                                                        getReachable = getReachableInAndroidCG)
+                                                        reachability = androidCGReachability)
       else super.isCallRelevant(i, caller, callee, qry)
 
     override def dropCallConstraints(qry : Qry, callee : CGNode,
@@ -104,7 +115,7 @@ class AndroidNullDereferenceClient(appPath : String, androidLib : File, useJPhan
                                      loopDrop : Boolean) : Unit =
     if (Options.JUMPING_EXECUTION)
       JumpingTransferFunctions.dropCallConstraints(qry, callee, rr, cg,
-                                                     getReachable = getReachableInAndroidCG)
+                                                     reachability = androidCGReachability)
     else super.dropCallConstraints(qry, callee, modRef, loopDrop)
 
     override def executeCond(cond : SSAConditionalBranchInstruction, qry : Qry, n : CGNode,
@@ -333,41 +344,150 @@ class AndroidNullDereferenceClient(appPath : String, androidLib : File, useJPhan
 
     val checkingTimer = new Timer
     checkingTimer.start()
-    val derefsToCheckList = if (PARALLEL) derefsToCheck.par else derefsToCheck
+    // shut down at the end of the check so that its worker threads don't outlive it
+    val forkJoinPool = if (PARALLEL && Options.NUM_THREADS > 0) Some(new ForkJoinPool(Options.NUM_THREADS)) else None
+    val derefsToCheckList =
+      if (PARALLEL) {
+        val parDerefs = derefsToCheck.par
+        forkJoinPool.foreach(pool => parDerefs.tasksupport = new ForkJoinTaskSupport(pool))
+        parDerefs
+      } else derefsToCheck
     var count = 0
     val results =
-      derefsToCheckList.map(pair => {
-        val (index, node) = pair
-        val curCount = if (PARALLEL) -1 else { count += 1; count }
-        if (canDerefFail(index, node, hm, curCount)) 1 else 0
-      })
+      try
+        derefsToCheckList.map(pair => {
+          val (index, node) = pair
+          val curCount = if (PARALLEL) -1 else { count += 1; count }
+          if (canDerefFail(index, node, hm, curCount)) 1 else 0
+        })
+      finally forkJoinPool.foreach(pool => pool.shutdown())
     val (nullDerefs, derefsChecked) = (results.sum, results.size)
     println(s"Found $nullDerefs potential null derefs out of $derefsChecked derefs checked")
     checkingTimer.printTimeTaken("Checking all derefs")
+    SymbolicExecutor.printStats()
+    if (Options.CONTROL_FEASIBILITY) controlFeasibilityFacts.printStats()
+    solverPool.foreach(pool => pool.dispose())
     (nullDerefs, derefsChecked)
   }
 }
 
 object AndroidNullDereferenceClientTests extends ClientTests {
 
+  private val regressionDir = new File("src/test/java/nulls/")
+
+  private def getTests : Array[String] =
+    regressionDir.listFiles()
+      .filter(f => f.getName.endsWith(".java"))
+      .map(f => f.getName.stripSuffix(".java"))
+
+  /** copy the compiled regression programs to where the client expects the app to be, run @param body on the Android
+    * JAR, and clean up */
+  private def withRegressionApp(body : File => Unit) : Unit = {
+    val regressionBinDir = "target/scala-2.10/test-classes/nulls"
+    val classesPathPrefix = s"$regressionDir/bin"
+    val classesPath = s"$classesPathPrefix/classes"
+    if (new File(classesPathPrefix).exists()) Process(Seq("rm", "-r", classesPathPrefix)).!!
+    Process(Seq("mkdir", "-p", classesPath)).!!
+    Process(Seq("cp", "-r", regressionBinDir, classesPath)).!!
+
+    val androidJar = new File(Options.ANDROID_JAR)
+    assert(androidJar.exists(), s"Android jar ${androidJar.getAbsolutePath} does not exist--pass a path to a valid android JAR using the -android_jar flag")
+    body(androidJar)
+    Process(Seq("rm", "-r", classesPathPrefix)).!!
+  }
+
+  /** @return the number of derefs in @param tests checked by @param client and the time it took in seconds */
+  private def checkAllDerefs(client : AndroidNullDereferenceClient, tests : Iterable[String]) : (Int, Double) = {
+    // start with empty cross-query caches so that earlier runs don't speed up later ones
+    SATCache.clear()
+    ModelCache.clear()
+    RefutationLemmas.clear()
+    val timer = new Timer
+    timer.start()
+    val derefsChecked = tests.foldLeft (0) ((derefsChecked, test) => {
+      Options.MAIN_CLASS = test
+      val (_, testDerefsChecked) = client.check
+      edu.colorado.thresher.core.WALACFGUtil.clearCaches()
+      LoopUtil.clearCaches
+      derefsChecked + testDerefsChecked
+    })
+    timer.stop
+    (derefsChecked, timer.time)
+  }
+
+  /** check every deref in the regression programs with PARALLEL on and 1, 2, 4, ... worker threads, up to one per
+    * core, and print the throughput and speedup over one thread at each thread count. an extra single-threaded pass
+    * comes first so that JIT compilation and the indices built on first use don't count against the first run */
+  def runScalingBenchmark() : Unit = withRegressionApp(androidJar => {
+    Options.JUMPING_EXECUTION = true
+    Options.CONTROL_FEASIBILITY = true
+    // must be set before we make the client, which creates its solver pool only in PARALLEL mode
+    Options.PARALLEL = true
+    val client =
+      new AndroidNullDereferenceClient(appPath = regressionDir.getAbsolutePath, androidLib = androidJar, useJPhantom = false)
+    client.swallowTimeouts = true
+    val tests = getTests
+
+    def checkAll(numThreads : Int) : (Int, Double) = {
+      Options.NUM_THREADS = numThreads
+      checkAllDerefs(client, tests)
+    }
+
+    val cores = Runtime.getRuntime.availableProcessors
+    val threadCounts = Iterator.iterate(1)(n => n * 2).takeWhile(n => n < cores).toList :+ cores
+    checkAll(1)
+    val runs = threadCounts.map(n => (n, checkAll(n)))
+    val (_, (baseDerefs, baseTime)) = runs.head
+    val baseThroughput = baseDerefs / baseTime
+    println("Scaling of null dereference checking on the regression programs:")
+    runs.foreach(run => {
+      val (numThreads, (derefsChecked, time)) = run
+      val throughput = derefsChecked / time
+      println(f"$numThreads%3d threads: $derefsChecked derefs in $time%.2f s; $throughput%.1f derefs/second; speedup ${throughput / baseThroughput}%.2fx")
+    })
+  })
+
+  /** check every deref in the regression programs on a single thread, first with query constraints kept in ordinary
+    * hash sets that are copied when a path forks and then in persistent sets that forked paths share (see SharedSet and
+    * PERSISTENT_CONSTRAINTS). print the bytes allocated and the time taken with each representation. an extra pass
+    * comes first so that JIT compilation and the indices built on first use don't count against either one */
+  def runAllocationBenchmark() : Unit = withRegressionApp(androidJar => {
+    Options.JUMPING_EXECUTION = true
+    Options.CONTROL_FEASIBILITY = true
+    // allocation is counted per thread, so the whole check has to run on this one
+    Options.PARALLEL = false
+    Options.PATH_THREADS = 1
+    val client =
+      new AndroidNullDereferenceClient(appPath = regressionDir.getAbsolutePath, androidLib = androidJar, useJPhantom = false)
+    client.swallowTimeouts = true
+    val tests = getTests
+    val threadBean = ManagementFactory.getThreadMXBean.asInstanceOf[com.sun.management.ThreadMXBean]
+    val threadId = Thread.currentThread.getId
+
+    /** @return the number of derefs checked, the time it took in seconds, and the bytes allocated */
+    def checkAll(persistent : Boolean) : (Int, Double, Long) = {
+      Options.PERSISTENT_CONSTRAINTS = persistent
+      val allocatedBefore = threadBean.getThreadAllocatedBytes(threadId)
+      val (derefsChecked, time) = checkAllDerefs(client, tests)
+      (derefsChecked, time, threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore)
+    }
+
+    val prevPersistent = Options.PERSISTENT_CONSTRAINTS
+    checkAll(persistent = false)
+    val runs = List(false, true).map(persistent => (persistent, checkAll(persistent)))
+    Options.PERSISTENT_CONSTRAINTS = prevPersistent
+    println("Allocation of null dereference checking on the regression programs:")
+    runs.foreach(run => {
+      val (persistent, (derefsChecked, time, allocated)) = run
+      val representation = if (persistent) "persistent sets" else "copied sets"
+      println(f"$representation%-15s: $derefsChecked derefs in $time%.2f s; ${allocated / (1024.0 * 1024.0)}%.1f MB allocated; ${allocated / math.max(derefsChecked, 1)} bytes/deref")
+    })
+  })
+
   override def runRegressionTests() : Unit = {
-    val regressionDir = new File("src/test/java/nulls/")
-    val tests =
-      regressionDir.listFiles()
-        .filter(f => f.getName.endsWith(".java"))
-        .map(f => f.getName.stripSuffix(".java"))
-
-    if (Options.TEST == null || Options.TEST.isEmpty || tests.contains(Options.TEST)) {
-      val regressionBinDir = "target/scala-2.10/test-classes/nulls"
-      val classesPathPrefix = s"$regressionDir/bin"
-      val classesPath = s"$classesPathPrefix/classes"
-      if (new File(classesPathPrefix).exists()) Process(Seq("rm", "-r", classesPathPrefix)).!!
-      Process(Seq("mkdir", "-p", classesPath)).!!
-      Process(Seq("cp", "-r", regressionBinDir, classesPath)).!!
-
-      val androidJar = new File(Options.ANDROID_JAR)
-      assert(androidJar.exists(), s"Android jar ${androidJar.getAbsolutePath} does not exist--pass a path to a valid android JAR using the -android_jar flag")
+    val tests = getTests
 
+    if (Options.TEST == null || Options.TEST.isEmpty || tests.contains(Options.TEST)) withRegressionApp(androidJar => {
       Options.JUMPING_EXECUTION = true
       Options.CONTROL_FEASIBILITY = true
       val client =
@@ -411,8 +531,7 @@ object AndroidNullDereferenceClientTests extends ClientTests {
         LoopUtil.clearCaches
         executionTimer.clear
       })
-      Process(Seq("rm", "-r", classesPathPrefix)).!!
-    }
+    })
   }
 
   // this is false just to ensure this only runs once during regression tests--it is clearly jumping-compatible!
@@ -8,21 +8,24 @@ import com.ibm.wala.ipa.cha.IClassHierarchy
 import com.ibm.wala.ssa.{SSAPutInstruction, SSAInstruction}
 import com.ibm.wala.types.{Selector, MethodReference, TypeName}
 import com.ibm.wala.util.graph.traverse.BFSIterator
-import com.ibm.wala.util.intset.OrdinalSet
 import edu.colorado.hopper.state._
 import edu.colorado.droidel.constants.{DroidelConstants, AndroidConstants, AndroidLifecycle}
 import edu.colorado.droidel.constants.AndroidConstants._
 import edu.colorado.droidel.driver.AndroidAppTransformer
-import edu.colorado.hopper.jumping.ControlFeasibilityRelevanceRelation
+import edu.colorado.hopper.jumping.{ControlFeasibilityFacts, ControlFeasibilityRelevanceRelation, RelevanceIndices}
 import edu.colorado.hopper.util.PtUtil
 import edu.colorado.walautil._
 
 import scala.collection.JavaConversions._
 
 class AndroidRelevanceRelation(appTransformer : AndroidAppTransformer, cg : CallGraph, hg : HeapGraph[InstanceKey],
-                               hm : HeapModel, cha : IClassHierarchy,
-                               cgTransitiveClosure : java.util.Map[CGNode,OrdinalSet[CGNode]] = null)
-  extends ControlFeasibilityRelevanceRelation(cg, hg, hm, cha, cgTransitiveClosure) {
+                               hm : HeapModel, cha : IClassHierarchy, facts : ControlFeasibilityFacts,
+                               indices : RelevanceIndices)
+  extends ControlFeasibilityRelevanceRelation(cg, hg, hm, cha, facts, indices) {
+
+  def this(appTransformer : AndroidAppTransformer, cg : CallGraph, hg : HeapGraph[InstanceKey], hm : HeapModel,
+           cha : IClassHierarchy) =
+    this(appTransformer, cg, hg, hm, cha, new ControlFeasibilityFacts, new RelevanceIndices(cg, hg, cha))
 
   val callbackClasses =
     appTransformer.getCallbackClasses().foldLeft (Set.empty[IClass]) ((s, t) => cha.lookupClass(t) match {
@@ -88,7 +91,10 @@ class AndroidRelevanceRelation(appTransformer : AndroidAppTransformer, cg : Call
   /** given an application-space CGNode n, compute the node(s) invoked by the framework that may call this node.
     * to be more concrete, if the app is onCreate() { foo() } onDestroy() { foo() } and n is foo, then this
     * method will return {onCreate, onDestroy} */
-  def getLibraryAppFrontierNodesFor(n : CGNode) : Set[CGNode] = {
+  def getLibraryAppFrontierNodesFor(n : CGNode) : Set[CGNode] =
+    facts.libraryAppFrontierNodes.getOrElseUpdate(n, getLibraryAppFrontierNodesForInternal(n))
+
+  private def getLibraryAppFrontierNodesForInternal(n : CGNode) : Set[CGNode] = {
     // library nodes are already on the wrong side of the library/app frontier, can't do anything
     if (isFrameworkOrStubNode(n)) Set(n)
     else {
@@ -108,6 +114,15 @@ class AndroidRelevanceRelation(appTransformer : AndroidAppTransformer, cg : Call
     }
   }
 
+  /** compute the library/application frontier of all application nodes, in parallel. the other control-feasibility
+    * facts depend on the query, and are memoized in facts as queries need them */
+  def precomputeFacts() : Unit = {
+    val timer = new Timer
+    timer.start()
+    cg.filter(n => !isFrameworkOrStubNode(n)).toList.par.foreach(n => getLibraryAppFrontierNodesFor(n))
+    timer.printTimeTaken("Precomputing library/application frontier nodes")
+  }
+
   def specializeLifecycleGraph(curNode : CGNode, relevantMethods : Set[IMethod]) : GraphImpl[IMethod] = {
     if (DEBUG) println(s"Doing lifecycle specialization for ${ClassUtil.pretty(curNode)}")
     val curMethod = curNode.getMethod
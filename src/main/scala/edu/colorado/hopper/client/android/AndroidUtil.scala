@@ -1,8 +1,8 @@
 package edu.colorado.hopper.client.android
 
 import com.ibm.wala.ipa.callgraph.{CallGraph, CGNode}
-import com.ibm.wala.util.graph.traverse.BFSIterator
-import edu.colorado.walautil.{GraphUtil, ClassUtil}
+import edu.colorado.hopper.util.CGReachability
+import edu.colorado.walautil.ClassUtil
 import scala.collection.JavaConversions._
 
 object AndroidUtil {
@@ -14,19 +14,18 @@ object AndroidUtil {
   // method that places a message on the event queue is reachable, this starts a thread that calls dispatchMessage()
   // and then can pull *any* message off of the event queue (and thus call pretty much anything). we prevent this from
   // happening by cutting off paths that pass through Handler.dispatchMessage()
-  def getReachableInAndroidCG(cg : CallGraph, n : CGNode) : Set[CGNode] = {
+  def makeAndroidCGReachability(cg : CallGraph) : CGReachability = {
     val HANDLER_CLASS = "Landroid/os/Handler"
     val DISPATCH_MESSAGE = "dispatchMessage"
     def frontierFilter(n : CGNode) : Boolean = {
       val m = n.getMethod
       m.getDeclaringClass.getName.toString == HANDLER_CLASS && m.getName.toString == DISPATCH_MESSAGE
     }
-    val iter =
-      new BFSIterator[CGNode](cg, n) {
-        override def getConnected(n : CGNode) : java.util.Iterator[_ <: CGNode] =
-          cg.getSuccNodes(n).filter(n => frontierFilter(n))
-      }
-    GraphUtil.bfsIterFold(iter, Set.empty[CGNode], ((s : Set[CGNode], n : CGNode) => s + n))
+    // NOTE: this keeps *only* the edges into dispatchMessage(), which is the opposite of what the comment above says.
+    // the BFS this replaced filtered successors the same way, so we deliberately preserve its behavior here. flipping
+    // it to !frontierFilter(callee) makes many more callees relevant and needs to be checked against the Android
+    // regressions first
+    new CGReachability(cg, keepEdge = (_ : CGNode, callee : CGNode) => frontierFilter(callee))
   }
 
 }
@@ -6,6 +6,7 @@ import edu.colorado.droidel.constants.DroidelConstants
 import edu.colorado.droidel.driver.{AndroidAppTransformer, AndroidCGBuilder}
 import edu.colorado.droidel.preprocessor.ApkDecoder
 import edu.colorado.hopper.client.Client
+import edu.colorado.hopper.util.Region
 import edu.colorado.thresher.core.Options
 import edu.colorado.walautil.Timer
 
@@ -42,6 +43,7 @@ abstract class DroidelClient[T](appPath : String, androidLib : File, useJPhantom
       new AndroidCGBuilder(analysisScope, appTransformer.harnessClassName, appTransformer.harnessMethodName)
     val res = cgBuilder.makeAndroidCallGraph
     timer.printTimeTaken("Building call graph")
+    Region.reset() // number the instance keys of this analysis from scratch
     (res, cgBuilder.cache)
   }
 
@@ -179,7 +179,7 @@ object ArrayBoundsClientTests extends ClientTests {
     val tests =
       List("Overflow0", "NoOverflow0", "NestedOverflow1", "NestedOverflow2", "NestedOverflow3",
            "NestedNoOverflow", "SwitchedBufsOverflow", "BufParamOverflow", "BufParamNoOverflow",
-           "SystemExitNoOverflow", "SystemExitOverflow")
+           "SystemExitNoOverflow", "SystemExitOverflow", "SwitchCasesOverflow")
         //"ReverseOverflow", "ReverseNoOverflow" these don't work because they're underflow checks, not overflow checks
 
     val pwFailOk = List("SystemExitNoOverflow", "NestedNoOverflow")
@@ -34,7 +34,7 @@ trait ArrayBoundsSymbolicExecutor extends UnstructuredSymbolicExecutor {
     
     // loop header--see if the invariant says we can stop executing
     def invariantImpliesPath(p : Path) : Boolean = {
-      val res = loopInvMap.pathEntailsInv(p.callStack.stack.map(f => (f.node, f.blk)), p)
+      val res = loopInvMap.pathEntailsInv(p.callStack.loc, p)
       if (DEBUG && res) println("Hit fixed point at loop head  " + startBlk)
       res
     }
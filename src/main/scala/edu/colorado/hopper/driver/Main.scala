@@ -5,6 +5,11 @@ import java.io.File
 import edu.colorado.hopper.client._
 import edu.colorado.hopper.client.android._
 import edu.colorado.hopper.client.bounds.{ArrayBoundsClient, ArrayBoundsClientTests}
+import edu.colorado.hopper.jumping.{ProducerCacheTests, WriteIndexTests}
+import edu.colorado.hopper.solver.{DifferenceBoundDeciderTests, DpllSolverTests, RefutationLemmasTests,
+                                  SolverPoolTests}
+import edu.colorado.hopper.state.{InternerTests, MinSetTests, SharedSetTests}
+import edu.colorado.hopper.util.{CGReachabilityTests, LocalPredIndexTests, RegionTests}
 import edu.colorado.walautil.Util
 import edu.colorado.thresher.core.Options
 
@@ -16,17 +21,26 @@ object Main {
     val target = Options.parseArgs(args)          
     
     if (target == null) println("No analysis targets given...exiting.")
-    else if (target.equals(REGRESSION)) {
+    else if (target.equals(REGRESSION) && !Options.BENCHMARK.isEmpty) Options.BENCHMARK match {
+      case "scaling" => AndroidNullDereferenceClientTests.runScalingBenchmark()
+      case "allocation" => AndroidNullDereferenceClientTests.runAllocationBenchmark()
+      case other => sys.error(s"Unknown benchmark $other")
+    } else if (target.equals(REGRESSION)) {
       val prevDebug = Options.DEBUG
+      val unitTests : List[ClientTests] = List(DpllSolverTests, DifferenceBoundDeciderTests, RefutationLemmasTests,
+                                               SharedSetTests, InternerTests, RegionTests, MinSetTests, WriteIndexTests,
+                                               LocalPredIndexTests, ProducerCacheTests, CGReachabilityTests,
+                                               SolverPoolTests)
       val clientTests = 
-        if (Options.CHECK_ANDROID_LEAKS) List(AndroidLeakClientTests)
+        if (Options.UNIT_TESTS) unitTests
+        else if (Options.CHECK_ANDROID_LEAKS) List(AndroidLeakClientTests)
         else if (Options.CHECK_CASTS) List(DowncastCheckingClientTests)
         else if (Options.CHECK_ASSERTS) List(AssertionCheckingClientTests)
         else if (Options.CHECK_ARRAY_BOUNDS) List(ArrayBoundsClientTests)
         else if (Options.CHECK_ANDROID_DEREFS) List(AndroidNullDereferenceClientTests)
         else
-          List(AndroidLeakClientTests, DowncastCheckingClientTests, ArrayBoundsClientTests,
-               AndroidNullDereferenceClientTests)
+          unitTests ++ List(AndroidLeakClientTests, DowncastCheckingClientTests, ArrayBoundsClientTests,
+                            AndroidNullDereferenceClientTests)
       
       val singleTest = Options.TEST
       def runTests(runPiecewise : Boolean = false) : Unit = clientTests.foreach(client => {
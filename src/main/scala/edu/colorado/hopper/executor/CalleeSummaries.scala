@@ -0,0 +1,60 @@
+package edu.colorado.hopper.executor
+
+import java.util.concurrent.atomic.AtomicLong
+
+import com.ibm.wala.ipa.callgraph.CGNode
+import com.ibm.wala.ssa.SSAInvokeInstruction
+import com.twitter.util.LruMap
+import edu.colorado.hopper.state.{MinSet, Path, Qry}
+
+object CalleeSummaries {
+  // number of call sites to keep summaries for
+  val MAX_SIZE = 1000
+
+  private val hits = new AtomicLong
+  private val refutations = new AtomicLong
+
+  def printStats() : Unit =
+    println(s"Callee summaries: ${refutations.get} refuted callee entries recorded, " +
+            s"${hits.get} entries refuted by summary")
+}
+
+/** Refutation summaries for callees, keyed by call site. when every path that enters a callee from a call site with a
+  * given query is refuted before getting back to the caller, we remember the entry path. a later path that enters the
+  * callee from the same call site and entails a remembered path would be refuted the same way, so we drop it without
+  * exploring the callee again. summaries rely on the same reasoning as the invariant maps and must be cleared with them */
+class CalleeSummaries {
+  import CalleeSummaries._
+
+  private val summaries = new LruMap[(CGNode,SSAInvokeInstruction,CGNode),MinSet[Path]](MAX_SIZE)
+
+  // the frame of the caller that p will return to
+  private def callerFrame(p : Path) = p.callStackIter.drop(1).head
+
+  // p |= refuted says nothing about the caller's frame, but the return to the caller depends on it
+  private def entails(p : Path, refuted : Path) : Boolean =
+    (p |= refuted) && Qry.|=(callerFrame(p).localConstraints, callerFrame(refuted).localConstraints)
+
+  /** @return true if entering @param callee from @param i in @param caller with @param p is known to be refuted. p
+    * must have just entered callee */
+  def isRefuted(caller : CGNode, i : SSAInvokeInstruction, callee : CGNode, p : Path) : Boolean = {
+    val res = summaries.synchronized { summaries.get((caller, i, callee)) } match {
+      case Some(refuted) => refuted.candidates(p).exists(refuted => entails(p, refuted))
+      case None => false
+    }
+    if (res) hits.incrementAndGet()
+    res
+  }
+
+  /** record that every path explored from @param p (a copy of a path that had just entered @param callee from @param i
+    * in @param caller) was refuted before getting back to the caller */
+  def addRefuted(caller : CGNode, i : SSAInvokeInstruction, callee : CGNode, p : Path) : Unit = {
+    summaries.synchronized {
+      val key = (caller, i, callee)
+      summaries.put(key, summaries.getOrElse(key, new MinSet[Path]) + p)
+    }
+    refutations.incrementAndGet()
+  }
+
+  def clear() : Unit = summaries.synchronized { summaries.clear() }
+}
@@ -0,0 +1,111 @@
+package edu.colorado.hopper.executor
+
+import com.ibm.wala.ipa.callgraph.CGNode
+import com.ibm.wala.ssa.ISSABasicBlock
+import com.twitter.util.LruMap
+import edu.colorado.hopper.jumping.RelevanceRelation
+import edu.colorado.hopper.state.Path
+import edu.colorado.hopper.util.ProgramStats
+
+import scala.collection.JavaConversions._
+
+object PathScheduler {
+  /** @return the scheduler named @param name: dfs, bfs, fewest-constraints, closest-to-entry, or cost. the cost
+    * scheduler needs @param rr to compute the cost of each method */
+  def make(name : String, rr : Option[RelevanceRelation] = None) : PathScheduler = name match {
+    case "dfs" => DfsScheduler
+    case "bfs" => BfsScheduler
+    case "fewest-constraints" => FewestConstraintsScheduler
+    case "closest-to-entry" => new ClosestToEntryScheduler
+    case "cost" => rr match {
+      case Some(rr) => new CostGuidedScheduler(new ProgramStats(rr).nodeCostMap)
+      case None => sys.error("The cost scheduler needs a relevance relation; use a jumping executor")
+    }
+    case other =>
+      sys.error("Unknown path scheduler " + other + "; expecting dfs, bfs, fewest-constraints, closest-to-entry, or cost")
+  }
+}
+
+/** Strategy for choosing the path the backward executor explores next. the executor adds the paths forked from the
+  * path it just explored to the front of its worklist */
+trait PathScheduler {
+  /** @return the path from @param paths to explore next and the rest of @param paths. @param paths is non-empty */
+  def next(paths : List[Path]) : (Path, List[Path])
+}
+
+/** explore the most recently forked path first. this is the executor's original order */
+object DfsScheduler extends PathScheduler {
+  override def next(paths : List[Path]) : (Path, List[Path]) = (paths.head, paths.tail)
+}
+
+/** explore the least recently forked path first */
+object BfsScheduler extends PathScheduler {
+  override def next(paths : List[Path]) : (Path, List[Path]) = (paths.last, paths.init)
+}
+
+/** explore the path with the smallest priority first, breaking ties in DFS order */
+abstract class PriorityScheduler extends PathScheduler {
+  /** @return the priority of @param p. smaller is explored sooner */
+  def priority(p : Path) : Long
+
+  override def next(paths : List[Path]) : (Path, List[Path]) = {
+    val (best, _) = paths.tail.foldLeft (paths.head, priority(paths.head)) ((best, p) => {
+      val pPriority = priority(p)
+      if (pPriority < best._2) (p, pPriority) else best
+    })
+    (best, paths.filterNot(p => p eq best))
+  }
+}
+
+/** explore the path with the fewest constraints first. small queries are cheap to push through a block, and a query that
+  * has dropped or never gathered many constraints is likely to be refuted (or found to be a witness) quickly */
+object FewestConstraintsScheduler extends PriorityScheduler {
+  override def priority(p : Path) : Long =
+    p.qry.localConstraints.size + p.qry.heapConstraints.size + p.qry.pureConstraints.size
+}
+
+/** explore the path with the fewest CFG edges left to the entry of the program first. a path in a callee must get back
+  * to the caller's call site before it can continue in the caller, so its distance is the sum of the distance to the
+  * entry of each method on its call stack */
+class ClosestToEntryScheduler extends PriorityScheduler {
+  // map from method to the distance from its entry block to each of its blocks (by block number)
+  private val distCache = new LruMap[CGNode,Map[Int,Int]](100)
+
+  private def getEntryDistances(n : CGNode) : Map[Int,Int] = distCache.synchronized {
+    distCache.getOrElseUpdate(n, n.getIR match {
+      case null => Map.empty[Int,Int]
+      case ir =>
+        val cfg = ir.getControlFlowGraph
+        @annotation.tailrec
+        def bfs(frontier : List[ISSABasicBlock], dist : Int, dists : Map[Int,Int]) : Map[Int,Int] = frontier match {
+          case Nil => dists
+          case _ =>
+            val newDists = frontier.foldLeft (dists) ((dists, blk) => dists + (blk.getNumber -> dist))
+            val next = frontier.flatMap(blk => cfg.getSuccNodes(blk).toList).distinct.filterNot(blk =>
+              newDists.contains(blk.getNumber))
+            bfs(next, dist + 1, newDists)
+        }
+        bfs(List(cfg.entry), 0, Map.empty[Int,Int])
+    })
+  }
+
+  override def priority(p : Path) : Long = p.callStackIter.foldLeft (0L) ((sum, frame) => {
+    val dists = getEntryDistances(frame.node)
+    // blocks unreachable from the entry can't be on a feasible path; explore them last
+    sum + dists.getOrElse(frame.blk.getNumber, dists.size + 1)
+  })
+}
+
+/** explore the path whose call stack holds the cheapest methods first, where the cost of a method is its number of
+  * intraprocedural control-flow paths times the costs of its callees. exploring cheap methods first gets paths back to
+  * their callers (where refutations usually happen) sooner
+  * @param nodeCostMap - map from method to cost, as computed by ProgramStats */
+class CostGuidedScheduler(nodeCostMap : Map[CGNode,Long]) extends PriorityScheduler {
+  override def priority(p : Path) : Long = p.callStackIter.foldLeft (0L) ((sum, frame) =>
+    // saturate rather than overflow; path counts grow exponentially
+    if (sum == Long.MaxValue) sum
+    else {
+      val cost = nodeCostMap.getOrElse(frame.node, 1L)
+      if (cost > Long.MaxValue - sum) Long.MaxValue else sum + cost
+    })
+}
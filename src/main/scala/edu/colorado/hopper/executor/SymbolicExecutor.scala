@@ -1,7 +1,23 @@
 package edu.colorado.hopper.executor
 
-import edu.colorado.hopper.state.Qry
-import edu.colorado.hopper.state.Path
+import edu.colorado.hopper.jumping.ProducerCache
+import edu.colorado.hopper.solver.{DifferenceBoundDecider, ModelCache, RefutationLemmas, SATCache, SolverStats}
+import edu.colorado.hopper.state.{Interner, InvariantMap, Path, Qry}
+
+object SymbolicExecutor {
+  /** print statistics for the solver and the caches that symbolic execution shares across queries */
+  def printStats() : Unit = {
+    SolverStats.printStats()
+    DifferenceBoundDecider.printStats()
+    SATCache.printStats()
+    ModelCache.printStats()
+    RefutationLemmas.printStats()
+    InvariantMap.printStats()
+    CalleeSummaries.printStats()
+    ProducerCache.printStats()
+    Interner.printStats()
+  }
+}
 
 trait SymbolicExecutor {
   def executeBackward(qry : Qry, test : Option[Path => Boolean]) : Iterable[Path]
@@ -1,5 +1,7 @@
 package edu.colorado.hopper.executor
 
+import java.io.File
+
 import com.ibm.wala.analysis.pointers.HeapGraph
 import com.ibm.wala.analysis.reflection.CloneInterpreter
 import com.ibm.wala.classLoader.{IClass, IField}
@@ -15,7 +17,7 @@ import edu.colorado.hopper.executor.TransferFunctions._
 import edu.colorado.hopper.solver.UnknownSMTResult
 import edu.colorado.hopper.state._
 import edu.colorado.hopper.synthesis.InterfaceMethodField
-import edu.colorado.hopper.util.PtUtil
+import edu.colorado.hopper.util.{MemoTable, MethodSummaryStore, PtUtil}
 import edu.colorado.hopper.util.PtUtil._
 import edu.colorado.thresher.core.Options
 import edu.colorado.walautil.Types._
@@ -27,6 +29,24 @@ object TransferFunctions {
   def DEBUG = Options.DEBUG
   // print warning messages about potential unsoundness in the points-to analysis
   private val EMPTY_PT_WARNING = false
+
+  // the call graph whose summaries we last computed, and those summaries. shared by all transfer functions over the
+  // same call graph (e.g., one per query in PARALLEL mode), so that we compute and save the summaries once per run
+  private var summaryStoreFor : Option[(CallGraph, Option[MethodSummaryStore])] = None
+
+  /** @return the summaries of the fields each method in @param cg may write, or None if Options.SUMMARY_CACHE is not
+    * set. the first call for cg computes the summaries and writes them to the cache file */
+  def getSummaryStore(cg : CallGraph) : Option[MethodSummaryStore] = this.synchronized {
+    summaryStoreFor match {
+      case Some((storeCg, store)) if storeCg eq cg => store
+      case _ =>
+        val store =
+          if (Options.SUMMARY_CACHE.isEmpty) None
+          else Some(MethodSummaryStore.make(cg, new File(Options.SUMMARY_CACHE)))
+        summaryStoreFor = Some((cg, store))
+        store
+    }
+  }
   
    def initializeStaticFieldsToDefaultValues(qry : Qry, node : CGNode) : Boolean = {
     require(node.getMethod().isClinit() || node.getMethod().isSynthetic(), "Expecting clinit method, got " + ClassUtil.pretty(node))
@@ -93,7 +113,7 @@ object TransferFunctions {
       // technically, we could do a case split for "o refers to same instance, o refers to difference instance" each
       // time this evaluates to true. this would be more precise, but we'd have to pay the cost of doing these case
       // splits. this is the sound + cheap alternative
-      initializeInternal((o : ObjVar) => !o.rgn.intersect(thisPT.rgn).isEmpty)
+      initializeInternal((o : ObjVar) => o.intersects(thisPT))
   } 
   
 }
@@ -102,8 +122,13 @@ object TransferFunctions {
 class TransferFunctions(val cg : CallGraph, val hg : HeapGraph[InstanceKey], _hm : HeapModel, val cha : IClassHierarchy) {
   val hm = new DelegatingExtendedHeapModel(_hm)
 
+  // summaries of the fields each method may write, persisted across runs. None if Options.SUMMARY_CACHE is not set
+  lazy val summaryStore : Option[MethodSummaryStore] = getSummaryStore(cg)
+
+  // mod sets of every method and its transitive callees. when we have summaries, we don't compute these up front;
+  // instead, we compute the mod sets of the callees that the summaries can't rule out on demand (see getModKeys)
   val modRef : java.util.Map[CGNode,OrdinalSet[PointerKey]] =
-    if (Options.JUMPING_EXECUTION) null else {
+    if (Options.JUMPING_EXECUTION || summaryStore.isDefined) null else {
       val timer = new Timer()
       timer.start()
       println("Computing mod/ref")
@@ -112,6 +137,13 @@ class TransferFunctions(val cg : CallGraph, val hg : HeapGraph[InstanceKey], _hm
       res
     }
 
+  // pointer keys that may be modified by the instructions of each method, not counting its callees
+  private val ownModKeys = new MemoTable[CGNode,Set[PointerKey]]("ownModKeys")
+  // pointer keys that may be modified by each callee and its transitive callees
+  private val calleeModKeys = new MemoTable[CGNode,Set[PointerKey]]("calleeModKeys")
+  // classes whose constructors may run when calling each callee
+  private val calleeInits = new MemoTable[CGNode,Set[IClass]]("calleeInits")
+
   /** look up the lhs of @param s in @param localConstraints, @return matching rhs var and edge if we find it */
   protected def getConstraintPtForDef(s : SSAInstruction, localConstraints : MSet[LocalPtEdge], n : CGNode) : Option[(ObjVar,LocalPtEdge)] =
     getConstraintPt(Var.makeLPK(s.getDef(), n, hm), localConstraints)  
@@ -248,6 +280,24 @@ class TransferFunctions(val cg : CallGraph, val hg : HeapGraph[InstanceKey], _hm
     qry.addPureConstraint(disjunctiveCaseConstraint)
   }
   
+  /** @return the subset of @param cases that may be taken given the constraints in @param qry. all of the cases are
+    * checked in one batch, which is much cheaper than checking them one at a time for big switches */
+  def getFeasibleSwitchCases(cases : List[SSAConditionalBranchInstruction], qry : Qry,
+                             n : CGNode) : List[SSAConditionalBranchInstruction] = {
+    val tbl = n.getIR().getSymbolTable()
+    val matched = cases.head.getUse(0)
+    if (cases.size <= 1 || tbl.isConstant(matched)) cases
+    else getConstraintEdge(Var.makeLPK(matched, n, hm), qry.localConstraints) match {
+      case Some(LocalPtEdge(_, p@PureVar(_))) =>
+        val caseConstraints = cases.map(_case => Pure.makeEqConstraint(p, Pure.makePureVal(tbl, _case.getUse(1))))
+        try cases.zip(qry.checkTmpPureConstraints(caseConstraints)).collect({ case (_case, true) => _case })
+        catch {
+          case e : UnknownSMTResult => cases
+        }
+      case _ => cases // switched-on value is unconstrained; any case may be taken
+    }
+  }
+
   // we choose *not* to refute based on empty PT even though it is sound/precise to do so because issues in modeling
   // (e.g., in Android) can lead to a lot of false refutations if we do this
   def refuteBasedOnEmptyPT(lpk : LocalPointerKey, qry : Qry, n : CGNode) : Boolean = {
@@ -436,7 +486,7 @@ class TransferFunctions(val cg : CallGraph, val hg : HeapGraph[InstanceKey], _hm
       } else {
         val (lhs, rhs) = (getPureExprForLocal(use0, qry, n, hm), getPureExprForLocal(use1, qry, n, hm))
         // add lhsExpr op rhsExpr constraint
-        qry.addPureConstraint(PureAtomicConstraint(lhs, op, rhs))
+        qry.addPureConstraint(Pure.makeAtomicConstraint(lhs, op, rhs))
       }
     }
   }
@@ -505,7 +555,7 @@ class TransferFunctions(val cg : CallGraph, val hg : HeapGraph[InstanceKey], _hm
   /** @return Some(calleeConstraints) if binding succeeded, None if binding caused refutation */
   def tryBindReturnValue(call : SSAInvokeInstruction, qry : Qry, caller : CGNode,
                          callee : CGNode) : Option[MSet[LocalPtEdge]] = {
-    val calleeLocalConstraints = Util.makeSet[LocalPtEdge]
+    val calleeLocalConstraints = SharedSet.make[LocalPtEdge]
     if (call.hasDef) // x = call m(a, b, ...)
       getConstraintEdgeForDef(call, qry.localConstraints, caller) match {
         case Some(edge) => // found return value in constraints
@@ -583,7 +633,7 @@ class TransferFunctions(val cg : CallGraph, val hg : HeapGraph[InstanceKey], _hm
                                 callLine : Int) : Boolean = {
     require(qry.callStack.size == 1, "Call stack should have one frame, has " + qry.callStack.size)
     // TODO: need to do anything with return value here?
-    val callerLocalConstraints = Util.makeSet[LocalPtEdge]
+    val callerLocalConstraints = SharedSet.make[LocalPtEdge]
     val calleeFrame = qry.callStack.pop
     qry.callStack.push(new CallStackFrame(caller, callerLocalConstraints, callBlk, callLine)) // add the new stack frame
     val calleeConstraints = calleeFrame.localConstraints
@@ -595,7 +645,7 @@ class TransferFunctions(val cg : CallGraph, val hg : HeapGraph[InstanceKey], _hm
       getPt(thisLPK, calleeConstraints, hg) match {
         case Some((thisVar, thisEdge)) => // add this -> pt(this) edge if applicable
           if (!thisEdge.isDefined) {
-            qry.getAllObjVars.find(o => !o.rgn.intersect(thisVar.rgn).isEmpty) match {
+            qry.getAllObjVars.find(o => o.intersects(thisVar)) match {
               case Some(o) => sys.error("got possible aliasing via " + o + "! need to do case split")
               case None => // no aliasing to consider; just add the constraint 
                 calleeConstraints += PtEdge.make(thisLPK, thisVar)
@@ -619,7 +669,7 @@ class TransferFunctions(val cg : CallGraph, val hg : HeapGraph[InstanceKey], _hm
         case rgn if rgn.isEmpty => false // this -> null, refute
         case rgn => 
           val thisVar = ObjVar(rgn)
-          qry.getAllObjVars.find(o => !o.rgn.intersect(thisVar.rgn).isEmpty) match {
+          qry.getAllObjVars.find(o => o.intersects(thisVar)) match {
             case Some(o) => () 
               // possible aliasing -- do nothing. this is sound but not precise
               // TODO: we could case split all on all possible alias relationships instead
@@ -679,7 +729,7 @@ class TransferFunctions(val cg : CallGraph, val hg : HeapGraph[InstanceKey], _hm
                       qry.intersectAndSubstitute(formalObj, ptActual, hg) match {
                         case Some(interVar) =>
                           if (!tbl.isStringConstant(callUse))
-                            qry.addLocalConstraint(LocalPtEdge(LocalVar(actual), interVar))
+                            qry.addLocalConstraint(PtEdge.make(LocalVar(actual), interVar))
                         case None =>
                           assert(actualEdge.isDefined, "shouldn't get a refutation here if actualEdge is not defined")
                           return false
@@ -762,14 +812,14 @@ class TransferFunctions(val cg : CallGraph, val hg : HeapGraph[InstanceKey], _hm
     val notAliasedCase = qry.clone
     val maybeAliased = notAliasedCase.getAllObjVars
     val splits = maybeAliased.foldLeft (List((notAliasedCase, ptY, xEdge))) ((l, v) => {
-      val rgnInter = ptY.rgn.intersect(v.rgn)
+      val rgnInter = ptY.intersect(v)
       if (rgnInter.isEmpty) l
       else {
         // v and ptY may be aliased
         Var.markCantAlias(ptY, v) // reflect that ptY and v can't be aliased (for the benefit of notAliasedCase)
         val newQry = qry.clone
         val interVar = ObjVar(rgnInter)
-        newQry.addLocalConstraint(LocalPtEdge(yVar, interVar))
+        newQry.addLocalConstraint(PtEdge.make(yVar, interVar))
         if (newQry.substitute(interVar, v, hg)) {
           val newXEdge = xEdge match {
             case old@Some(xEdge) => if (xEdge.snk == v) Some(LocalPtEdge(xEdge.src, interVar)) else old
@@ -1045,7 +1095,7 @@ class TransferFunctions(val cg : CallGraph, val hg : HeapGraph[InstanceKey], _hm
                     if (!newQry.substitute(interVar, o, hg)) l
                     else {
                       val addNonAliasingConstraintsCB = (x : Unit) => Var.markCantAlias(ptX, o)
-                      newQry.addLocalConstraint(LocalPtEdge(xLoc, interVar))
+                      newQry.addLocalConstraint(PtEdge.make(xLoc, interVar))
                       // TODO: get the new array pt edge
                       (newQry, interVar, addNonAliasingConstraintsCB) :: l
                     }
@@ -1057,7 +1107,7 @@ class TransferFunctions(val cg : CallGraph, val hg : HeapGraph[InstanceKey], _hm
               else {
                 // add "edge not consumed" case split
                 val notConsumedQry = qry.clone
-                notConsumedQry.addLocalConstraint(LocalPtEdge(xLoc, ptX))
+                notConsumedQry.addLocalConstraint(PtEdge.make(xLoc, ptX))
                 notConsumedQry :: handleArrayStoreInternal(caseSplits)
               }
           }
@@ -1080,7 +1130,7 @@ class TransferFunctions(val cg : CallGraph, val hg : HeapGraph[InstanceKey], _hm
                     val res = qry.addPureConstraint(Pure.makeNeNullConstraint(p))
                     if (res) {
                       qry.removeHeapConstraint(e)
-                      qry.addHeapConstraint(ObjPtEdge(src, f, o))
+                      qry.addHeapConstraint(PtEdge.make(src, f, o))
                     }
                     res
                 }                
@@ -1202,7 +1252,7 @@ class TransferFunctions(val cg : CallGraph, val hg : HeapGraph[InstanceKey], _hm
                     val clone = qry.clone
                     if (Options.INDEX_SENSITIVITY) {
                       val snk = if (e != anyArrConstraint) ptYi else pureX
-                      if (clone.addHeapConstraint(ArrayPtEdge(e.src, e.fld, snk))) clone :: l
+                      if (clone.addHeapConstraint(PtEdge.make(e.src, e.fld, snk))) clone :: l
                       else l
                     } else clone :: l
                   }
@@ -1735,10 +1785,10 @@ class TransferFunctions(val cg : CallGraph, val hg : HeapGraph[InstanceKey], _hm
     val tbl = n.getIR().getSymbolTable()
     val useConst = tbl.isConstant(vUse)
     v match {
-      case ObjVar(rgn) =>                 
+      case o@ObjVar(_) =>                 
         if (useConst && !tbl.isStringConstant(vUse)) false // v is an objVar and thus cannot be null or another pure constant 
         else getPt(Var.makeLPK(vUse, n, hm), localConstraints, hg) match {
-          case Some((ptV, _)) => !ptV.rgn.intersect(rgn).isEmpty
+          case Some((ptV, _)) => ptV.intersects(o)
           case None => false // empty region means vUse is null, so it can't equal v 
         }
       case p@PureVar(_) =>
@@ -1793,18 +1843,52 @@ class TransferFunctions(val cg : CallGraph, val hg : HeapGraph[InstanceKey], _hm
       dropRelatedPureConstraints(h.snk, q)        
   }
   
+  /** @return false if the summary of @param callee shows that it cannot write to or initialize any field in
+    * @param heapConstraints, true if it might or if we have no summary */
+  private def summaryMayAffect(callee : CGNode, heapConstraints : MSet[HeapPtEdge]) : Boolean =
+    summaryStore.flatMap(store => store.get(callee)) match {
+      case Some(summary) => heapConstraints.exists(e => e match {
+        case ObjPtEdge(_, f : InterfaceMethodField, _) => false
+        case ObjPtEdge(_, InstanceFld(fld), _) =>
+          // array lengths are written by allocations, which the summary doesn't track
+          Fld.isArrayLengthFld(fld) || summary.writtenFields.contains(fld.getName.toString) ||
+          summary.initClasses.contains(fld.getDeclaringClass.getName.toString)
+        case StaticPtEdge(_, StaticFld(key), _) =>
+          callee.getMethod.isClinit || summary.writtenFields.contains(key.getField.getName.toString)
+        case ArrayPtEdge(_, _, _) => summary.writesArrays
+      })
+      case None => true
+    }
+
+  private def getReachable(callee : CGNode) : java.util.Collection[CGNode] = {
+    val reachable = DFS.getReachableNodes(cg, java.util.Collections.singleton(callee))
+    assert(reachable.contains(callee))
+    reachable
+  }
+
+  /** @return the pointer keys that may be modified by @param callee and its transitive callees */
+  private def getModKeys(callee : CGNode) : Set[PointerKey] = calleeModKeys.getOrElseUpdate(callee,
+    if (modRef != null) modRef.get(callee).toSet
+    else getReachable(callee).foldLeft (Set.empty[PointerKey]) ((keys, n) => keys ++ ownModKeys.getOrElseUpdate(n,
+      n.getIR() match {
+        case null => Set.empty[PointerKey]
+        case ir => ir.iterateAllInstructions().foldLeft (Set.empty[PointerKey]) ((keys, i) =>
+          keys ++ ModRef.make().getMod(n, hm, hg.getPointerAnalysis, i, null))
+      })))
+
+  /** @return the classes whose constructors are reachable from @param callee */
+  private def getReachableInits(callee : CGNode) : Set[IClass] = calleeInits.getOrElseUpdate(callee,
+    getReachable(callee).foldLeft (Set.empty[IClass]) ((s, n) => if (!n.getMethod.isInit()) s
+      else s + n.getMethod().getDeclaringClass()))
+
   // if dropConstraints is true, drops constraints produceable by callee -- otherwise, returns true if callee is relevant to qry
   private def dropCallConstraintsOrCheckCallRelevant(callee : CGNode, heapConstraints : MSet[HeapPtEdge],
-                                                     dropConstraints : Boolean, loopDrop : Boolean, qry : Qry) : Boolean = {
-    val modKeys = modRef.get(callee).toSet // set of pointer keys modified by the callee function
+                                                     dropConstraints : Boolean, loopDrop : Boolean,
+                                                     qry : Qry) : Boolean = summaryMayAffect(callee, heapConstraints) && {
+    val modKeys = getModKeys(callee) // set of pointer keys modified by the callee function
     val staticFlds = // static fields declared by the callee function (if any)
       if (callee.getMethod().isClinit()) callee.getMethod().getDeclaringClass().getDeclaredStaticFields().toSet else Set.empty[IField]
-    val reachableInits = { // constructors reachable from the callee function       
-      val reachable = DFS.getReachableNodes(cg, java.util.Collections.singleton(callee))
-      assert(reachable.contains(callee))
-      reachable.foldLeft (Set.empty[IClass]) ((s, callee) => if (!callee.getMethod.isInit()) s
-        else s + callee.getMethod().getDeclaringClass()) 
-    }
+    val reachableInits = getReachableInits(callee) // constructors reachable from the callee function
 
     // drop constraints and keep going if we're in drop mode, just return true otherwise
     def maybeDrop(e : HeapPtEdge) = {
@@ -1926,10 +2010,10 @@ class TransferFunctions(val cg : CallGraph, val hg : HeapGraph[InstanceKey], _hm
           // check that y and e.snk can refer to the same value
           if (mayEq(i.getVal(), e.snk, localConstraints, n) && { e.src match {
             // check that x and e.src can refer to the same value
-            case eSrc@ObjVar(rgn) =>
+            case eSrc@ObjVar(_) =>
               val x = Var.makeLPK(i.getRef(), n, hm)
               getPt(x, localConstraints, hg) match {
-                case Some((ptX, _)) => !ptX.rgn.intersect(rgn).isEmpty
+                case Some((ptX, _)) => ptX.intersects(eSrc)
                 case None => sys.error("Empty region fcor " + x)
               }                     
             case ClassVar(c) => true
@@ -1,5 +1,8 @@
 package edu.colorado.hopper.executor
 
+import java.util.concurrent.atomic.{AtomicInteger, AtomicReference}
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch, ForkJoinPool, RecursiveAction}
+
 import com.ibm.wala.analysis.typeInference.TypeInference
 import com.ibm.wala.cfg.ControlFlowGraph
 import com.ibm.wala.classLoader.IClass
@@ -24,11 +27,17 @@ object UnstructuredSymbolicExecutor {
   protected[executor] def MIN_DEBUG = DEBUG
   private[executor] val TRACE = false
   private[executor] val PRINT_IR = false
-  // save invariant maps that lead to refutations
-  private val SAVE_INVARIANT_MAPS = false
+  // keep the invariant maps of queries that are refuted for use in later queries. every path in the maps of a refuted
+  // query was refuted, so a later path that entails one of them will be refuted as well
+  private def SAVE_INVARIANT_MAPS = Options.KEEP_INVARIANT_MAPS
 
   // add path constraints from switch upon entering block rather than upon crossing case expression
   private val PRE_CONSTRAIN_SWITCHES = true
+
+  // number of threads exploring the paths of a query in parallel
+  private def PATH_THREADS = Options.PATH_THREADS
+  // remember (caller, call site, callee, entry query) combinations that were refuted and don't explore them again
+  private def USE_CALLEE_SUMMARIES = Options.CALLEE_SUMMARIES
 }
 
 class DefaultSymbolicExecutor(override val tf : TransferFunctions,
@@ -42,6 +51,9 @@ trait UnstructuredSymbolicExecutor extends SymbolicExecutor {
 
   // if true, keep path constraints from loop heads. otherwise, drop them
   val keepLoopConstraints : Boolean
+
+  // picks the next path to explore. clients can override this to choose a strategy that suits their queries
+  lazy val scheduler : PathScheduler = PathScheduler.make(Options.PATH_SCHEDULER)
   
   object WitnessFoundException extends Exception 
 
@@ -50,7 +62,7 @@ trait UnstructuredSymbolicExecutor extends SymbolicExecutor {
   
   val domCache = new LruMap[ControlFlowGraph[SSAInstruction,ISSABasicBlock],Dominators[ISSABasicBlock]](25)
   def getDominators(cfg : ControlFlowGraph[SSAInstruction,ISSABasicBlock]) : Dominators[ISSABasicBlock] =
-    domCache.getOrElseUpdate(cfg, Dominators.make(cfg, cfg.entry))
+    domCache.synchronized { domCache.getOrElseUpdate(cfg, Dominators.make(cfg, cfg.entry)) }
   
   def cleanup() : Unit = {
     clearInvariantMaps
@@ -89,7 +101,7 @@ trait UnstructuredSymbolicExecutor extends SymbolicExecutor {
       else {
         assert(p.callStack.size == 1)
         paths.foreach(p => assert(p.callStack.size == 1))
-        paths.foldLeft (failPaths) ((failPaths, p) => handleFakeWorldClinit(p))
+        paths.foldLeft (failPaths) ((failPaths, p) => handleFakeWorldClinit(p, failPaths))
       } 
     }
   }
@@ -162,6 +174,26 @@ trait UnstructuredSymbolicExecutor extends SymbolicExecutor {
     }
   }
 
+  /** explore @param enterPaths, which have just entered a callee from @param i in @param caller, until they return to
+    * the caller. @return the paths that got back to the caller plus @param skipPaths */
+  def executeCallees(enterPaths : List[Path], i : SSAInvokeInstruction, caller : CGNode, callStackSize : Int,
+                     skipPaths : List[Path]) : List[Path] = {
+    def test(p : Path) : Boolean = p.callStackSize != callStackSize
+    if (!USE_CALLEE_SUMMARIES) executeBackwardWhile(enterPaths, test, skipPaths)
+    else
+      // explore each entry separately so that we know which ones are refuted
+      enterPaths.foldLeft (skipPaths) ((failPaths, p) =>
+        if (calleeSummaries.isRefuted(caller, i, p.node, p)) {
+          if (Options.PRINT_REFS) println("Refuted by callee summary.")
+          failPaths
+        } else {
+          val entry = p.deepCopy
+          val newFailPaths = executeBackwardWhile(List(p), test, failPaths)
+          if (newFailPaths.size == failPaths.size) calleeSummaries.addRefuted(caller, i, entry.node, entry)
+          newFailPaths
+        })
+  }
+
   def executeInstr(paths : List[Path], instr : SSAInstruction, blk : ISSABasicBlock, node : CGNode, cfg : SSACFG,
                    isLoopBlk : Boolean, callStackSize : Int) : List[Path] = instr match {
     case instr : SSAInvokeInstruction =>
@@ -171,7 +203,7 @@ trait UnstructuredSymbolicExecutor extends SymbolicExecutor {
           println(s"Entering call ${ClassUtil.pretty(instr.getDeclaredTarget())} from ${ClassUtil.pretty(node)}; ${enterPaths.size} targets.")
         if (DEBUG)
           println(s"Entering call ${instr.getDeclaredTarget().getName()} from ${node.getMethod().getName()} full names ${ClassUtil.pretty(instr.getDeclaredTarget())} from ${ClassUtil.pretty(node)}")
-        val paths = executeBackwardWhile(enterPaths, p => p.callStackSize != callStackSize, skipPaths)
+        val paths = executeCallees(enterPaths, instr, node, callStackSize, skipPaths)
         if (DEBUG)
           println(s"Returning from call to ${ClassUtil.pretty(instr.getDeclaredTarget())} back to ${ClassUtil.pretty(node)}; have ${paths.size} paths.")
         paths
@@ -364,16 +396,21 @@ trait UnstructuredSymbolicExecutor extends SymbolicExecutor {
   // replace the current invariant maps with the ones in newMaps
   def resetInvariantMaps(newMaps : List[InvariantMap[_ <: Any]]) : Unit = {
     this.callerInvMap = newMaps(0).asInstanceOf[InvariantMap[(CGNode,CGNode)]] 
-    this.loopInvMap = newMaps(1).asInstanceOf[InvariantMap[Iterable[(CGNode,ISSABasicBlock)]]]     
+    this.loopInvMap = newMaps(1).asInstanceOf[InvariantMap[CallStackLoc]]     
+    calleeSummaries.clear
   }
   
   def clearInvariantMaps() : Unit = {
     callerInvMap.clear
     loopInvMap.clear
+    calleeSummaries.clear
   }
   
   var callerInvMap = new InvariantMap[(CGNode,CGNode)]
-  var loopInvMap = new InvariantMap[Iterable[(CGNode,ISSABasicBlock)]]
+  var loopInvMap = new InvariantMap[CallStackLoc]
+  // callee summaries are only valid alongside the invariant maps, so they are cleared whenever the maps are cleared or
+  // replaced
+  val calleeSummaries = new CalleeSummaries
   
   def executeBackwardIntraproceduralWhile(p : Path, passPaths : List[Path], failPaths : List[Path], test : Path => Boolean) : (List[Path], List[Path]) = {
     if (TRACE) logMethodAndTime("executeBackwardIntraproceduralWhile")
@@ -382,20 +419,23 @@ trait UnstructuredSymbolicExecutor extends SymbolicExecutor {
 
     // loop header--see if the invariant says we can stop executing
     def invariantImpliesPath(p: Path): Boolean = {
-      val res = loopInvMap.pathEntailsInv(p.callStack.stack.map(f => (f.node, f.blk)), p)
+      val res = loopInvMap.pathEntailsInv(p.callStack.loc, p)
       if (DEBUG && res) println(s"Hit fixed point at loop head $startBlk")
       res
     }
 
-    val loopHeader = LoopUtil.findRelatedLoopHeader(startBlk, ir)
+    // LoopUtil caches loop information in unsynchronized maps, so the workers of executeBackwardWhileParallel must take
+    // turns querying it
+    val loopHeader = LoopUtil.synchronized { LoopUtil.findRelatedLoopHeader(startBlk, ir) }
     loopHeader.foreach(loopHeader =>
       if (CFGUtil.endsWithConditionalInstr(startBlk)) {
         if (DEBUG) println(s"at loop head BB${loopHeader.getNumber()} on path $p")
         // don't do the loop invariant check if we're coming from outside the loop
-        if ((LoopUtil.getLoopBody(loopHeader, ir).contains(p.lastBlk) || LoopUtil.isDoWhileLoop(loopHeader, ir)) &&
-            invariantImpliesPath(p))
+        if (LoopUtil.synchronized {
+              LoopUtil.getLoopBody(loopHeader, ir).contains(p.lastBlk) || LoopUtil.isDoWhileLoop(loopHeader, ir)
+            } && invariantImpliesPath(p))
           return (passPaths, failPaths)
-      } else if (LoopUtil.isExplicitlyInfiniteLoop(loopHeader, ir) && // won't have any conditional branch instruction in this case
+      } else if (LoopUtil.synchronized { LoopUtil.isExplicitlyInfiniteLoop(loopHeader, ir) } && // won't have any conditional branch instruction in this case
                  invariantImpliesPath(p))
         return (passPaths, failPaths)
     )
@@ -681,8 +721,9 @@ trait UnstructuredSymbolicExecutor extends SymbolicExecutor {
        } else {
          assert (switchMap.containsKey(lastBlkNum),
                   s"switchMap $switchMap does not have an entry for $lastBlkNum ir ${p.node.getIR()}")
-         // otherwise, fork a case for each possible value that could have sent us to this block
-         switchMap(lastBlkNum).foldLeft (lst) ((lst, cond) => {
+         // otherwise, fork a case for each possible value that could have sent us to this block. filter out the
+         // infeasible values first so that we don't copy p for them
+         tf.getFeasibleSwitchCases(switchMap(lastBlkNum), p.qry, p.node).foldLeft (lst) ((lst, cond) => {
            val copy = p.deepCopy
            if (copy.addConstraintFromSwitch(cond, tf)) copy :: lst
            else lst // refuted by adding switch constraint
@@ -708,13 +749,10 @@ trait UnstructuredSymbolicExecutor extends SymbolicExecutor {
         joined
       } else {
         
-        def mergeRedundantPaths(paths : List[Path]) : List[Path] = {
-          // MinSet.make() is worst-case quadratic and uses an SMT solver to check logical implication. it *really* helps prune 
-          // redundant paths when the size of combined is small, but is absurdly expensive when the size of combined is large. 
-          // we try to trade off appropriately here, but this could certainly be evaluated and tuned better
-          if (paths.size < 10) MinSet.make(paths).toList
-          else paths // do .toSet?
-        }
+        // MinSet.make() is worst-case quadratic, but it compares cheap signatures of the paths first and only checks
+        // entailment (which may involve the SMT solver) for the pairs whose signatures allow it, so we can afford it
+        // regardless of the number of paths
+        def mergeRedundantPaths(paths : List[Path]) : List[Path] = MinSet.make(paths).toList
         
         val joinSuccs = CFGUtil.getSuccessors(join, cfg)                        
         if (joinSuccs.size == 2) {         
@@ -764,7 +802,9 @@ trait UnstructuredSymbolicExecutor extends SymbolicExecutor {
   @annotation.tailrec
   final def executeBackwardWhileHelper(passPaths : List[Path], failPaths : List[Path], test : Path => Boolean) : (List[Path], List[Path]) = 
     passPaths match {
-      case path :: rest =>
+      case Nil => (Nil, failPaths)
+      case _ =>
+        val (path, rest) = scheduler.next(passPaths)
         checkTimeout
 
         if (DEBUG) {
@@ -776,9 +816,56 @@ trait UnstructuredSymbolicExecutor extends SymbolicExecutor {
         val (newPassPaths, newFailPaths) = executeBackwardIntraproceduralWhile(path, rest, failPaths, test)
         assert(newFailPaths.size >= failPaths.size && newPassPaths.size >= rest.size, "dropped path on the floor!")
         executeBackwardWhileHelper(newPassPaths, newFailPaths, test)
-      case Nil => (Nil, failPaths)
     }
   
+  // shared by all of the queries this executor explores. created on first use so that executors that explore
+  // sequentially never start any threads. the workers are daemon threads, so an idle pool does not keep the JVM alive
+  private lazy val pathPool =
+    new ForkJoinPool(if (PATH_THREADS > 0) PATH_THREADS else Runtime.getRuntime.availableProcessors)
+
+  /** like executeBackwardWhile, but explores the paths on a work-stealing pool of PATH_THREADS workers. each worker
+    * pushes a path through one block (and whatever callees/joins that involves) and forks the resulting paths; idle
+    * workers steal forked paths from busy ones. the first WitnessFoundException or BudgetExceededException stops all of
+    * the workers and is rethrown here. paths are explored in a different order than sequentially, so invariant maps may
+    * be widened at different points; agreement with sequential exploration has not yet been checked on the regression
+    * suites, which is why PATH_THREADS defaults to 1.
+    * each worker starts from empty pass/fail lists rather than the paths of its siblings. this does not change results:
+    * executeBackwardIntraproceduralWhile and its callees only ever prepend to those lists and never inspect them, so
+    * collecting the new paths of every worker yields the same sets as threading the lists through sequentially */
+  final def executeBackwardWhileParallel(paths : List[Path], test : Path => Boolean) : List[Path] = {
+    val failPaths = new ConcurrentLinkedQueue[Path]
+    // first exception thrown by a worker. once set, workers drop the paths they would have explored
+    val abort = new AtomicReference[Throwable]
+    // paths forked but not yet finished. exploration is done when this reaches 0. workers decrement it even after an
+    // abort, so reaching 0 also means that no worker is still touching this query
+    val pending = new AtomicInteger(paths.size)
+    val done = new CountDownLatch(1)
+
+    class PathTask(p : Path) extends RecursiveAction {
+      override def compute() : Unit = {
+        try {
+          if (abort.get == null) {
+            checkTimeout
+            val (newPassPaths, newFailPaths) = executeBackwardIntraproceduralWhile(p, Nil, Nil, test)
+            newFailPaths.foreach(p => failPaths.add(p))
+            pending.addAndGet(newPassPaths.size)
+            // fork rather than invokeAll so that we don't hold a stack frame per block on the path
+            newPassPaths.foreach(p => new PathTask(p).fork())
+          }
+        } catch {
+          case e : Throwable => abort.compareAndSet(null, e)
+        }
+        if (pending.decrementAndGet() == 0) done.countDown()
+      }
+    }
+
+    if (paths.isEmpty) done.countDown()
+    paths.foreach(p => pathPool.execute(new PathTask(p)))
+    done.await()
+    Option(abort.get).foreach(e => throw e)
+    failPaths.toList
+  }
+
   def checkTimeout() : Unit = if (timekeeper.curTimeSeconds > Options.TIMEOUT) {
     if (DEBUG) println(s"TIMEOUT: budget ${Options.TIMEOUT} exceeded: took ${timekeeper.curTimeSeconds}")
     throw BudgetExceededException
@@ -808,19 +895,29 @@ trait UnstructuredSymbolicExecutor extends SymbolicExecutor {
     if (PRINT_IR) println("starting in " + qry.node.getIR())
     timekeeper.start
     val oldInvMaps = if (SAVE_INVARIANT_MAPS) Some(this.cloneInvariantMaps) else None
+    // true if every path was refuted. only then are the new invariants safe to keep. we also require the default test,
+    // since a custom one stops paths early for reasons that later queries need not share
+    var refuted = false
     try {
       val startPath = List(new Path(qry))
-      test match {
-        case Some(test) => executeBackwardWhile(startPath, test)
-        case None => executeBackwardWhile(startPath, Util.RET_TRUE)
+      val pathTest : Path => Boolean = test match {
+        case Some(test) => test
+        case None => Util.RET_TRUE
       }
+      // only the outermost exploration is parallel; callees and joins are explored by the worker that reaches them
+      val pathsAtEntry =
+        if (PATH_THREADS == 1) executeBackwardWhile(startPath, pathTest)
+        else executeBackwardWhileParallel(startPath, pathTest)
+      refuted = pathsAtEntry.isEmpty && test.isEmpty
+      pathsAtEntry
     } catch {
       case WitnessFoundException =>
         println("Possible witness found, can't refute.")
         null
     } finally {
       qry.dispose
-      cleanup(oldInvMaps)
+      if (SAVE_INVARIANT_MAPS) InvariantMap.recordQuery(kept = refuted)
+      cleanup(if (refuted) None else oldInvMaps)
     }
   }
 }
\ No newline at end of file
@@ -0,0 +1,36 @@
+package edu.colorado.hopper.jumping
+
+import com.ibm.wala.ipa.callgraph.CGNode
+import com.ibm.wala.ssa.SSAInstruction
+import edu.colorado.hopper.util.MemoTable
+
+/** Memo tables for the control-feasibility facts used by ControlFeasibilityRelevanceRelation. the facts depend only on
+  * the program, so one set of tables can be shared by the relevance relations of all queries (and of all threads) */
+class ControlFeasibilityFacts {
+  private val MAX_CUTS = 50000
+
+  // (node, relevant instrs) -> (instructions at the frontier of a backward search from the exit of node, did the
+  // instructions form a cut?). the cut depends on the whole set of relevant instructions, so we can't key it on
+  // single instructions; instead, we bound the table, since the sets vary from query to query and the table would
+  // otherwise grow for as long as the client runs
+  val intraproceduralCut =
+    new MemoTable[(CGNode,Set[SSAInstruction]),(Set[SSAInstruction],Boolean)]("intraproceduralCut",
+                                                                              MAX_CUTS)
+  // (node, instr) -> conditionals that may enclose instr
+  val dominatingAssumes = new MemoTable[(CGNode,SSAInstruction),Set[SSAInstruction]]("dominatingAssumes")
+  // node -> nodes on the library/application frontier that may call node. only used by AndroidRelevanceRelation
+  val libraryAppFrontierNodes = new MemoTable[CGNode,Set[CGNode]]("libraryAppFrontierNodes")
+
+  private var precomputed = false
+
+  /** run @param precompute unless another relevance relation sharing these facts has already done so */
+  def precomputeOnce(precompute : => Unit) : Unit = this.synchronized {
+    if (!precomputed) {
+      precompute
+      precomputed = true
+    }
+  }
+
+  def printStats() : Unit =
+    List(intraproceduralCut, dominatingAssumes, libraryAppFrontierNodes).foreach(t => t.printStats())
+}
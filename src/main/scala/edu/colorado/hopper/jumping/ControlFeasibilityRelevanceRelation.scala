@@ -8,13 +8,14 @@ import com.ibm.wala.ipa.cfg.PrunedCFG
 import com.ibm.wala.ipa.cha.IClassHierarchy
 import com.ibm.wala.ssa._
 import com.ibm.wala.util.graph.dominators.Dominators
-import com.ibm.wala.util.graph.traverse.{BFSIterator, BFSPathFinder}
-import com.ibm.wala.util.intset.OrdinalSet
+import com.ibm.wala.util.graph.traverse.BFSIterator
 import edu.colorado.hopper.state._
+import edu.colorado.hopper.util.{PtUtil, Region}
 import edu.colorado.thresher.core.Options
 import edu.colorado.walautil.{CFGUtil, ClassUtil, GraphUtil, IRUtil}
 
 import scala.collection.JavaConversions._
+import scala.collection.immutable.BitSet
 
 object ControlFeasibilityRelevanceRelation {
 
@@ -23,9 +24,12 @@ object ControlFeasibilityRelevanceRelation {
 // relevance relation that filters away instructions that are not control-feasible based on domain-specific information
 // about Android
 class ControlFeasibilityRelevanceRelation(cg : CallGraph, hg : HeapGraph[InstanceKey], hm : HeapModel,
-                                          cha : IClassHierarchy,
-                                          cgTransitiveClosure : java.util.Map[CGNode,OrdinalSet[CGNode]] = null)
-  extends RelevanceRelation(cg, hg, hm, cha, cgTransitiveClosure) {
+                                          cha : IClassHierarchy, val facts : ControlFeasibilityFacts,
+                                          indices : RelevanceIndices)
+  extends RelevanceRelation(cg, hg, hm, cha, indices) {
+
+  def this(cg : CallGraph, hg : HeapGraph[InstanceKey], hm : HeapModel, cha : IClassHierarchy) =
+    this(cg, hg, hm, cha, new ControlFeasibilityFacts, new RelevanceIndices(cg, hg, cha))
 
   val DEBUG = Options.DEBUG
 
@@ -108,8 +112,7 @@ class ControlFeasibilityRelevanceRelation(cg : CallGraph, hg : HeapGraph[Instanc
     false
   }
 
-  def isCallableFrom(snk: CGNode, src: CGNode, cg: CallGraph): Boolean =
-    new BFSPathFinder[CGNode](cg, src, snk).find() != null
+  def isCallableFrom(snk: CGNode, src: CGNode): Boolean = reachability.canReach(src, snk)
 
 
   case class RelevantNodeInfo(val relevantInstrs: Set[SSAInstruction], val callableFromCurNode: Boolean,
@@ -122,77 +125,26 @@ class ControlFeasibilityRelevanceRelation(cg : CallGraph, hg : HeapGraph[Instanc
   // the ones we will hit first when exploring the CFG backward from the exit block
   def filterNodeModMapIntraProcedural(nodeModMap: Map[CGNode, Set[SSAInstruction]],
                                       curNode: CGNode): Map[CGNode, RelevantNodeInfo] = {
-
-
-    def filterRelevantInstrs(iter: BFSIterator[ISSABasicBlock],
-                             allRelInstrs: Set[SSAInstruction]): (Set[SSAInstruction], Set[ISSABasicBlock]) = {
-      // given a set of relevant instructions and a backward iterator over the CFG for some method return the (set of
-      // visted rel instructions, set of visited blocks)
-      def f(acc: (Set[SSAInstruction], Set[ISSABasicBlock]),
-            blk: ISSABasicBlock): (Set[SSAInstruction], Set[ISSABasicBlock]) = {
-        val (visitedRelInstrs, reachedBlocks) = acc
-        val newVisitedRelInstrs =
-          blk.find(instr => allRelInstrs.contains(instr)) match {
-            case Some(instr) => visitedRelInstrs + instr
-            case None => visitedRelInstrs
-          }
-        (newVisitedRelInstrs, reachedBlocks + blk)
-      }
-      GraphUtil.bfsIterFold(iter, (Set.empty[SSAInstruction], Set.empty[ISSABasicBlock]), f)
-    }
-
     nodeModMap.map(entry => {
       val (node, relInstrs) = entry
       // not sound to do intraproc filtering if curNode can be (transitively) called from node; have to consider the
       // possibility that we entered curNode "from the middle" instead of from the exit block.
       // TODO: we can be more precise than this by still doing intraproc filtering, but starting from all call sites
       //  in node that may (transitively) call curNode rather than from the exit block of node
-      val isCallableFromCurNode = isCallableFrom(curNode, node, cg)
+      val isCallableFromCurNode = isCallableFrom(curNode, node)
       if (isCallableFromCurNode) {
         if (DEBUG) println(s"${ClassUtil.pretty(curNode)} callable from ${ClassUtil.pretty(node)}, not filtering")
         node -> RelevantNodeInfo(relInstrs, callableFromCurNode = isCallableFromCurNode, instructionsFormCut = false)
       } else {
         // seperate generated instructions from regular instructions, since generated instructions have no ordering
         // (or even representation) in the CFG
-        val (generatedInstrs, otherInstrs) = relInstrs.partition(i => IRUtil.isGeneratedInstruction(i))
-        if (otherInstrs.isEmpty) // we have only generated instructions, can't do any intraproc filtering
+        if (relInstrs.forall(i => IRUtil.isGeneratedInstruction(i))) // can't do any intraproc filtering
           node -> RelevantNodeInfo(relInstrs, callableFromCurNode = isCallableFromCurNode, instructionsFormCut = true)
         else {
-          // have some non-generated instructions, let's try to filter
-          if (DEBUG) {
-            println("Before filtering")
-            relInstrs.foreach(i => {
-              print(s"${ClassUtil.pretty(node)}:");
-              ClassUtil.pp_instr(i, node.getIR);
-              println
-            })
-          }
-          val cfg = node.getIR.getControlFlowGraph
-          // perform backward BFS that terminates search along a path when it hits a relevant instruction
-          val iter =
-            new BFSIterator[ISSABasicBlock](cfg, cfg.exit()) {
-              override def getConnected(blk: ISSABasicBlock) =
-                if (blk.exists(instr => relInstrs.contains(instr))) java.util.Collections.emptyIterator()
-                // TODO: this isn't sound w.r.t exceptions--make sure none of the relevant instructions are contained
-                // in a try block
-                else cfg.getNormalPredecessors(blk).iterator()
-            }
-          val (filteredInstrs, reachedBlocks) = filterRelevantInstrs(iter, otherInstrs)
-          // if the filtering search did not reach the entry block, we found a cut in the CFG consisting only of
-          // relevant blocks ad described in the comment above
-          val relevantInstructionsFormCut = !reachedBlocks.contains(cfg.entry())
-          val finalRelevantInstrs =
-            if (relevantInstructionsFormCut) filteredInstrs else filteredInstrs ++ generatedInstrs
-          // this assertion can fail in the case that a method always throws an exception at the end
-          //assert(!finalRelevantInstrs.isEmpty)
-          if (DEBUG) {
-            println(s"Found relevant cut? $relevantInstructionsFormCut")
-            println("After filtering")
-            finalRelevantInstrs.foreach(i => {
-              ClassUtil.pp_instr(i, node.getIR);
-              println
-            })
-          }
+          // have some non-generated instructions, let's try to filter. the result depends only on node and relInstrs
+          val (finalRelevantInstrs, relevantInstructionsFormCut) =
+            facts.intraproceduralCut.getOrElseUpdate((node, relInstrs),
+                                                     filterRelevantInstrsIntraProcedural(node, relInstrs))
           node ->
             RelevantNodeInfo(finalRelevantInstrs, callableFromCurNode = isCallableFromCurNode,
               instructionsFormCut = relevantInstructionsFormCut)
@@ -201,6 +153,65 @@ class ControlFeasibilityRelevanceRelation(cg : CallGraph, hg : HeapGraph[Instanc
     })
   }
 
+  /** @return the relevant instructions @param relInstrs in @param node that we will hit first when exploring the CFG of
+    * node backward from its exit block, and true if these instructions form a cut of the CFG (see above) */
+  private def filterRelevantInstrsIntraProcedural(node : CGNode,
+                                                  relInstrs : Set[SSAInstruction]) : (Set[SSAInstruction],Boolean) = {
+    def filterRelevantInstrs(iter: BFSIterator[ISSABasicBlock],
+                             allRelInstrs: Set[SSAInstruction]): (Set[SSAInstruction], Set[ISSABasicBlock]) = {
+      // given a set of relevant instructions and a backward iterator over the CFG for some method return the (set of
+      // visted rel instructions, set of visited blocks)
+      def f(acc: (Set[SSAInstruction], Set[ISSABasicBlock]),
+            blk: ISSABasicBlock): (Set[SSAInstruction], Set[ISSABasicBlock]) = {
+        val (visitedRelInstrs, reachedBlocks) = acc
+        val newVisitedRelInstrs =
+          blk.find(instr => allRelInstrs.contains(instr)) match {
+            case Some(instr) => visitedRelInstrs + instr
+            case None => visitedRelInstrs
+          }
+        (newVisitedRelInstrs, reachedBlocks + blk)
+      }
+      GraphUtil.bfsIterFold(iter, (Set.empty[SSAInstruction], Set.empty[ISSABasicBlock]), f)
+    }
+
+    val (generatedInstrs, otherInstrs) = relInstrs.partition(i => IRUtil.isGeneratedInstruction(i))
+    if (DEBUG) {
+      println("Before filtering")
+      relInstrs.foreach(i => {
+        print(s"${ClassUtil.pretty(node)}:");
+        ClassUtil.pp_instr(i, node.getIR);
+        println
+      })
+    }
+    val cfg = node.getIR.getControlFlowGraph
+    // perform backward BFS that terminates search along a path when it hits a relevant instruction
+    val iter =
+      new BFSIterator[ISSABasicBlock](cfg, cfg.exit()) {
+        override def getConnected(blk: ISSABasicBlock) =
+          if (blk.exists(instr => relInstrs.contains(instr))) java.util.Collections.emptyIterator()
+          // TODO: this isn't sound w.r.t exceptions--make sure none of the relevant instructions are contained
+          // in a try block
+          else cfg.getNormalPredecessors(blk).iterator()
+      }
+    val (filteredInstrs, reachedBlocks) = filterRelevantInstrs(iter, otherInstrs)
+    // if the filtering search did not reach the entry block, we found a cut in the CFG consisting only of
+    // relevant blocks ad described in the comment above
+    val relevantInstructionsFormCut = !reachedBlocks.contains(cfg.entry())
+    val finalRelevantInstrs =
+      if (relevantInstructionsFormCut) filteredInstrs else filteredInstrs ++ generatedInstrs
+    // this assertion can fail in the case that a method always throws an exception at the end
+    //assert(!finalRelevantInstrs.isEmpty)
+    if (DEBUG) {
+      println(s"Found relevant cut? $relevantInstructionsFormCut")
+      println("After filtering")
+      finalRelevantInstrs.foreach(i => {
+        ClassUtil.pp_instr(i, node.getIR);
+        println
+      })
+    }
+    (finalRelevantInstrs, relevantInstructionsFormCut)
+  }
+
   /** @return true if callee is called on all paths from the entry block of @param caller */
   def mustBeCalledFrom(callee: CGNode, caller: CGNode): Boolean = {
     val ir = caller.getIR
@@ -246,7 +257,7 @@ class ControlFeasibilityRelevanceRelation(cg : CallGraph, hg : HeapGraph[Instanc
   }
 
   /* @return true if in all concrete executions that call n2, n1 is called before n2. we write this as n1 < n2 */
-  // pre: nodeRelevantInfoMap(n1).instructionsFormCut && !isCallableFrom(n2, n1, cg)
+  // pre: nodeRelevantInfoMap(n1).instructionsFormCut && !isCallableFrom(n2, n1)
   def mustHappenBefore(n1: CGNode, n2: CGNode, checked: Set[(CGNode, CGNode)] = Set.empty): Boolean = {
     if (checked.contains((n1, n2))) false
     else
@@ -314,20 +325,20 @@ class ControlFeasibilityRelevanceRelation(cg : CallGraph, hg : HeapGraph[Instanc
     nodeInstrMap.map(entry => {
       val (node, relInstructions) = entry
       val ir = node.getIR
-      val cfg = CFGUtil.getBackEdgePrunedCFG(ir.getControlFlowGraph)
+      lazy val cfg = CFGUtil.getBackEdgePrunedCFG(ir.getControlFlowGraph) // only needed on a miss
       val newRelInstructions =
         relInstructions.foldLeft (relInstructions) ((relInstructions, i) => {
           if (IRUtil.isGeneratedInstruction(i)) relInstructions
-          else CFGUtil.findInstr(ir, i) match {
+          else relInstructions ++ facts.dominatingAssumes.getOrElseUpdate((node, i), CFGUtil.findInstr(ir, i) match {
             case Some((blk, _)) =>
-              getDominatingCondBlks(blk, cfg).foldLeft (relInstructions) ((relInstructions, blk) => {
-                blk.foldLeft (relInstructions) ((relInstructions, i) => i match {
-                  case i : SSAConditionalBranchInstruction => relInstructions + i
-                  case _ => relInstructions
+              getDominatingCondBlks(blk, cfg).foldLeft (Set.empty[SSAInstruction]) ((conds, blk) => {
+                blk.foldLeft (conds) ((conds, i) => i match {
+                  case i : SSAConditionalBranchInstruction => conds + i
+                  case _ => conds
                 })
               })
-            case None => relInstructions
-          }
+            case None => Set.empty[SSAInstruction]
+          })
         })
       node -> newRelInstructions
     })
@@ -362,25 +373,19 @@ class ControlFeasibilityRelevanceRelation(cg : CallGraph, hg : HeapGraph[Instanc
       })
     }
 
-    def getLocalPredsOfSuccs(k : PointerKey,
-                             s : Set[LocalPointerKey] = Set.empty[LocalPointerKey]) : Set[LocalPointerKey] =
-      hg.getSuccNodes(k).foldLeft (s) ((s, k) =>
-        hg.getPredNodes(k).foldLeft (s) ((s, k) => k match {
-          case k: LocalPointerKey => s + k
-          case _ => s
-        })
-      )
+    // the locals that may point to whatever k points to, as a bitset (see LocalPredIndex)
+    def getLocalPredsOfSuccs(k : PointerKey) : BitSet =
+      localPredIndex.getLocalPredBits(Region.toBits(PtUtil.getPt(k, hg)))
 
     q.heapConstraints.foldLeft (Set.empty[(CGNode,SSAConditionalBranchInstruction)]) ((s, e) => e match {
       case ObjPtEdge(ObjVar(rgn), InstanceFld(fld), p@PureVar(_)) if q.isNull(p) =>
         // get local pointer keys that point at the value pointed at by fld
-        val localPointers =
-          rgn.foldLeft (Set.empty[LocalPointerKey]) ((s, k) =>
-            getLocalPredsOfSuccs(hm.getPointerKeyForInstanceField(k, fld), s)
-          ).filter(k => !ClassUtil.isLibrary(k.getNode))
+        val localPointerBits =
+          rgn.foldLeft (BitSet.empty) ((bits, k) => bits | getLocalPredsOfSuccs(hm.getPointerKeyForInstanceField(k, fld)))
+        val localPointers = localPredIndex.toLocals(localPointerBits).filter(k => !ClassUtil.isLibrary(k.getNode))
         getRelevantAssumesForLocalPointers(localPointers, s)
       case StaticPtEdge(_, StaticFld(fld), p@PureVar(_)) if q.isNull(p) =>
-        val localPointers = getLocalPredsOfSuccs(fld)
+        val localPointers = localPredIndex.toLocals(getLocalPredsOfSuccs(fld))
         getRelevantAssumesForLocalPointers(localPointers, s)
       case _ => s
     })
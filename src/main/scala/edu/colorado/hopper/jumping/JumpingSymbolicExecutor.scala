@@ -3,7 +3,7 @@ package edu.colorado.hopper.jumping
 import com.ibm.wala.classLoader.IField
 import com.ibm.wala.ipa.callgraph.CGNode
 import com.ibm.wala.ssa.{IR, ISSABasicBlock}
-import edu.colorado.hopper.executor.{TransferFunctions, UnstructuredSymbolicExecutor}
+import edu.colorado.hopper.executor.{PathScheduler, TransferFunctions, UnstructuredSymbolicExecutor}
 import edu.colorado.hopper.jumping.JumpingSymbolicExecutor._
 import edu.colorado.hopper.state._
 import edu.colorado.hopper.util.PtUtil
@@ -24,6 +24,9 @@ class DefaultJumpingSymbolicExecutor(override val tf : TransferFunctions,
 
 trait JumpingSymbolicExecutor extends UnstructuredSymbolicExecutor {
   val rr : RelevanceRelation
+
+  // we have a relevance relation, so we can support the cost-guided scheduler too
+  override lazy val scheduler : PathScheduler = PathScheduler.make(Options.PATH_SCHEDULER, Some(rr))
   
   var jmpNum = 0 
   
@@ -56,7 +59,8 @@ trait JumpingSymbolicExecutor extends UnstructuredSymbolicExecutor {
   override def resetInvariantMaps(newMaps : List[InvariantMap[_ <: Any]]) : Unit = {
     this.piecewiseInvMap = newMaps(0).asInstanceOf[InvariantMap[(CGNode,WalaBlock,Int)]] 
     this.callerInvMap = newMaps(1).asInstanceOf[InvariantMap[(CGNode,CGNode)]] 
-    this.loopInvMap = newMaps(2).asInstanceOf[InvariantMap[Iterable[(CGNode,ISSABasicBlock)]]]   
+    this.loopInvMap = newMaps(2).asInstanceOf[InvariantMap[CallStackLoc]]   
+    calleeSummaries.clear
   }
   
   override def clearInvariantMaps() : Unit = {
@@ -67,13 +71,11 @@ trait JumpingSymbolicExecutor extends UnstructuredSymbolicExecutor {
   override def cleanup() = {
     super.cleanup()
     failedObjInvariants.clear()
-    rr.cleanup()
   }
 
   override def cleanup(oldInvMaps : Option[List[InvariantMap  [_]]]) {
     super.cleanup(oldInvMaps)
     failedObjInvariants.clear()
-    rr.cleanup
   }
   
   /**
@@ -5,11 +5,12 @@ import com.ibm.wala.ipa.callgraph.propagation.{HeapModel, InstanceKey, PointerKe
 import com.ibm.wala.ipa.callgraph.{CGNode, CallGraph}
 import com.ibm.wala.ipa.cha.IClassHierarchy
 import com.ibm.wala.ssa.SSAInvokeInstruction
-import com.ibm.wala.util.graph.traverse.{BFSPathFinder, DFS}
+import com.ibm.wala.util.graph.traverse.BFSPathFinder
 import edu.colorado.hopper.executor.TransferFunctions
 import edu.colorado.hopper.executor.TransferFunctions._
 import edu.colorado.hopper.jumping.JumpingTransferFunctions._
 import edu.colorado.hopper.state.Qry
+import edu.colorado.hopper.util.CGReachability
 import edu.colorado.thresher.core.Options
 import edu.colorado.walautil.{ClassUtil, GraphUtil}
 
@@ -21,14 +22,15 @@ object JumpingTransferFunctions {
   // call graph. this dropping will allow us to soundly report that the callee is irrelevant
   private val AGGRESSIVE_CALLEE_CONSTRAINT_DROPPING = true
 
-  private def defaultGetReachable(cg : CallGraph, n : CGNode) : Set[CGNode] =
-    DFS.getReachableNodes(cg, java.util.Collections.singleton(n)).toSet
+  def doesCalleeModifyHeap(callee : CGNode, qry : Qry, rr : RelevanceRelation, cg : CallGraph) : Boolean =
+    doesCalleeModifyHeap(callee, qry, rr, cg, rr.reachability)
 
+  /** @param reachability - index deciding which nodes are (transitively) callable from @param callee */
   def doesCalleeModifyHeap(callee : CGNode, qry : Qry, rr : RelevanceRelation, cg : CallGraph,
-                           getReachable : (CallGraph, CGNode) => Set[CGNode] = defaultGetReachable) : Boolean = {
+                           reachability : CGReachability) : Boolean = {
 
-    // set of nodes reachable from call at i
-    val calleeReachable = getReachable(cg, callee)
+    // is node reachable from call at i?
+    def calleeReaches(node : CGNode) : Boolean = reachability.canReach(callee, node)
 
     // TODO: use mods first, then use prods to decide whether to drop or not. only compute prods for an individual constraint
     if (AGGRESSIVE_CALLEE_CONSTRAINT_DROPPING) {
@@ -48,7 +50,7 @@ object JumpingTransferFunctions {
       constraintModMap.exists(entry =>
         entry._2.exists(pair => {
         val node = pair._1
-        calleeReachable.contains(node) && { // node is reachable from callee
+        calleeReaches(node) && { // node is reachable from callee
           val isKReachable = kReachable.contains(node)
           if (!isKReachable && qry.heapConstraints.contains(entry._1) &&
               //rr.getProducers(entry._1, qry).exists(pair => pair._1 == node))
@@ -69,7 +71,7 @@ object JumpingTransferFunctions {
       val constraintModMap = rr.getConstraintModifierMap(qry, ignoreLocalConstraints = true)
       constraintModMap.exists(entry => entry._2.exists(pair => {
         val node = pair._1
-        val rel = calleeReachable.contains(node)
+        val rel = calleeReaches(node)
         if (rel && DEBUG) {
           println(s"Callee is relevant: ${ClassUtil.pretty(callee)} because transitive callee is relevant: ${ClassUtil.pretty(node)}")
           print("Instr "); ClassUtil.pp_instr(pair._2, node.getIR()); println(s" relevant to constraint ${entry._1}")
@@ -82,14 +84,17 @@ object JumpingTransferFunctions {
     }
   }
 
+  def dropCallConstraints(qry : Qry, callee : CGNode, rr : RelevanceRelation, cg : CallGraph) : Unit =
+    dropCallConstraints(qry, callee, rr, cg, rr.reachability)
+
+  /** @param reachability - index deciding which nodes are (transitively) callable from @param callee */
   def dropCallConstraints(qry : Qry, callee : CGNode, rr : RelevanceRelation, cg : CallGraph,
-                          getReachable : (CallGraph, CGNode) => Set[CGNode] = defaultGetReachable) : Unit = {
-    val reachable = getReachable(cg, callee)
+                          reachability : CGReachability) : Unit = {
 
     val constraintProdMap = rr.getConstraintModifierMap(qry, ignoreLocalConstraints = true)
     constraintProdMap.foreach(pair => {
       val (constraint, producers) = pair
-      producers.find(pair => reachable.contains(pair._1)) match {
+      producers.find(pair => reachability.canReach(callee, pair._1)) match {
         case Some(snk) =>
           qry.removeConstraint(constraint)
           if (DEBUG) {
@@ -0,0 +1,172 @@
+package edu.colorado.hopper.jumping
+
+import java.util.concurrent.atomic.AtomicLong
+
+import com.ibm.wala.ipa.callgraph.CGNode
+import com.ibm.wala.ipa.callgraph.propagation.InstanceKey
+import com.ibm.wala.ssa.SSAInstruction
+import edu.colorado.hopper.client.UnitTests
+import edu.colorado.hopper.state.{ArrayFld, HeapPtEdge, LocalPtEdge, ObjVar, Pure, PtEdge, PureVar, Val, Var}
+import edu.colorado.thresher.core.Options
+
+import scala.collection.JavaConversions._
+
+object ProducerCache {
+  // rough sizes (in bytes) of a cache entry, not counting its instructions, and of each (node, instruction) pair
+  private[jumping] val ENTRY_BYTES = 160
+  private[jumping] val INSTR_BYTES = 48
+
+  // counters shared by all producer caches
+  private val hits = new AtomicLong
+  private val misses = new AtomicLong
+  private val evictions = new AtomicLong
+
+  /** @return the memory budget (in bytes) of a producer cache, as set by PRODUCER_CACHE_MB */
+  def budget : Long =
+    if (Options.PRODUCER_CACHE_MB >= 0) Options.PRODUCER_CACHE_MB * 1024L * 1024L
+    else Runtime.getRuntime().maxMemory() / 32
+
+  /** @return the parts of @param e that its producers depend on. objects are represented by their regions rather than
+    * their identities, so edges between different ObjVar's with the same regions share a key. pure vars are represented
+    * by their types and array indices are dropped, since what the solver knows about them differs from query to query */
+  def makeKey(e : PtEdge) : Any = {
+    def abstractVal(v : Val) : Any = v match {
+      case o@ObjVar(_) => o.bits
+      case p@PureVar(_) => p.typ
+      case v => v
+    }
+    e match {
+      case e : HeapPtEdge =>
+        val src = e.src match {
+          case o@ObjVar(_) => o.bits
+          case src => src
+        }
+        val fld = e.fld match {
+          case ArrayFld(keys, typ, _) => (keys, typ)
+          case fld => fld
+        }
+        (src, fld, abstractVal(e.snk))
+      case LocalPtEdge(src, snk) => (src, abstractVal(snk))
+    }
+  }
+
+  def hitRate : Double = {
+    val (h, m) = (hits.get, misses.get)
+    if (h + m == 0) 0.0 else h.toDouble / (h + m)
+  }
+
+  def printStats() : Unit =
+    println(s"Producer caches: ${hits.get} hits, ${misses.get} misses, ${evictions.get} evictions, hit rate $hitRate")
+}
+
+/** LRU map from (abstracted) points-to edges to producer instructions. rather than holding a fixed number of entries,
+  * the cache holds as many as fit in @param budget bytes, since the producers of an edge range from a handful of
+  * instructions to thousands. the keys don't depend on the query, so one cache can serve every query over a program
+  * (see RelevanceIndices). it holds both the producers of edges and the candidate producers of edges whose producers
+  * depend on the solver context, which share the budget */
+class ProducerCache(budget : Long = ProducerCache.budget) {
+  import ProducerCache._
+
+  private val map = new java.util.LinkedHashMap[Any,List[(CGNode,SSAInstruction)]](16, 0.75f, true)
+  private var bytes = 0L
+
+  private def weight(prods : List[(CGNode,SSAInstruction)]) : Long = ENTRY_BYTES + INSTR_BYTES * prods.size
+
+  /** @return the producers (or, if @param candidates is true, the candidate producers) cached for @param e, computing
+    * them with @param compute on a miss */
+  def getOrElseUpdate(e : PtEdge, candidates : Boolean,
+                      compute : => List[(CGNode,SSAInstruction)]) : List[(CGNode,SSAInstruction)] = {
+    val key = (candidates, makeKey(e))
+    map.synchronized { map.get(key) } match {
+      case null =>
+        // don't hold the lock while computing producers, which may take a while
+        val prods = compute
+        misses.incrementAndGet()
+        map.synchronized {
+          val old = map.put(key, prods)
+          if (old != null) bytes -= weight(old)
+          bytes += weight(prods)
+          // evict least recently used entries until we are within budget, keeping the entry we just added
+          val iter = map.entrySet().iterator()
+          while (bytes > budget && map.size > 1) {
+            val eldest = iter.next()
+            bytes -= weight(eldest.getValue())
+            iter.remove()
+            evictions.incrementAndGet()
+          }
+        }
+        prods
+      case prods =>
+        hits.incrementAndGet()
+        prods
+    }
+  }
+
+  def size : Int = map.synchronized { map.size }
+
+  def clear() : Unit = map.synchronized {
+    map.clear()
+    bytes = 0
+  }
+}
+
+object ProducerCacheTests extends UnitTests {
+  private lazy val walaRes = makeWalaRes("casts/HashtableEnumeratorRefute")
+  private lazy val nodes = walaRes.cg.filter(n => n.getIR() != null).toIndexedSeq
+  private lazy val key = walaRes.hg.collect({ case k : InstanceKey => k }).head
+
+  // an edge from a local of the ith method. edges from different methods have different keys
+  private def edge(i : Int) : PtEdge = PtEdge.make(Var.makeLocalVar(1, nodes(i), walaRes.hm), ObjVar(Set(key)))
+
+  // the cache only looks at how many producers there are, not at what they are
+  private def prods(n : Int) : List[(CGNode,SSAInstruction)] = List.fill(n)((nodes(0), null : SSAInstruction))
+
+  private def weight(n : Int) : Long = ProducerCache.ENTRY_BYTES + ProducerCache.INSTR_BYTES * n
+
+  /** @return true if @param cache has the producers of @param e cached, adding them if not */
+  private def isCached(cache : ProducerCache, e : PtEdge, candidates : Boolean = false) : Boolean = {
+    var computed = false
+    cache.getOrElseUpdate(e, candidates, { computed = true; prods(3) })
+    !computed
+  }
+
+  override def tests : List[(String, () => Unit)] = List(
+    ("Budget", () => {
+      assert(nodes.size >= 30, "Expected the call graph to have more methods")
+      val cache = new ProducerCache(10 * weight(3))
+      (0 until 30).foreach(i => {
+        assert(!isCached(cache, edge(i)))
+        assert(cache.size <= 10, s"Cache holds ${cache.size} entries, but only 10 fit in its budget")
+      })
+      // the most recent entries are kept and the older ones evicted
+      (20 until 30).foreach(i => assert(isCached(cache, edge(i)), s"Entry $i should still be cached"))
+      assert(!isCached(cache, edge(0)), "Entry 0 should have been evicted")
+    }),
+    ("LeastRecentlyUsed", () => {
+      val cache = new ProducerCache(3 * weight(3))
+      (0 until 3).foreach(i => isCached(cache, edge(i)))
+      assert(isCached(cache, edge(0)))
+      isCached(cache, edge(3)) // evicts 1, which is now the least recently used
+      assert(isCached(cache, edge(0)) && isCached(cache, edge(2)) && isCached(cache, edge(3)))
+      assert(!isCached(cache, edge(1)), "Entry 1 should have been evicted")
+    }),
+    ("OversizedEntry", () => {
+      // an entry that is larger than the whole budget is still kept until the next one comes along
+      val cache = new ProducerCache(weight(3) / 2)
+      assert(!isCached(cache, edge(0)) && isCached(cache, edge(0)) && cache.size == 1)
+      isCached(cache, edge(1))
+      assert(cache.size == 1 && !isCached(cache, edge(0)))
+    }),
+    ("AbstractKeys", () => {
+      val cache = new ProducerCache
+      val src = Var.makeLocalVar(1, nodes(0), walaRes.hm)
+      isCached(cache, PtEdge.make(src, ObjVar(Set(key))))
+      // different objects with the same region share producers, and so do pure vars of the same type
+      assert(isCached(cache, PtEdge.make(src, ObjVar(Set(key)))), "Edges to equal regions should share an entry")
+      isCached(cache, PtEdge.make(src, Pure.makePureIntVar))
+      assert(isCached(cache, PtEdge.make(src, Pure.makePureIntVar)), "Edges to int vars should share an entry")
+      // but producers and candidate producers don't
+      assert(!isCached(cache, PtEdge.make(src, ObjVar(Set(key))), candidates = true))
+    })
+  )
+}
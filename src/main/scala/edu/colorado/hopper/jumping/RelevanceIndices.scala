@@ -0,0 +1,19 @@
+package edu.colorado.hopper.jumping
+
+import com.ibm.wala.analysis.pointers.HeapGraph
+import com.ibm.wala.ipa.callgraph.CallGraph
+import com.ibm.wala.ipa.callgraph.propagation.InstanceKey
+import com.ibm.wala.ipa.cha.IClassHierarchy
+import edu.colorado.hopper.util.{CGReachability, LocalPredIndex}
+
+/** Indices over the program that relevance relations probe to find producers and modifiers. they depend only on the
+  * call graph and heap graph, so clients that create a relevance relation per query (e.g., in PARALLEL mode) should
+  * create one RelevanceIndices and pass it to each relation. each index is built on first use (by one thread), since
+  * clients that don't jump never look up producers */
+class RelevanceIndices(cg : CallGraph, hg : HeapGraph[InstanceKey], cha : IClassHierarchy) {
+  lazy val writeIndex = new WriteIndex(cg, cha)
+  lazy val localPredIndex = new LocalPredIndex(hg)
+  lazy val reachability = new CGReachability(cg)
+  // producers of edges, kept across queries under a single memory budget
+  lazy val producerCache = new ProducerCache
+}
@@ -8,14 +8,13 @@ import com.ibm.wala.ipa.cha.IClassHierarchy
 import com.ibm.wala.ssa.{ISSABasicBlock, SSAArrayLoadInstruction, SSAArrayStoreInstruction, SSACFG, SSAGetInstruction, SSAInstruction, SSAInvokeInstruction, SSANewInstruction, SSAPhiInstruction, SSAPutInstruction, SSAReturnInstruction, SymbolTable}
 import com.ibm.wala.util.graph.dominators.Dominators
 import com.ibm.wala.util.graph.impl.GraphInverter
-import com.ibm.wala.util.intset.{BasicNaturalRelation, OrdinalSet}
-import com.twitter.util.LruMap
+import com.ibm.wala.util.intset.BasicNaturalRelation
 import edu.colorado.hopper.jumping.RelevanceRelation._
 import edu.colorado.hopper.solver.UnknownSMTResult
 import edu.colorado.hopper.state.{ArrayFld, ArrayPtEdge, Fld, HeapPtEdge, InstanceFld, LocalPtEdge, LocalVar, ObjPtEdge, ObjVar, Path, PtEdge, Pure, PureVar, Qry, ReturnVar, StaticFld, StaticPtEdge, Val, Var}
 import edu.colorado.walautil.Types._
 import edu.colorado.walautil.{ClassUtil, IRUtil, Util, CGNodeUtil}
-import edu.colorado.hopper.util.PtUtil
+import edu.colorado.hopper.util.{CGReachability, LocalPredIndex, PtUtil}
 import edu.colorado.thresher.core.{Options, WALACFGUtil}
 import edu.colorado.walautil.CFGUtil
 
@@ -26,23 +25,25 @@ import scala.collection.JavaConversions._
 object RelevanceRelation {
   // should we use the UP and down set to help us decide where to jump?
   // if this is not enabled, we'll behave more or less like a flow-insensitive analysis interprocedurally
-  val USE_REACHABILITY_INFO = false
+  // TODO: turn on by default once the regression suites give the same results with it on
+  def USE_REACHABILITY_INFO = Options.USE_REACHABILITY_INFO
   // should we do a local dominator analysis to cut down on the number of relevant instructions to fork to?
   // if this is enabled, we are flow-sensitive intraprocedurally
   val DO_DOMINATOR_CHECK = true
   val DEBUG = false
-  val CACHE_SIZE = 16
 }
 
+/** @param indices - indices over the program, possibly shared with other relevance relations over the same program */
 class RelevanceRelation(val cg : CallGraph, val hg : HeapGraph[InstanceKey], val hm : HeapModel,
-                        val cha : IClassHierarchy,
-                        // TODO: extract relevance relation that doesn't need this
-                        val cgTransitiveClosure : java.util.Map[CGNode,OrdinalSet[CGNode]] = null) {
-  val producerCache = new LruMap[PtEdge, List[(CGNode,SSAInstruction)]](CACHE_SIZE) 
- 
-  def cleanup() : Unit = {
-    producerCache.clear
-  }  
+                        val cha : IClassHierarchy, val indices : RelevanceIndices) {
+
+  def this(cg : CallGraph, hg : HeapGraph[InstanceKey], hm : HeapModel, cha : IClassHierarchy) =
+    this(cg, hg, hm, cha, new RelevanceIndices(cg, hg, cha))
+
+  def writeIndex : WriteIndex = indices.writeIndex
+  def localPredIndex : LocalPredIndex = indices.localPredIndex
+  def reachability : CGReachability = indices.reachability
+  def producerCache : ProducerCache = indices.producerCache
   
   /** get backward reachable instr from @param blk in @param node without exceptional control flow */
   def getReachableInstrs(blk : ISSABasicBlock, node : CGNode) : Set[SSAInstruction] = {
@@ -141,13 +142,13 @@ class RelevanceRelation(val cg : CallGraph, val hg : HeapGraph[InstanceKey], val
   
   /**
    * @return a map whose key set is the same as the key set of @param upSet
-   * each CGNode in the key set maps to the set of CGNode's that may be called (directly or transitively) from that node given that
-   * only the instructions in the value set of @param upSet are reachable
+   * each CGNode in the key set maps to the set of CGNode's that may be called directly from that node given that
+   * only the instructions in the value set of @param upSet are reachable. the down set of the node is the set of nodes
+   * reachable from these callees (see isInDownSet)
    */
-  def computeDownSet(upSet : Map[CGNode,MSet[SSAInstruction]], edgeInstrMap : MMap[CGNode,Set[SSAInstruction]]) : Map[CGNode, MSet[CGNode]]= {
-    val map = upSet.foldLeft (Map.empty[CGNode,MSet[CGNode]]) ((map, pair) => {
+  def computeDownSet(upSet : Map[CGNode,MSet[SSAInstruction]], edgeInstrMap : MMap[CGNode,Set[SSAInstruction]]) : Map[CGNode,Set[CGNode]] = {
+    val map = upSet.foldLeft (Map.empty[CGNode,Set[CGNode]]) ((map, pair) => {
       val (node, reachable) = pair
-      val downReachable = Util.makeSet[CGNode]
       
       // handle edge calls -- add them to the reachable instrs for the UP set, but do not allow them (or their callees)
       // to be considered as part of the DOWN set
@@ -157,26 +158,27 @@ class RelevanceRelation(val cg : CallGraph, val hg : HeapGraph[InstanceKey], val
       })
       reachable ++= edgeCalls
       
-      // find each reachable call in node and add the call graph transitive closure of the nodes reachable from the call to the down set
-      reachable.collect({ case i : SSAInvokeInstruction if !edgeCalls.contains(i) =>
-        cg.getPossibleTargets(node, i.getCallSite()).foreach(target => {
-        //cg.getNodes(i.getDeclaredTarget()).foreach(target => {
-        //getSuccs(target, cg, 1) // for instrumentation purposes
-        if (!downReachable.contains(target)) (downReachable ++= OrdinalSet.toCollection(cgTransitiveClosure.get(target)) += target)
-      })})
-      map + (node -> downReachable)
+      // find each reachable call in node and add its targets to the callees
+      val callees = reachable.foldLeft (Set.empty[CGNode]) ((callees, i) => i match {
+        case i : SSAInvokeInstruction if !edgeCalls.contains(i) => callees ++ cg.getPossibleTargets(node, i.getCallSite())
+        case _ => callees
+      })
+      map + (node -> callees)
     })
     
     // annoying special case for fakeWorldClinit. 
     // the problem is that cg.getNodes(invoke fakeWorldClinit()) does not return the fakeWorldClinit node. 
-    // add it and its transitive closure explicitly instead
+    // add the nodes it calls explicitly instead
     //val fakeWorldClinit = WALACFGUtil.getFakeWorldClinitNode(cg)
     val fakeWorldClinit = CGNodeUtil.getFakeWorldClinitNode(cg).get
-    map +
-      (fakeWorldClinit -> (Util.makeSet[CGNode] ++= (OrdinalSet.toCollection(cgTransitiveClosure.get(fakeWorldClinit)))))
+    map + (fakeWorldClinit -> cg.getSuccNodes(fakeWorldClinit).toSet)
   }
+
+  /** @return true if @param n is in the down set of @param callees; that is, if it is reachable from one of them */
+  def isInDownSet(n : CGNode, callees : Iterable[CGNode]) : Boolean =
+    callees.exists(callee => reachability.canReach(callee, n))
   
-  def computeUpAndDownSet(p : Path) : (Map[CGNode,MSet[SSAInstruction]], Map[CGNode, MSet[CGNode]])= {
+  def computeUpAndDownSet(p : Path) : (Map[CGNode,MSet[SSAInstruction]], Map[CGNode,Set[CGNode]])= {
     val (upSet, edgeInstrMap) = computeUpSet(p)
     val downSet = computeDownSet(upSet, edgeInstrMap)
     (upSet, downSet)  
@@ -215,14 +217,14 @@ class RelevanceRelation(val cg : CallGraph, val hg : HeapGraph[InstanceKey], val
     } else {
       // get reachability informaton
       val (upSet, downSet) = computeUpAndDownSet(p)
-      val downSetAll = downSet.values.toSet.flatten
+      val downSetCallees = downSet.values.flatten.toSet
       val curNode = p.node
       p.clearCallStack // this needs to be done *after* computing UP set
       val paths = relMap.foldLeft (List.empty[Path]) ((paths, pair) => {
         val (relevantNode, instrs) = pair
         // if neither the up set nor the down set contains the relevant node/instruction, we can skip it because it is unreachable
         // TODO: should perhaps add context to nodes when we jump (particularly if they're in the up set)
-        if (downSetAll.contains(relevantNode)) {
+        if (isInDownSet(relevantNode, downSetCallees)) {
           if (DEBUG) println("DOWN set contains " + relevantNode)
           // since DOWN set contains the node, all producer instructions are reachable. fork a path for each one
           if (DO_DOMINATOR_CHECK && curNode != relevantNode) doLocalDominatorFiltering(p, relevantNode, instrs, jmpNum, paths)
@@ -332,16 +334,16 @@ class RelevanceRelation(val cg : CallGraph, val hg : HeapGraph[InstanceKey], val
         println("got dom")
         // now need to look for node in down set
         val (upSet, downSet) = computeUpAndDownSet(p)
-        val downSetAll = downSet.values.toSet.flatten
+        val downSetCallees = downSet.values.flatten.toSet
         assert(!upSet.contains(node))
-        assert(downSetAll.contains(node))
+        assert(isInDownSet(node, downSetCallees))
         
         def flowSensitiveOk(node : CGNode, targetNode : CGNode) : Boolean = {
           // TODO: do dominator check here also?
           val preds = cg.getPredNodes(node).toList
           if (preds.size == 1) {
             val pred = preds.head
-            if (downSet(pred).contains(targetNode)) {
+            if (isInDownSet(targetNode, downSet(pred))) {
                println("pred " + ClassUtil.pretty(pred) + " calls " + ClassUtil.pretty(targetNode) + " directly")
               val sites = cg.getPossibleSites(pred, targetNode).toSet
               assert(!sites.isEmpty)
@@ -502,129 +504,149 @@ class RelevanceRelation(val cg : CallGraph, val hg : HeapGraph[InstanceKey], val
    * that is may be equal to the value on the RHS of the edge e. stated differently, the producer instructions are any instructions that may *shrink* the
    * size of the concretization of a query consisting of e after execution. the producers instruction of an edge are a subset of the modifier instructions for an edge
    */
-  def getProducers(e : PtEdge, qry : Qry) : List[(CGNode, SSAInstruction)] =
-    // don't want to use cache with pure var constraints, as the same pure var may have different values in different theorem
-    // prover contexts    
-    if (e.snk.isInstanceOf[PureVar] || (Options.INDEX_SENSITIVITY && e.isInstanceOf[ArrayPtEdge])) getModifiersOrProducersInternal(e, qry, getModifiers = false)
-    else producerCache.getOrElseUpdate(e, getModifiersOrProducersInternal(e, qry, getModifiers = false))      
+  def getProducers(e : PtEdge, qry : Qry) : List[(CGNode, SSAInstruction)] = e match {
+    // can't cache the producers of edges with pure var sinks (or index-sensitive array edges), as the same pure var may
+    // have different values in different theorem prover contexts. instead, cache the instructions that could produce the
+    // edge in some context and ask the solver which of them can produce it in this one
+    case e : HeapPtEdge if e.snk.isInstanceOf[PureVar] || (Options.INDEX_SENSITIVITY && e.isInstanceOf[ArrayPtEdge]) =>
+      // the candidates are the instructions that may produce e in some solver context. filter them using the solver
+      val candidates = producerCache.getOrElseUpdate(e, candidates = true, getCandidateProducers(e, qry))
+      val isProducer = getProducerFilter(e, qry)
+      candidates.filter(pair => isProducer(pair._1, pair._2))
+    case LocalPtEdge(_, PureVar(_)) => getModifiersOrProducersInternal(e, qry, getModifiers = false)
+    case _ => producerCache.getOrElseUpdate(e, candidates = false, getModifiersOrProducersInternal(e, qry, getModifiers = false))
+  }
+
+  /** @return the instructions that may produce @param e in some solver context. these are the modifiers of @param e with
+    * any array index dropped, so they do not depend on the solver context */
+  private def getCandidateProducers(e : HeapPtEdge, qry : Qry) : List[(CGNode, SSAInstruction)] = {
+    val noIndexEdge = e.fld match {
+      case ArrayFld(keys, typ, Some(_)) => PtEdge.make(e.src, ArrayFld(keys, typ, None), e.snk)
+      case _ => e
+    }
+    getModifiersOrProducersInternal(noIndexEdge, qry, getModifiers = true)
+  }
+
+  private lazy val fakeWorldClinit = WALACFGUtil.getFakeWorldClinitNode(cg)
+
+  /** @return a check of whether a candidate producer of @param e (from getCandidateProducers) produces @param e in the
+    * solver context of @param qry. this is the part of getModifiersOrProducersInternal that modifiers skip */
+  private def getProducerFilter(e : HeapPtEdge, qry : Qry) : (CGNode, SSAInstruction) => Boolean = {
+    val heapCheck = e.snk match {
+      case rhs@ObjVar(_) =>
+        val rhsPreds = localPredIndex.getLocalPreds(rhs.bits)
+        (argUse : Int, node : CGNode, rgnRhs : Set[InstanceKey]) => rhsPreds.contains(Var.makeLPK(argUse, node, hm))
+      case _ => nopHeapCheck
+    }
+    (node : CGNode, instr : SSAInstruction) => (e, instr) match {
+      case (ObjPtEdge(_, _, snk), i : SSANewInstruction) => // array length
+        rhsMayEqCheck(snk, i.getUse(0), node, node.getIR().getSymbolTable(), qry, heapCheck, getModifiers = false)
+      case (ObjPtEdge(_, _, snk), i : SSAPutInstruction) =>
+        rhsMayEqCheck(snk, i.getVal(), node, node.getIR().getSymbolTable(), qry, heapCheck, getModifiers = false)
+      case (StaticPtEdge(_, _, snk), i : SSAPutInstruction) =>
+        // the default value instruction we generate for fields without a class initializer always produces the edge
+        node == fakeWorldClinit ||
+        rhsMayEqCheck(snk, i.getVal(), node, node.getIR().getSymbolTable(), qry, heapCheck, getModifiers = false)
+      case (ArrayPtEdge(_, fld, snk), i : SSAArrayStoreInstruction) =>
+        val tbl = node.getIR().getSymbolTable()
+        rhsMayEqCheck(snk, i.getValue(), node, tbl, qry, heapCheck, getModifiers = false) &&
+        arrayIndicesPossiblyEqual(i.getIndex(), fld, tbl, qry)
+      case (e, i) => sys.error(s"Unexpected candidate producer $i for $e")
+    }
+  }
   
-  private def getProducerOrModifierNodesAndHeapCheck(rgnLhs : Set[InstanceKey], snk : Val, getModifiers : Boolean) : (Set[CGNode], (Int, CGNode, Set[InstanceKey]) => Boolean) = {
-    val lhsPreds = PtUtil.getLocalPreds(rgnLhs, hg)
-    val lhsNodes = getLPKNodes(lhsPreds)           
+  private def getProducerOrModifierNodesAndHeapCheck(lhs : ObjVar, snk : Val, getModifiers : Boolean) : (Set[CGNode], (Int, CGNode, Set[InstanceKey]) => Boolean) = {
+    val lhsNodeBits = localPredIndex.getLocalPredNodeBits(lhs.bits)
     snk match {
-      case ObjVar(rgnRhs) =>
-        if (getModifiers) (lhsNodes, nopHeapCheck) else {
-          val rhsPreds = PtUtil.getLocalPreds(rgnRhs, hg)
+      case rhs@ObjVar(_) =>
+        if (getModifiers) (localPredIndex.toNodes(lhsNodeBits), nopHeapCheck) else {
+          val rhsPreds = localPredIndex.getLocalPreds(rhs.bits)
           // get all CGNodes that contain a local pointing at both A0 and A1 (needed to do the required field write)
-          (lhsNodes.intersect(getLPKNodes(rhsPreds)), 
+          (localPredIndex.toNodes(lhsNodeBits & localPredIndex.getLocalPredNodeBits(rhs.bits)),
            (argUse : Int, node : CGNode, rgnRhs : Set[InstanceKey]) => rhsPreds.contains(Var.makeLPK(argUse, node, hm)))
         }
-      case p@PureVar(_) => (lhsNodes, nopHeapCheck)
+      case p@PureVar(_) => (localPredIndex.toNodes(lhsNodeBits), nopHeapCheck)
     }  
   }
   
   // getting modifiers and producers is exactly the same except that the "may eq" check on the RHS of the edge always passes for modifers, but may not for producers
   private def getModifiersOrProducersInternal(e : PtEdge, qry : Qry, getModifiers : Boolean) : List[(CGNode, SSAInstruction)] = e match {
     // special case for array length constraints
-    case ObjPtEdge(ObjVar(rgnLhs), f@InstanceFld(_), p@PureVar(_)) if Fld.isArrayLengthFld(f) => // edge A0.length -> p
-      val lhsPreds = PtUtil.getLocalPreds(rgnLhs, hg)
-      val lhsNodes = getLPKNodes(lhsPreds)
+    case ObjPtEdge(lhs@ObjVar(rgnLhs), f@InstanceFld(_), p@PureVar(_)) if Fld.isArrayLengthFld(f) => // edge A0.length -> p
+      val lhsNodes = localPredIndex.getLocalPredNodes(lhs.bits)
       lhsNodes.foldLeft (List.empty[(CGNode,SSAInstruction)]) ((lst, node) => {
-        val ir = node.getIR()
-        if (ir != null) {
-          val tbl = ir.getSymbolTable()
-          // edge can be produced by x.f := y where x -> A0 and y -> A1
-          IRUtil.getAllInstructions(node).foldLeft (lst) ((lst, instr) => instr match { 
-            case i : SSANewInstruction if i.getNewSite().getDeclaredType().isArrayType() &&
-              rgnLhs.contains(hm.getInstanceKeyForAllocation(node, i.getNewSite())) &&              
-              rhsMayEqCheck(p, i.getUse(0), node, tbl, qry, nopHeapCheck, getModifiers) => (node, i) :: lst              
-              //pureMayEqCheck(i.getUse(0), p, tbl, qry) => (node, i) :: lst
-            case _ => lst
-          })
-        } else lst
+        // edge can be produced by x := new T[y] where x -> A0 and y -> p
+        writeIndex.getArrayAllocs(node).foldLeft (lst) ((lst, i) =>
+          if (rgnLhs.contains(hm.getInstanceKeyForAllocation(node, i.getNewSite())) &&
+              rhsMayEqCheck(p, i.getUse(0), node, node.getIR().getSymbolTable(), qry, nopHeapCheck, getModifiers))
+            (node, i) :: lst
+          else lst)
       }) 
       
-    case e@ObjPtEdge(ObjVar(rgnLhs), InstanceFld(fld), snk) => // edge A0.f -> A1
-      val lhsPreds = PtUtil.getLocalPreds(rgnLhs, hg)
-      val (producerOrModifierNodes, heapCheck) = getProducerOrModifierNodesAndHeapCheck(rgnLhs, snk, getModifiers)
+    case e@ObjPtEdge(lhs@ObjVar(_), InstanceFld(fld), snk) => // edge A0.f -> A1
+      val lhsPreds = localPredIndex.getLocalPreds(lhs.bits)
+      val (producerOrModifierNodes, heapCheck) = getProducerOrModifierNodesAndHeapCheck(lhs, snk, getModifiers)
 
-      // final instance fields can only be written in constructors
-      producerOrModifierNodes.foldLeft (List.empty[(CGNode,SSAInstruction)]) ((lst, node) => if (!fld.isFinal() || node.getMethod().isInit()) { 
-        val ir = node.getIR()
-        if (ir != null) {
-          val tbl = ir.getSymbolTable()
-          // edge can be produced by x.f := y where x -> A0 and y -> A1
-          IRUtil.getAllInstructions(node).foldLeft (lst) ((lst, instr) => instr match {
-            case i : SSAPutInstruction if (!i.isStatic() && cha.resolveField(i.getDeclaredField()) == fld &&
-              lhsPreds.contains(Var.makeLPK(i.getRef(), node, hm)) &&
-              rhsMayEqCheck(snk, i.getVal(), node, tbl, qry, heapCheck, getModifiers)) => (node, i) :: lst
-            case _ => lst
-          })
-        } else lst
-      } else lst)
+      // edge can be produced by x.f := y where x -> A0 and y -> A1
+      writeIndex.getFieldWrites(fld).foldLeft (List.empty[(CGNode,SSAInstruction)]) ((lst, pair) => {
+        val (node, i) = pair
+        // final instance fields can only be written in constructors
+        if (!i.isStatic() && producerOrModifierNodes.contains(node) && (!fld.isFinal() || node.getMethod().isInit()) &&
+            lhsPreds.contains(Var.makeLPK(i.getRef(), node, hm)) &&
+            rhsMayEqCheck(snk, i.getVal(), node, node.getIR().getSymbolTable(), qry, heapCheck, getModifiers))
+          (node, i) :: lst
+        else lst
+      })
              
     case StaticPtEdge(_, f@StaticFld(key), snk) => // edge C.f -> A
       val fld = f.iFld
       val classInit = CGNodeUtil.getClassInitializerFor(fld.getDeclaringClass(), cg)       
-      val (producerOrModifierNodes, heapCheck) = snk match {
-        case ObjVar(rgnRhs) => 
+      // the nodes that may hold a write that produces (or modifies) the edge
+      val (isProducerOrModifierNode, heapCheck) = snk match {
+        case rhs@ObjVar(_) => 
           val rhsPreds = {
-            val preds = PtUtil.getLocalPreds(rgnRhs, hg)
+            val preds = localPredIndex.getLocalPreds(rhs.bits)
             // for now, unsoundly (but plausibly) assuming that libraries don't write to application static fields
             if (!ClassUtil.isLibrary(fld)) preds.filterNot(k => ClassUtil.isLibrary(k.getNode())) else preds
           }
-          val nodes = // final static fields can only be written in class inits 
+          val isNode : CGNode => Boolean = // final static fields can only be written in class inits 
             if (fld.isFinal()) classInit match {
-              case Some(classInit) => List(classInit)
+              case Some(classInit) => node => node == classInit
               case None => sys.error("Class initializer should exist for final static field!")
             } else { 
-              if (getModifiers) cg.toSet // since we're node allowed to reason about the RHS, need to consider *all* nodes in the callgraph
+              if (getModifiers) _ => true // since we're node allowed to reason about the RHS, need to consider *all* nodes in the callgraph
               else getLPKNodes(rhsPreds) 
             }          
-          (nodes, if (getModifiers) nopHeapCheck else (argUse : Int, node : CGNode, rgnRhs : Set[InstanceKey]) => rhsPreds.contains(Var.makeLPK(argUse, node, hm)))
-        case p@PureVar(_) => // this case is annoying because the write could be in *any* CGNode. find the ones with at least one candidate write 
-          (cg.iterator().foldLeft (List.empty[CGNode]) ((lst, node) => {
-            val ir = node.getIR() 
-            if (ir != null && 
-              IRUtil.getAllInstructions(node).exists(i => i match {
-                case i : SSAPutInstruction if i.isStatic() && cha.resolveField(i.getDeclaredField()) == fld => true
-                case _ => false
-              })) node :: lst
-            else lst
-          }), nopHeapCheck)            
+          (isNode, if (getModifiers) nopHeapCheck else (argUse : Int, node : CGNode, rgnRhs : Set[InstanceKey]) => rhsPreds.contains(Var.makeLPK(argUse, node, hm)))
+        case p@PureVar(_) => // the write could be in *any* CGNode
+          ((_ : CGNode) => true, nopHeapCheck)
       }
       val instrs = 
         if (classInit.isDefined) List.empty[(CGNode,SSAInstruction)]
         // deal with nasty case where WALA does not emit a class initializer : generate our own default value instruction
         else List((WALACFGUtil.getFakeWorldClinitNode(cg), IRUtil.getDefaultValueAssignmentForStaticField(key)))
-      producerOrModifierNodes.foldLeft (instrs) ((lst, node) => {
-        val ir = node.getIR()
-        if (ir != null) {
-          val tbl = ir.getSymbolTable() 
-          // edge can by produced by C.f = y where y -> A
-          IRUtil.getAllInstructions(node).foldLeft (lst) ((lst, instr) => instr match { 
-            case i : SSAPutInstruction if (i.isStatic() && cha.resolveField(i.getDeclaredField()) == fld && 
-              rhsMayEqCheck(snk, i.getVal(), node, tbl, qry, heapCheck, getModifiers)) => (node, i) :: lst
-            case _ => lst
-          })
-        } else lst
+      // edge can by produced by C.f = y where y -> A
+      writeIndex.getFieldWrites(fld).foldLeft (instrs) ((lst, pair) => {
+        val (node, i) = pair
+        if (i.isStatic() && isProducerOrModifierNode(node) &&
+            rhsMayEqCheck(snk, i.getVal(), node, node.getIR().getSymbolTable(), qry, heapCheck, getModifiers))
+          (node, i) :: lst
+        else lst
       })
         
-    case ArrayPtEdge(ObjVar(rgnLhs), fld, snk) => // A0[i] = f
-      val lhsPreds = PtUtil.getLocalPreds(rgnLhs, hg)
-      val (producerOrModifierNodes, heapCheck) = getProducerOrModifierNodesAndHeapCheck(rgnLhs, snk, getModifiers)
+    case ArrayPtEdge(lhs@ObjVar(_), fld, snk) => // A0[i] = f
+      val lhsPreds = localPredIndex.getLocalPreds(lhs.bits)
+      val (producerOrModifierNodes, heapCheck) = getProducerOrModifierNodesAndHeapCheck(lhs, snk, getModifiers)
       producerOrModifierNodes.foldLeft (List.empty[(CGNode,SSAInstruction)]) ((lst, node) => {
-        val ir = node.getIR()
-        if (ir != null) {
-          val tbl = ir.getSymbolTable()
-          // edge can be produced by x[i] := y where x -> A0 and y -> A1
-          IRUtil.getAllInstructions(node).foldLeft (lst) ((lst, instr) => instr match {
-            case i : SSAArrayStoreInstruction if lhsPreds.contains(Var.makeLPK(i.getArrayRef(), node, hm)) &&
+        // edge can be produced by x[i] := y where x -> A0 and y -> A1
+        writeIndex.getArrayStores(node).foldLeft (lst) ((lst, i) => {
+          val tbl = node.getIR().getSymbolTable()
+          if (lhsPreds.contains(Var.makeLPK(i.getArrayRef(), node, hm)) &&
               rhsMayEqCheck(snk, i.getValue(), node, tbl, qry, heapCheck, getModifiers) &&
-              arrayIndicesPossiblyEqual(i.getIndex, fld, tbl, qry) => (node, i) :: lst
-            case _ => lst
-          })
-        } else lst
+              arrayIndicesPossiblyEqual(i.getIndex, fld, tbl, qry))
+            (node, i) :: lst
+          else lst
+        })
       })      
     case LocalPtEdge(LocalVar(lhs), snk) =>                          
       val node = lhs.getNode()      
@@ -0,0 +1,73 @@
+package edu.colorado.hopper.jumping
+
+import com.ibm.wala.classLoader.IField
+import com.ibm.wala.ipa.callgraph.{CGNode, CallGraph}
+import com.ibm.wala.ipa.cha.IClassHierarchy
+import com.ibm.wala.ssa.{SSAArrayStoreInstruction, SSANewInstruction, SSAPutInstruction}
+import edu.colorado.hopper.client.UnitTests
+import edu.colorado.walautil.{IRUtil, Timer}
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+
+/** Index of the heap writes in @param cg, built in one pass over its instructions: from each (resolved) field to the
+  * instructions that write it, and from each method to its array stores and array allocations. producer and modifier
+  * lookups in RelevanceRelation probe this rather than walking the instructions of each candidate method */
+class WriteIndex(cg : CallGraph, cha : IClassHierarchy) {
+  private val fieldWrites = mutable.Map.empty[IField,List[(CGNode,SSAPutInstruction)]]
+  private val arrayStores = mutable.Map.empty[CGNode,List[SSAArrayStoreInstruction]]
+  private val arrayAllocs = mutable.Map.empty[CGNode,List[SSANewInstruction]]
+
+  {
+    val timer = new Timer
+    timer.start()
+    cg.foreach(node => if (node.getIR() != null) IRUtil.getAllInstructions(node).foreach(instr => instr match {
+      case i : SSAPutInstruction => cha.resolveField(i.getDeclaredField()) match {
+        case null => ()
+        case fld => fieldWrites.put(fld, (node, i) :: fieldWrites.getOrElse(fld, Nil))
+      }
+      case i : SSAArrayStoreInstruction => arrayStores.put(node, i :: arrayStores.getOrElse(node, Nil))
+      case i : SSANewInstruction if i.getNewSite().getDeclaredType().isArrayType() =>
+        arrayAllocs.put(node, i :: arrayAllocs.getOrElse(node, Nil))
+      case _ => ()
+    }))
+    timer.printTimeTaken(s"Indexing writes to ${fieldWrites.size} fields")
+  }
+
+  /** @return the instructions that write (static or instance field) @param fld, and their methods */
+  def getFieldWrites(fld : IField) : List[(CGNode,SSAPutInstruction)] = fieldWrites.getOrElse(fld, Nil)
+
+  /** @return the array stores in @param node */
+  def getArrayStores(node : CGNode) : List[SSAArrayStoreInstruction] = arrayStores.getOrElse(node, Nil)
+
+  /** @return the allocations of arrays in @param node */
+  def getArrayAllocs(node : CGNode) : List[SSANewInstruction] = arrayAllocs.getOrElse(node, Nil)
+}
+
+object WriteIndexTests extends UnitTests {
+  override def tests : List[(String, () => Unit)] = List(
+    ("MatchesScan", () => {
+      // compare the index with a scan of the instructions of every method
+      val walaRes = makeWalaRes("casts/HashtableEnumeratorRefute")
+      val index = new WriteIndex(walaRes.cg, walaRes.cha)
+      val nodes = walaRes.cg.filter(n => n.getIR() != null).toList
+      val puts = nodes.flatMap(n => IRUtil.getAllInstructions(n).collect({ case i : SSAPutInstruction => (n, i) }))
+      val writesByFld = puts.groupBy(p => walaRes.cha.resolveField(p._2.getDeclaredField()))
+      assert(writesByFld.size > 1, "Expected the program to write some fields")
+      writesByFld.foreach(pair => pair match {
+        case (null, _) => ()
+        case (fld, writes) =>
+          assert(index.getFieldWrites(fld).toSet == writes.toSet, s"Wrong writes for $fld")
+          assert(index.getFieldWrites(fld).size == writes.size, s"Duplicate writes for $fld")
+      })
+      nodes.foreach(n => {
+        val instrs = IRUtil.getAllInstructions(n)
+        assert(index.getArrayStores(n).toSet == instrs.collect({ case i : SSAArrayStoreInstruction => i }).toSet,
+               s"Wrong array stores for $n")
+        assert(index.getArrayAllocs(n).toSet == instrs.collect({
+          case i : SSANewInstruction if i.getNewSite().getDeclaredType().isArrayType() => i
+        }).toSet, s"Wrong array allocations for $n")
+      })
+    })
+  )
+}
@@ -0,0 +1,256 @@
+package edu.colorado.hopper.solver
+
+import java.util.concurrent.atomic.AtomicLong
+
+import com.ibm.wala.shrikeBT.{IBinaryOpInstruction, IConditionalBranchInstruction}
+import com.ibm.wala.types.TypeReference
+import edu.colorado.hopper.client.UnitTests
+import edu.colorado.hopper.state._
+import edu.colorado.thresher.core.Options
+
+import scala.collection.mutable.HashMap
+import scala.util.Random
+
+/** In-JVM decision procedure for the simple constraints Hopper produces most often: null/non-null checks, boolean
+  * (in)equalities, and comparisons of ints against constants or other ints with a constant offset. Boolean and object
+  * variables are handled with union-find plus a 2-coloring of the disequalities, which is complete for that fragment.
+  * Int constraints are handled as difference bounds (x - y <= c) with Bellman-Ford; int disequalities are checked
+  * against the model that Bellman-Ford produces, so we may fail to decide some sets that contain them */
+object DifferenceBoundDecider {
+  def USE_DECIDER = Options.DIFFERENCE_BOUND_DECIDER
+
+  // an int term x + c. x is None for a constant term
+  private type IntTerm = (Option[PureVar], Long)
+  // a boolean term. either a variable or a constant
+  private type BoolTerm = Either[PureVar,Boolean]
+
+  private val decided = new AtomicLong
+  private val undecided = new AtomicLong
+
+  private def isIntType(typ : TypeReference) : Boolean = typ match {
+    case TypeReference.Int | TypeReference.Byte | TypeReference.Short | TypeReference.Char => true
+    case _ => false
+  }
+
+  private def isBoolType(typ : TypeReference) : Boolean =
+    typ == TypeReference.Boolean || typ == TypeReference.JavaLangObject
+
+  private def toIntTerm(e : PureExpr) : Option[IntTerm] = e match {
+    case p@PureVar(typ) if isIntType(typ) => Some((Some(p), 0L))
+    case IntVal(i) => Some((None, i.toLong))
+    case CharVal(c) => Some((None, c.getNumericValue.toLong)) // same encoding as Solver.toAST
+    case PureBinExpr(lhs, op, rhs) => (toIntTerm(lhs), toIntTerm(rhs)) match {
+      case (Some((x, c1)), Some((None, c2))) if op == IBinaryOpInstruction.Operator.ADD => Some((x, c1 + c2))
+      case (Some((None, c1)), Some((x, c2))) if op == IBinaryOpInstruction.Operator.ADD => Some((x, c1 + c2))
+      case (Some((x, c1)), Some((None, c2))) if op == IBinaryOpInstruction.Operator.SUB => Some((x, c1 - c2))
+      case _ => None
+    }
+    case _ => None
+  }
+
+  private def toBoolTerm(e : PureExpr) : Option[BoolTerm] = e match {
+    case p@PureVar(typ) if isBoolType(typ) => Some(Left(p))
+    case BoolVal(b) => Some(Right(b))
+    case _ => None
+  }
+
+  /** @return Some(true) if @param constraints are satisfiable, Some(false) if they are unsatisfiable, and None if we
+    * cannot tell */
+  def decide(constraints : Iterable[PureConstraint]) : Option[Boolean] = if (!USE_DECIDER) None else {
+    // int difference edges u -> v with weight w, meaning v - u <= w. the None node stands for the constant 0
+    var edges = List.empty[(Option[PureVar],Option[PureVar],Long)]
+    var intDiseqs = List.empty[(IntTerm,IntTerm)]
+    var boolEqs = List.empty[(BoolTerm,BoolTerm)]
+    var boolDiseqs = List.empty[(BoolTerm,BoolTerm)]
+    // true if some constraint is outside of the fragment we understand
+    var hasUnknown = false
+
+    constraints.foreach(c => c match {
+      case PureAtomicConstraint(lhs, op, rhs) => (toIntTerm(lhs), toIntTerm(rhs)) match {
+        case (Some(l@(x, a)), Some(r@(y, b))) =>
+          // x + a op y + b iff x - y op b - a
+          op match {
+            case IConditionalBranchInstruction.Operator.LE => edges = (y, x, b - a) :: edges
+            case IConditionalBranchInstruction.Operator.LT => edges = (y, x, b - a - 1) :: edges
+            case IConditionalBranchInstruction.Operator.GE => edges = (x, y, a - b) :: edges
+            case IConditionalBranchInstruction.Operator.GT => edges = (x, y, a - b - 1) :: edges
+            case IConditionalBranchInstruction.Operator.EQ => edges = (y, x, b - a) :: (x, y, a - b) :: edges
+            case IConditionalBranchInstruction.Operator.NE => intDiseqs = (l, r) :: intDiseqs
+            case _ => hasUnknown = true
+          }
+        case _ => (toBoolTerm(lhs), toBoolTerm(rhs)) match {
+          case (Some(l), Some(r)) if op == IConditionalBranchInstruction.Operator.EQ => boolEqs = (l, r) :: boolEqs
+          case (Some(l), Some(r)) if op == IConditionalBranchInstruction.Operator.NE => boolDiseqs = (l, r) :: boolDiseqs
+          case _ => hasUnknown = true
+        }
+      }
+      case _ => hasUnknown = true
+    })
+
+    val res =
+      if (!boolsSatisfiable(boolEqs, boolDiseqs)) Some(false)
+      else intModel(edges) match {
+        case None => Some(false) // negative cycle
+        case Some(model) =>
+          def eval(t : IntTerm) : Long = t._1.map(x => model.getOrElse(x, 0L)).getOrElse(0L) + t._2
+          if (hasUnknown || !intDiseqs.forall(pair => eval(pair._1) != eval(pair._2))) None
+          else Some(true)
+      }
+    if (res.isDefined) decided.incrementAndGet() else undecided.incrementAndGet()
+    res
+  }
+
+  /** run Bellman-Ford on the difference edges @param edges.
+    * @return None if there is a negative cycle (UNSAT), otherwise a satisfying assignment */
+  private def intModel(edges : List[(Option[PureVar],Option[PureVar],Long)]) : Option[Map[PureVar,Long]] = {
+    val dist = new HashMap[Option[PureVar],Long]
+    // distances from a virtual source with a 0-weight edge to every node
+    edges.foreach(e => { dist.put(e._1, 0L); dist.put(e._2, 0L) })
+    dist.put(None, 0L)
+    val numNodes = dist.size
+
+    def relax() : Boolean = edges.foldLeft (false) ((changed, e) => {
+      val (u, v, w) = e
+      if (dist(u) + w < dist(v)) {
+        dist.put(v, dist(u) + w)
+        true
+      } else changed
+    })
+
+    var iter = 0
+    var changed = true
+    while (changed && iter < numNodes) {
+      changed = relax()
+      iter += 1
+    }
+    if (changed && relax()) None // still changing after |V| rounds; negative cycle
+    else {
+      // shift so that the 0 node has value 0
+      val zero = dist(None)
+      Some(dist.foldLeft (Map.empty[PureVar,Long]) ((m, entry) => entry match {
+        case (Some(x), d) => m + (x -> (d - zero))
+        case (None, _) => m
+      }))
+    }
+  }
+
+  /** @return true if the boolean (dis)equalities @param eqs and @param diseqs are satisfiable */
+  private def boolsSatisfiable(eqs : List[(BoolTerm,BoolTerm)], diseqs : List[(BoolTerm,BoolTerm)]) : Boolean = {
+    val parent = new HashMap[BoolTerm,BoolTerm]
+    def find(t : BoolTerm) : BoolTerm = parent.get(t) match {
+      case Some(p) if p != t =>
+        val root = find(p)
+        parent.put(t, root)
+        root
+      case _ => t
+    }
+    def union(t1 : BoolTerm, t2 : BoolTerm) : Unit = {
+      val (r1, r2) = (find(t1), find(t2))
+      if (r1 != r2) parent.put(r1, r2)
+    }
+    eqs.foreach(pair => union(pair._1, pair._2))
+
+    // true and false must be different, and there are only two values, so the disequality graph over equivalence
+    // classes must be 2-colorable
+    val diseqEdges = (Right(true) : BoolTerm, Right(false) : BoolTerm) :: diseqs
+    val neighbors = diseqEdges.foldLeft (Map.empty[BoolTerm,List[BoolTerm]]) ((m, pair) => {
+      val (r1, r2) = (find(pair._1), find(pair._2))
+      m + (r1 -> (r2 :: m.getOrElse(r1, Nil))) + (r2 -> (r1 :: m.getOrElse(r2, Nil)))
+    })
+    if (neighbors.exists(entry => entry._2.contains(entry._1))) false // t != t
+    else {
+      val color = new HashMap[BoolTerm,Boolean]
+      def colorFrom(start : BoolTerm) : Boolean = {
+        color.put(start, true)
+        var worklist = List(start)
+        var ok = true
+        while (ok && !worklist.isEmpty) {
+          val t = worklist.head
+          worklist = worklist.tail
+          neighbors.getOrElse(t, Nil).foreach(n => color.get(n) match {
+            case Some(c) => if (c == color(t)) ok = false
+            case None =>
+              color.put(n, !color(t))
+              worklist = n :: worklist
+          })
+        }
+        ok
+      }
+      neighbors.keys.forall(t => color.contains(t) || colorFrom(t))
+    }
+  }
+
+  def printStats() : Unit =
+    println(s"Difference-bound decider: decided ${decided.get} checks, passed ${undecided.get} to the solver")
+}
+
+object DifferenceBoundDeciderTests extends UnitTests {
+  import IConditionalBranchInstruction.Operator._
+
+  private val OPS = List(LE, LT, GE, GT, EQ, NE)
+
+  /** @return a random set of constraints over @param ints and @param objs, all in the fragment the decider handles */
+  private def randomConstraints(rand : Random, ints : IndexedSeq[PureVar],
+                                objs : IndexedSeq[PureVar]) : List[PureAtomicConstraint] = {
+    def pick[T](s : Seq[T]) : T = s(rand.nextInt(s.size))
+    def const : Int = rand.nextInt(7) - 3
+    (1 to 1 + rand.nextInt(6)).map(_ => rand.nextInt(4) match {
+      case 0 => Pure.makeAtomicConstraint(pick(ints), pick(OPS), IntVal(const))
+      case 1 =>
+        val rhs = Pure.makePureBinExpr(pick(ints), IBinaryOpInstruction.Operator.ADD, IntVal(const))
+        Pure.makeAtomicConstraint(pick(ints), pick(OPS), rhs)
+      case 2 => if (rand.nextBoolean()) Pure.makeEqNullConstraint(pick(objs)) else Pure.makeNeNullConstraint(pick(objs))
+      case _ => Pure.makeAtomicConstraint(pick(objs), if (rand.nextBoolean()) EQ else NE, pick(objs))
+    }).toList
+  }
+
+  /** @return true if @param constraints are SAT according to the DPLL solver */
+  private def checkWithSolver(solver : Solver[_], constraints : List[PureConstraint]) : Boolean = {
+    solver.push
+    try {
+      constraints.foreach(c => solver.mkAssert(c))
+      solver.checkSAT
+    } finally solver.pop
+  }
+
+  /** run @param body with the decider on, whatever the command line said */
+  private def withDecider(body : => Unit) : Unit = {
+    val useDecider = Options.DIFFERENCE_BOUND_DECIDER
+    Options.DIFFERENCE_BOUND_DECIDER = true
+    try body finally Options.DIFFERENCE_BOUND_DECIDER = useDecider
+  }
+
+  override def tests : List[(String, () => Unit)] = List(
+    ("Examples", () => withDecider {
+      val List(x, y) = List.fill(2)(Pure.makePureIntVar)
+      val List(o1, o2) = List.fill(2)(Pure.makePureObjVar)
+      def expect(expected : Option[Boolean], constraints : List[PureConstraint]) : Unit =
+        assert(DifferenceBoundDecider.decide(constraints) == expected, s"Expected $expected for $constraints")
+      expect(Some(false), List(Pure.makeLtConstraint(x, y), Pure.makeLtConstraint(y, x)))
+      expect(Some(true), List(Pure.makeLeConstraint(x, y), Pure.makeLeConstraint(y, x)))
+      expect(Some(false),
+             List(Pure.makeEqNullConstraint(o1), Pure.makeEqConstraint(o1, o2), Pure.makeNeNullConstraint(o2)))
+      expect(Some(true), List(Pure.makeNeConstraint(x, IntVal(0)), Pure.makeGeConstraint(x, IntVal(0))))
+      // outside the fragment
+      val product = Pure.makePureBinExpr(x, IBinaryOpInstruction.Operator.MUL, y)
+      expect(None, List(Pure.makeEqConstraint(product, IntVal(6))))
+    }),
+    ("MatchesSolver", () => withDecider {
+      // whenever the decider answers, it must agree with the solver. without int disequalities, it must always answer
+      val rand = new Random(0)
+      val ints = IndexedSeq.fill(4)(Pure.makePureIntVar)
+      val objs = IndexedSeq.fill(3)(Pure.makePureObjVar)
+      val solver = new DpllSolver
+      try (1 to 2000).foreach(_ => {
+        val constraints = randomConstraints(rand, ints, objs)
+        val res = checkWithSolver(solver, constraints)
+        DifferenceBoundDecider.decide(constraints) match {
+          case Some(decided) => assert(decided == res, s"Decider says $decided, solver says $res for $constraints")
+          case None =>
+            assert(constraints.exists(c => c.op == NE && ints.contains(c.lhs)),
+                   s"Decider should have decided $constraints")
+        }
+      }) finally solver.dispose()
+    })
+  )
+}
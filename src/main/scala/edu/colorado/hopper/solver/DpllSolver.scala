@@ -0,0 +1,557 @@
+package edu.colorado.hopper.solver
+
+import java.io.IOException
+
+import com.ibm.wala.shrikeBT.IBinaryOpInstruction
+import edu.colorado.hopper.client.UnitTests
+import edu.colorado.hopper.solver.DpllSolver._
+import edu.colorado.hopper.state.{BoolVal, IntVal, Pure, PureAtomicConstraint, PureConstraint, PureExpr, PureVal, PureVar}
+import edu.colorado.thresher.core.Options
+import edu.colorado.walautil.Types.MMap
+
+import scala.collection.mutable.{HashMap, Queue}
+
+object DpllSolver {
+  // give up (and report UNKNOWN) after exploring this many nodes of the search tree in one check
+  val MAX_SEARCH_NODES = 100000
+
+  sealed abstract class Term
+  case class BoolLit(b : Boolean) extends Term
+  case class IntLit(i : BigInt) extends Term
+  case class BoolVar(name : String) extends Term
+  case class IntVar(name : String) extends Term
+  case class Not(t : Term) extends Term
+  case class And(lhs : Term, rhs : Term) extends Term
+  case class Or(lhs : Term, rhs : Term) extends Term
+  // integer comparison. op is one of =, <=, <, >=, >
+  case class Cmp(op : String, lhs : Term, rhs : Term) extends Term
+  // integer arithmetic. op is one of +, -, *, div, mod, or a bitwise op
+  case class Arith(op : String, lhs : Term, rhs : Term) extends Term
+
+  private def isBool(t : Term) : Boolean = t match {
+    case BoolLit(_) | BoolVar(_) | Not(_) | And(_, _) | Or(_, _) | Cmp(_, _, _) => true
+    case _ => false
+  }
+
+  // a linear integer term sum(coeff * var) + constant
+  private type Linear = (Map[String,BigInt], BigInt)
+
+  private def linearize(t : Term) : Option[Linear] = t match {
+    case IntLit(i) => Some((Map.empty, i))
+    case IntVar(x) => Some((Map(x -> BigInt(1)), BigInt(0)))
+    case Arith("+", lhs, rhs) => for (l <- linearize(lhs); r <- linearize(rhs)) yield add(l, r, 1)
+    case Arith("-", lhs, rhs) => for (l <- linearize(lhs); r <- linearize(rhs)) yield add(l, r, -1)
+    case Arith("*", lhs, rhs) => (linearize(lhs), linearize(rhs)) match {
+      case (Some((lVars, c)), Some(r)) if lVars.isEmpty => Some(scale(r, c))
+      case (Some(l), Some((rVars, c))) if rVars.isEmpty => Some(scale(l, c))
+      case _ => None // non-linear
+    }
+    case _ => None
+  }
+
+  private def add(l : Linear, r : Linear, sign : Int) : Linear =
+    (r._1.foldLeft (l._1) ((m, entry) => {
+      val coeff = m.getOrElse(entry._1, BigInt(0)) + entry._2 * sign
+      if (coeff == 0) m - entry._1 else m + (entry._1 -> coeff)
+    }), l._2 + r._2 * sign)
+
+  private def scale(l : Linear, c : BigInt) : Linear =
+    if (c == 0) (Map.empty, BigInt(0)) else (l._1.map(entry => (entry._1, entry._2 * c)), l._2 * c)
+
+  // difference constraint x - y <= k. None stands for the constant 0
+  private[solver] case class DiffLe(x : Option[String], y : Option[String], k : BigInt)
+
+  // what a comparison atom means to the theory: a constant truth value, a conjunction of difference constraints when
+  // true or false, or a disequality x - y != k when false (for = atoms)
+  private[solver] sealed abstract class TheoryAtom
+  private[solver] case class ConstAtom(b : Boolean) extends TheoryAtom
+  private[solver] case class DiffAtom(x : Option[String], y : Option[String], op : String, k : BigInt) extends TheoryAtom
+  private[solver] case object UnknownAtom extends TheoryAtom
+
+  private[solver] def toTheoryAtom(c : Cmp) : TheoryAtom = (linearize(c.lhs), linearize(c.rhs)) match {
+    case (Some(l), Some(r)) =>
+      // lhs op rhs iff sum(coeff * var) op -constant
+      val (vars, const) = add(l, r, -1)
+      val k = -const
+      val (x, y) = vars.toList match {
+        case Nil => (None, None)
+        case List((v, c)) if c == 1 => (Some(v), None)
+        case List((v, c)) if c == -1 => (None, Some(v))
+        case List((v1, c1), (v2, c2)) if c1 == 1 && c2 == -1 => (Some(v1), Some(v2))
+        case List((v1, c1), (v2, c2)) if c1 == -1 && c2 == 1 => (Some(v2), Some(v1))
+        case _ => return UnknownAtom // not a difference constraint
+      }
+      if (x.isEmpty && y.isEmpty) ConstAtom(c.op match {
+        case "=" => 0 == k
+        case "<=" => 0 <= k
+        case "<" => 0 < k
+        case ">=" => 0 >= k
+        case ">" => 0 > k
+      }) else DiffAtom(x, y, c.op, k)
+    case _ => UnknownAtom
+  }
+
+  /** @return the difference constraints implied by assigning @param value to @param a, plus an optional disequality */
+  private[solver] def toDiffs(a : DiffAtom, value : Boolean) : (List[DiffLe], Option[DiffLe]) = {
+    val DiffAtom(x, y, op, k) = a
+    // x - y <= k, x - y >= k (i.e., y - x <= -k)
+    def le(k : BigInt) = DiffLe(x, y, k)
+    def ge(k : BigInt) = DiffLe(y, x, -k)
+    (op, value) match {
+      case ("<=", true) | (">", false) => (List(le(k)), None)
+      case ("<", true) | (">=", false) => (List(le(k - 1)), None)
+      case (">=", true) | ("<", false) => (List(ge(k)), None)
+      case (">", true) | ("<=", false) => (List(ge(k + 1)), None)
+      case ("=", true) => (List(le(k), ge(k)), None)
+      case ("=", false) => (Nil, Some(le(k))) // x - y != k
+    }
+  }
+
+  /** difference constraints together with an assignment to their variables that satisfies all of them. adding a
+    * constraint repairs the assignment by relaxing only the constraints downstream of the new one, rather than rerunning
+    * Bellman-Ford over all of them. graphs are immutable, so the search backtracks by dropping the newer graphs
+    * @param succs - the constraints x - y <= k, indexed by y
+    * @param dist - the assignment. dist(x) <= dist(y) + k for every constraint, and None stands for the constant 0 */
+  private[solver] class DiffGraph(succs : Map[Option[String],List[DiffLe]], dist : Map[Option[String],BigInt]) {
+    private def d(v : Option[String]) : BigInt = dist.getOrElse(v, BigInt(0))
+
+    /** @return this graph with @param le added, or None if @param le closes a negative cycle (i.e., the constraints are
+      * inconsistent) */
+    def add(le : DiffLe) : Option[DiffGraph] = {
+      val newSuccs = succs + (le.y -> (le :: succs.getOrElse(le.y, Nil)))
+      // every variable we have seen gets a value, so that models mention it
+      val withVars = dist + (le.x -> d(le.x)) + (le.y -> d(le.y)) + (None -> d(None))
+      if (d(le.y) + le.k >= d(le.x)) Some(new DiffGraph(newSuccs, withVars))
+      else {
+        // lower le.x and push the change along the constraints out of it. the assignment satisfied every constraint
+        // before le, so any negative cycle goes through le, and we find it when the change comes back around to le.y
+        var newDist = withVars + (le.x -> (d(le.y) + le.k))
+        val worklist = new Queue[Option[String]]
+        worklist.enqueue(le.x)
+        while (!worklist.isEmpty) {
+          val v = worklist.dequeue()
+          if (v == le.y) return None
+          newSuccs.getOrElse(v, Nil).foreach(succ => {
+            val newD = newDist(v) + succ.k
+            if (newD < newDist(succ.x)) {
+              newDist += (succ.x -> newD)
+              worklist.enqueue(succ.x)
+            }
+          })
+        }
+        Some(new DiffGraph(newSuccs, newDist))
+      }
+    }
+
+    /** @return the value of @param v - @param u under the assignment */
+    def diff(v : Option[String], u : Option[String]) : BigInt = d(v) - d(u)
+
+    /** @return the assignment, shifted so that the constant 0 is 0 */
+    def model : Map[String,BigInt] = {
+      val zero = d(None)
+      dist.foldLeft (Map.empty[String,BigInt]) ((m, entry) => entry match {
+        case (Some(x), value) => m + (x -> (value - zero))
+        case (None, _) => m
+      })
+    }
+  }
+
+  private[solver] val EMPTY_GRAPH = new DiffGraph(Map.empty, Map.empty)
+
+  /** the state of the search at one node: the atoms assigned so far, the difference constraints they imply, the
+    * disequalities they imply, and whether any of them is outside of difference logic */
+  private case class SearchState(atoms : Map[Term,Boolean], graph : DiffGraph, diseqs : List[DiffLe],
+                                 hasUnknown : Boolean)
+
+  private[solver] class SearchBudgetExceeded extends Exception
+}
+
+/** Pure-JVM solver for the fragment that Solver.toAST produces: int and bool variables, linear arithmetic,
+  * comparisons, and boolean connectives. Uses DPLL-style case splitting over atoms with unit propagation, and difference
+  * logic as the theory. The difference constraints are checked incrementally as atoms are assigned (see DiffGraph). Comparisons outside of difference logic are treated as free boolean atoms, so UNSAT
+  * answers are always trustworthy; a SAT answer that depends on such an atom is reported as UNKNOWN. Supports
+  * push/pop and assumption literals, and is thread-safe per instance */
+class DpllSolver extends ModelSolver[Term] {
+  // assertions in each scope, innermost scope first
+  private var frames : List[List[Term]] = List(Nil)
+  // names added since each push, dropped on the matching pop (see Z3Solver)
+  val names : MMap[String, PureVar] = new HashMap[String, PureVar]
+  private var scopeNames : List[List[String]] = Nil
+
+  private var lastModel : Option[(Map[Term,Boolean], Map[String,BigInt])] = None
+  private var lastCore : List[String] = Nil
+  // theory meaning of each comparison atom seen in the current check
+  private val theoryAtoms = new HashMap[Cmp,TheoryAtom]
+
+  private def theoryAtom(c : Cmp) : TheoryAtom = theoryAtoms.getOrElseUpdate(c, toTheoryAtom(c))
+
+  override def checkSAT : Boolean = checkSATWithAssumptions(Nil)
+
+  override def checkSATWithAssumptions(assumes : List[String]) : Boolean = this.synchronized {
+    val assertions = frames.flatten
+    SolverStats.timeCheck(assertions.size) {
+      val formulas = assertions ++ assumes.map(assume => BoolVar(assume))
+      theoryAtoms.clear()
+      search(formulas) match {
+        case Some(model) =>
+          lastModel = Some(model)
+          true
+        case None =>
+          lastModel = None
+          // every assumption is a (not necessarily minimal) core; Solver.getUNSATCore minimizes small cores
+          lastCore = assumes
+          false
+      }
+    }
+  }
+
+  override def push() : Unit = this.synchronized {
+    frames = Nil :: frames
+    scopeNames = Nil :: scopeNames
+  }
+
+  override def pop() : Unit = this.synchronized {
+    frames = frames.tail
+    scopeNames match {
+      case scope :: outerScopes =>
+        scope.foreach(name => names.remove(name))
+        scopeNames = outerScopes
+      case Nil => ()
+    }
+  }
+
+  override def getUNSATCore : String = this.synchronized { lastCore.mkString(" ") }
+
+  override def dispose() : Unit = this.synchronized {
+    frames = List(Nil)
+    names.clear()
+    scopeNames = Nil
+    lastModel = None
+  }
+
+  override def mkAssert(t : Term) : Unit = this.synchronized {
+    SolverStats.recordAssert()
+    frames = (t :: frames.head) :: frames.tail
+  }
+
+  private def mkIff(lhs : Term, rhs : Term) : Term = Or(And(lhs, rhs), And(Not(lhs), Not(rhs)))
+
+  override def mkEq(lhs : Term, rhs : Term) : Term = if (isBool(lhs)) mkIff(lhs, rhs) else Cmp("=", lhs, rhs)
+  override def mkNe(lhs : Term, rhs : Term) : Term = Not(mkEq(lhs, rhs))
+  override def mkGt(lhs : Term, rhs : Term) : Term = Cmp(">", lhs, rhs)
+  override def mkLt(lhs : Term, rhs : Term) : Term = Cmp("<", lhs, rhs)
+  override def mkGe(lhs : Term, rhs : Term) : Term = Cmp(">=", lhs, rhs)
+  override def mkLe(lhs : Term, rhs : Term) : Term = Cmp("<=", lhs, rhs)
+
+  override def mkNot(o : Term) : Term = Not(o)
+  override def mkImplies(lhs : Term, rhs : Term) : Term = Or(Not(lhs), rhs)
+  override def mkAdd(lhs : Term, rhs : Term) : Term = Arith("+", lhs, rhs)
+  override def mkSub(lhs : Term, rhs : Term) : Term = Arith("-", lhs, rhs)
+  override def mkMul(lhs : Term, rhs : Term) : Term = Arith("*", lhs, rhs)
+  override def mkDiv(lhs : Term, rhs : Term) : Term = Arith("div", lhs, rhs)
+  override def mkRem(lhs : Term, rhs : Term) : Term = Arith("mod", lhs, rhs)
+  override def mkAnd(lhs : Term, rhs : Term) : Term = if (isBool(lhs)) And(lhs, rhs) else Arith("&", lhs, rhs)
+  override def mkOr(lhs : Term, rhs : Term) : Term = if (isBool(lhs)) Or(lhs, rhs) else Arith("|", lhs, rhs)
+  override def mkXor(lhs : Term, rhs : Term) : Term = if (isBool(lhs)) Not(mkIff(lhs, rhs)) else Arith("^", lhs, rhs)
+
+  override def mkIntVal(i : Int) : Term = IntLit(BigInt(i))
+  override def mkBoolVal(b : Boolean) : Term = BoolLit(b)
+  override def mkIntVar(s : String) : Term = IntVar(s)
+  override def mkBoolVar(s : String) : Term = BoolVar(s)
+
+  override def toAST(p : PureExpr) : Term = this.synchronized {
+    p match {
+      case p@PureVar(_) =>
+        val name = getSolverName(p)
+        if (!names.contains(name)) {
+          names += (name -> p)
+          scopeNames match {
+            case scope :: outerScopes => scopeNames = (name :: scope) :: outerScopes
+            case Nil => ()
+          }
+        }
+      case _ => ()
+    }
+    super.toAST(p)
+  }
+
+  override def model : Option[Map[PureVar, PureVal]] = this.synchronized {
+    lastModel.map(pair => {
+      val (atoms, ints) = pair
+      val boolVals = atoms.foldLeft (Map.empty[PureVar,PureVal]) ((m, entry) => entry match {
+        case (BoolVar(name), b) => names.get(name) match {
+          case Some(p) => m + (p -> BoolVal(b))
+          case None => m // assumption literal
+        }
+        case _ => m
+      })
+      ints.foldLeft (boolVals) ((m, entry) => names.get(entry._1) match {
+        case Some(p) if entry._2.isValidInt => m + (p -> IntVal(entry._2.toInt))
+        case _ => m
+      })
+    })
+  }
+
+  // three-valued evaluation of @param t under the partial assignment @param atoms
+  private def eval(t : Term, atoms : Map[Term,Boolean]) : Option[Boolean] = t match {
+    case BoolLit(b) => Some(b)
+    case Not(t) => eval(t, atoms).map(b => !b)
+    case And(lhs, rhs) => (eval(lhs, atoms), eval(rhs, atoms)) match {
+      case (Some(false), _) | (_, Some(false)) => Some(false)
+      case (Some(true), Some(true)) => Some(true)
+      case _ => None
+    }
+    case Or(lhs, rhs) => (eval(lhs, atoms), eval(rhs, atoms)) match {
+      case (Some(true), _) | (_, Some(true)) => Some(true)
+      case (Some(false), Some(false)) => Some(false)
+      case _ => None
+    }
+    case c@Cmp(_, _, _) => theoryAtom(c) match {
+      case ConstAtom(b) => Some(b)
+      case _ => atoms.get(c)
+    }
+    case atom => atoms.get(atom)
+  }
+
+  /** @return an atom of @param t that is unassigned and may decide t */
+  private def pickAtom(t : Term, atoms : Map[Term,Boolean]) : Option[Term] =
+    if (eval(t, atoms).isDefined) None
+    else t match {
+      case Not(t) => pickAtom(t, atoms)
+      case And(lhs, rhs) => pickAtom(lhs, atoms).orElse(pickAtom(rhs, atoms))
+      case Or(lhs, rhs) => pickAtom(lhs, atoms).orElse(pickAtom(rhs, atoms))
+      case atom => Some(atom)
+    }
+
+  /** @return the atoms that must be assigned (and their values) for @param t to evaluate to @param value under
+    * @param atoms. the empty list means that nothing is forced yet (or that t is already decided) */
+  private def forced(t : Term, value : Boolean, atoms : Map[Term,Boolean]) : List[(Term,Boolean)] =
+    if (eval(t, atoms).isDefined) Nil
+    else t match {
+      case Not(t) => forced(t, !value, atoms)
+      case And(lhs, rhs) if value => forced(lhs, true, atoms) ++ forced(rhs, true, atoms)
+      case Or(lhs, rhs) if !value => forced(lhs, false, atoms) ++ forced(rhs, false, atoms)
+      // a false conjunction or a true disjunction forces one side only once the other side is decided against it
+      case And(lhs, rhs) =>
+        if (eval(lhs, atoms) == Some(true)) forced(rhs, false, atoms)
+        else if (eval(rhs, atoms) == Some(true)) forced(lhs, false, atoms)
+        else Nil
+      case Or(lhs, rhs) =>
+        if (eval(lhs, atoms) == Some(false)) forced(rhs, true, atoms)
+        else if (eval(rhs, atoms) == Some(false)) forced(lhs, true, atoms)
+        else Nil
+      case atom => List((atom, value))
+    }
+
+  /** @return @param s with @param atom assigned @param value, or None if that makes the difference constraints
+    * inconsistent */
+  private def assign(s : SearchState, atom : Term, value : Boolean) : Option[SearchState] = {
+    val atoms = s.atoms + (atom -> value)
+    atom match {
+      case c@Cmp(_, _, _) => theoryAtom(c) match {
+        case a@DiffAtom(_, _, _, _) =>
+          val (les, diseq) = toDiffs(a, value)
+          les.foldLeft (Some(s.graph) : Option[DiffGraph]) ((graph, le) => graph.flatMap(graph => graph.add(le)))
+             .map(graph => SearchState(atoms, graph, diseq.toList ++ s.diseqs, s.hasUnknown))
+        case UnknownAtom => Some(s.copy(atoms = atoms, hasUnknown = true))
+        case ConstAtom(_) => Some(s.copy(atoms = atoms))
+      }
+      case _ => Some(s.copy(atoms = atoms))
+    }
+  }
+
+  /** assign every atom that some formula in @param formulas forces, until nothing more is forced. @return the resulting
+    * state, or None if we hit a conflict */
+  @annotation.tailrec
+  private def propagate(formulas : List[Term], s : SearchState) : Option[SearchState] =
+    if (formulas.exists(f => eval(f, s.atoms) == Some(false))) None
+    else formulas.flatMap(f => forced(f, true, s.atoms)) match {
+      case Nil => Some(s)
+      case units =>
+        val newState = units.foldLeft (Some(s) : Option[SearchState]) ((s, unit) => s.flatMap(s => {
+          val (atom, value) = unit
+          s.atoms.get(atom) match {
+            case Some(oldValue) => if (oldValue == value) Some(s) else None // two formulas force opposite values
+            case None => assign(s, atom, value)
+          }
+        }))
+        newState match {
+          case Some(newState) => propagate(formulas, newState)
+          case None => None
+        }
+    }
+
+  /** @return a satisfying assignment to the atoms and int variables of @param formulas, or None if they are UNSAT */
+  private def search(formulas : List[Term]) : Option[(Map[Term,Boolean], Map[String,BigInt])] = {
+    var nodes = 0
+    // true if we found an assignment that satisfies the formulas but depends on an atom we don't understand
+    var sawUnknown = false
+
+    def searchRec(s : SearchState) : Option[(Map[Term,Boolean], Map[String,BigInt])] = {
+      nodes += 1
+      if (nodes > MAX_SEARCH_NODES) throw new SearchBudgetExceeded
+      propagate(formulas, s).flatMap(s =>
+        if (formulas.forall(f => eval(f, s.atoms) == Some(true))) {
+          theoryModel(s.graph, s.diseqs) match {
+            case Some(ints) if !s.hasUnknown => Some((s.atoms, ints))
+            case Some(_) =>
+              sawUnknown = true
+              None
+            case None => None
+          }
+        } else {
+          val atom = formulas.foldLeft (None : Option[Term]) ((atom, f) => atom.orElse(pickAtom(f, s.atoms))).get
+          assign(s, atom, true).flatMap(s => searchRec(s)).orElse(assign(s, atom, false).flatMap(s => searchRec(s)))
+        }
+      )
+    }
+
+    try {
+      searchRec(SearchState(Map.empty, EMPTY_GRAPH, Nil, hasUnknown = false)) match {
+        case None if sawUnknown =>
+          throw new UnknownSMTResult("Constraints are outside of the fragment the DPLL solver understands")
+        case res => res
+      }
+    } catch {
+      case e : SearchBudgetExceeded =>
+        throw new UnknownSMTResult(s"DPLL solver gave up after $MAX_SEARCH_NODES search nodes")
+    }
+  }
+
+  /** @return a model of @param graph that also satisfies the disequalities @param diseqs, splitting x - y != k into
+    * x - y <= k - 1 or x - y >= k + 1 when the current model violates it */
+  private def theoryModel(graph : DiffGraph, diseqs : List[DiffLe]) : Option[Map[String,BigInt]] =
+    diseqs.find(d => graph.diff(d.x, d.y) == d.k) match {
+      case Some(d) =>
+        val rest = diseqs.filterNot(other => other eq d)
+        graph.add(DiffLe(d.x, d.y, d.k - 1)).flatMap(graph => theoryModel(graph, rest))
+          .orElse(graph.add(DiffLe(d.y, d.x, -d.k - 1)).flatMap(graph => theoryModel(graph, rest)))
+      case None => Some(graph.model)
+    }
+}
+
+/** checks the answers, models, and cores of the DPLL solver against known answers and, if the solver given by
+  * smt_solver_cmd can be started, against the SMT-LIB2 backend */
+object DpllSolverTests extends UnitTests {
+
+  /** @return whether @param constraints are SAT according to @param solver, and its model if it has one */
+  private def check(solver : Solver[_], constraints : List[PureConstraint]) : (Boolean, Option[Map[PureVar,PureVal]]) = {
+    solver.push
+    try {
+      constraints.foreach(c => solver.mkAssert(c))
+      val res = solver.checkSAT
+      (res, solver match {
+        case s : ModelSolver[_] if res => s.model
+        case _ => None
+      })
+    } finally solver.pop
+  }
+
+  // the SMT-LIB2 backend, or None if its solver can't be started here
+  private lazy val reference : Option[Solver[_]] = {
+    val solver = new SmtLib2Solver(Options.SMT_SOLVER_CMD.split("\\s+").toList)
+    try {
+      check(solver, Nil)
+      Some(solver)
+    } catch {
+      case e @ (_ : IOException | _ : UnknownSMTResult) =>
+        println(s"Can't start ${Options.SMT_SOLVER_CMD} ($e); not comparing against the SMT-LIB2 backend")
+        None
+    }
+  }
+
+  /** check that the DPLL solver finds @param constraints SAT iff @param expectSAT, that its model satisfies them, and
+    * that the SMT-LIB2 backend agrees */
+  private def expect(expectSAT : Boolean, constraints : List[PureConstraint]) : Unit = {
+    val (res, model) = check(new DpllSolver, constraints)
+    assert(res == expectSAT, s"Expected ${if (expectSAT) "SAT" else "UNSAT"} for $constraints")
+    if (expectSAT) model match {
+      case Some(model) => assert(ModelCache.satisfies(model, constraints), s"Model $model doesn't satisfy $constraints")
+      case None => assert(false, s"No model for $constraints")
+    }
+    reference.foreach(reference =>
+      assert(check(reference, constraints)._1 == expectSAT, s"SMT-LIB2 backend disagrees on $constraints"))
+  }
+
+  private def ints(n : Int) : List[PureVar] = List.fill(n)(Pure.makePureIntVar)
+  private def minus(x : PureVar, y : PureVar) : PureExpr = Pure.makePureBinExpr(x, IBinaryOpInstruction.Operator.SUB, y)
+  private def or(terms : PureAtomicConstraint*) : PureConstraint = Pure.makePureDisjunctiveConstraint(terms.toSet)
+
+  override def tests : List[(String, () => Unit)] = List(
+    ("Bounds", () => {
+      val List(x) = ints(1)
+      expect(true, List(Pure.makeGtConstraint(x, IntVal(0)), Pure.makeLtConstraint(x, IntVal(2))))
+      expect(false, List(Pure.makeGtConstraint(x, IntVal(0)), Pure.makeLtConstraint(x, IntVal(1))))
+    }),
+    ("Cycle", () => {
+      val List(x, y, z) = ints(3)
+      expect(false, List(Pure.makeLtConstraint(x, y), Pure.makeLtConstraint(y, z), Pure.makeLtConstraint(z, x)))
+      expect(true, List(Pure.makeLtConstraint(x, y), Pure.makeLtConstraint(y, z)))
+    }),
+    ("LongCycle", () => {
+      // each constraint lowers the assignment of every variable after it, so the incremental check does real work
+      val xs = ints(40)
+      val chain = xs.zip(xs.tail).map(pair => Pure.makeLtConstraint(pair._2, pair._1))
+      expect(true, chain)
+      expect(false, Pure.makeLtConstraint(xs.head, xs.last) :: chain)
+    }),
+    ("Differences", () => {
+      val List(x, y) = ints(2)
+      expect(false, List(Pure.makeLeConstraint(minus(x, y), IntVal(3)), Pure.makeGeConstraint(minus(x, y), IntVal(5))))
+      expect(true, List(Pure.makeLeConstraint(minus(x, y), IntVal(3)), Pure.makeGeConstraint(minus(x, y), IntVal(3))))
+    }),
+    ("Disequality", () => {
+      val List(x) = ints(1)
+      val range = List(Pure.makeNeConstraint(x, IntVal(0)), Pure.makeGeConstraint(x, IntVal(0)))
+      expect(false, Pure.makeLeConstraint(x, IntVal(0)) :: range)
+      expect(true, Pure.makeLeConstraint(x, IntVal(1)) :: range)
+    }),
+    ("Disjunction", () => {
+      val List(x) = ints(1)
+      val outside = List(or(Pure.makeLtConstraint(x, IntVal(0)), Pure.makeGtConstraint(x, IntVal(10))),
+                         Pure.makeGeConstraint(x, IntVal(0)))
+      expect(false, Pure.makeLeConstraint(x, IntVal(10)) :: outside)
+      expect(true, Pure.makeLeConstraint(x, IntVal(11)) :: outside)
+    }),
+    ("UnitPropagation", () => {
+      // x_0 = 1, x_i = 1 implies x_(i+1) = 1, and x_n != 1. refuted by propagation alone, without any case splits
+      val xs = ints(60)
+      val implications =
+        xs.zip(xs.tail).map(pair => or(Pure.makeNeConstraint(pair._1, IntVal(1)), Pure.makeEqConstraint(pair._2, IntVal(1))))
+      val start = Pure.makeEqConstraint(xs.head, IntVal(1))
+      expect(false, start :: Pure.makeNeConstraint(xs.last, IntVal(1)) :: implications)
+      expect(true, start :: implications)
+    }),
+    ("Nulls", () => {
+      val o = Pure.makePureObjVar
+      expect(false, List(Pure.makeEqNullConstraint(o), Pure.makeNeNullConstraint(o)))
+      expect(true, List(Pure.makeNeNullConstraint(o)))
+    }),
+    ("Core", () => {
+      val List(x, y) = ints(2)
+      val (gt, lt) = (Pure.makeGtConstraint(x, IntVal(0)), Pure.makeLtConstraint(x, IntVal(1)))
+      val constraints = List(gt, Pure.makeGtConstraint(y, IntVal(5)), lt)
+      val core = new DpllSolver().getUNSATCore(constraints)
+      assert(core == Some(Set(gt, lt)), s"Expected core {$gt, $lt}, got $core")
+      reference.foreach(reference => {
+        val refCore = reference.getUNSATCore(constraints)
+        assert(refCore == core, s"SMT-LIB2 backend found core $refCore")
+      })
+      val satCore = new DpllSolver().getUNSATCore(List(gt, Pure.makeLtConstraint(x, IntVal(2))))
+      assert(satCore == None, s"Expected no core for SAT constraints, got $satCore")
+    }),
+    ("PushPop", () => {
+      val List(x) = ints(1)
+      val outer = Pure.makeGtConstraint(x, IntVal(0))
+      val solver = new DpllSolver
+      solver.mkAssert(outer)
+      val (inner, _) = check(solver, List(Pure.makeLtConstraint(x, IntVal(1))))
+      assert(!inner, "Expected UNSAT inside push")
+      assert(solver.checkSAT, "Expected SAT after pop")
+      solver.model match {
+        case Some(model) => assert(ModelCache.satisfies(model, List(outer)), s"Model $model doesn't satisfy $outer")
+        case None => assert(false, "No model after pop")
+      }
+    })
+  )
+}
@@ -0,0 +1,109 @@
+package edu.colorado.hopper.solver
+
+import com.ibm.wala.shrikeBT.{IBinaryOpInstruction, IConditionalBranchInstruction}
+import com.ibm.wala.types.TypeReference
+import edu.colorado.hopper.state._
+import edu.colorado.thresher.core.Options
+
+/** Store of recent satisfying assignments produced by model solvers. Before asking the solver about a constraint set,
+  * we evaluate the set against the stored models; if one of them satisfies every constraint, the set is satisfiable
+  * and we don't need the solver. Evaluation only ever answers "satisfiable" or "don't know" */
+object ModelCache {
+  def USE_CACHE = Options.MODEL_CACHE
+  // number of recent models to keep
+  val MAX_MODELS = 32
+
+  // values we give to variables that a model doesn't mention, as (value for ints, value for booleans/objects) pairs.
+  // any assignment that satisfies all of the constraints is a witness, so it's fine to guess here
+  private val COMPLETIONS = List((BigInt(0), true), (BigInt(1), false))
+
+  private var models = List(Map.empty[PureVar,PureVal])
+  private var hits = 0L
+  private var misses = 0L
+
+  def add(model : Map[PureVar,PureVal]) : Unit =
+    if (USE_CACHE && !model.isEmpty) this.synchronized { models = (model :: models).take(MAX_MODELS) }
+
+  /** @return true if some stored model satisfies all of @param constraints, false if we don't know */
+  def isSatisfiedByCachedModel(constraints : Iterable[PureConstraint]) : Boolean = USE_CACHE && {
+    val curModels = this.synchronized { models }
+    val res = curModels.exists(model => COMPLETIONS.exists(completion =>
+      constraints.forall(c => eval(c, model, completion) == Some(true))))
+    this.synchronized { if (res) hits += 1 else misses += 1 }
+    res
+  }
+
+  /** @return true if @param model satisfies every one of @param constraints, treating variables that it doesn't mention
+    * as 0 (or true) */
+  private[solver] def satisfies(model : Map[PureVar,PureVal], constraints : Iterable[PureConstraint]) : Boolean =
+    constraints.forall(c => eval(c, model, COMPLETIONS.head) == Some(true))
+
+  private def eval(c : PureConstraint, model : Map[PureVar,PureVal], completion : (BigInt,Boolean)) : Option[Boolean] =
+    c match {
+      case PureAtomicConstraint(lhs, op, rhs) =>
+        (evalExpr(lhs, model, completion), evalExpr(rhs, model, completion)) match {
+          case (Some(l : BigInt), Some(r : BigInt)) => op match {
+            case IConditionalBranchInstruction.Operator.EQ => Some(l == r)
+            case IConditionalBranchInstruction.Operator.NE => Some(l != r)
+            case IConditionalBranchInstruction.Operator.GT => Some(l > r)
+            case IConditionalBranchInstruction.Operator.LT => Some(l < r)
+            case IConditionalBranchInstruction.Operator.GE => Some(l >= r)
+            case IConditionalBranchInstruction.Operator.LE => Some(l <= r)
+            case _ => None
+          }
+          case (Some(l : Boolean), Some(r : Boolean)) => op match {
+            case IConditionalBranchInstruction.Operator.EQ => Some(l == r)
+            case IConditionalBranchInstruction.Operator.NE => Some(l != r)
+            case _ => None
+          }
+          case _ => None
+        }
+      case PureDisjunctiveConstraint(terms) =>
+        val termResults = terms.map(t => eval(t, model, completion))
+        if (termResults.contains(Some(true))) Some(true)
+        else if (termResults.forall(r => r == Some(false))) Some(false)
+        else None
+    }
+
+  // ints are evaluated as BigInt's because the solver's ints are unbounded
+  private def evalExpr(e : PureExpr, model : Map[PureVar,PureVal], completion : (BigInt,Boolean)) : Option[Any] =
+    e match {
+      case p@PureVar(typ) => model.get(p) match {
+        case Some(v) => evalExpr(v, model, completion)
+        case None => typ match {
+          case TypeReference.Int | TypeReference.Byte | TypeReference.Short | TypeReference.Char => Some(completion._1)
+          case TypeReference.Boolean | TypeReference.JavaLangObject => Some(completion._2)
+          case _ => None
+        }
+      }
+      case BoolVal(b) => Some(b)
+      case IntVal(i) => Some(BigInt(i))
+      case CharVal(c) => Some(BigInt(c.getNumericValue)) // same encoding as Solver.toAST
+      case PureBinExpr(lhs, op, rhs) =>
+        (evalExpr(lhs, model, completion), evalExpr(rhs, model, completion)) match {
+          case (Some(l : BigInt), Some(r : BigInt)) => op match {
+            case IBinaryOpInstruction.Operator.ADD => Some(l + r)
+            case IBinaryOpInstruction.Operator.SUB => Some(l - r)
+            case IBinaryOpInstruction.Operator.MUL => Some(l * r)
+            // division, remainder, and bitwise ops have solver-specific semantics; don't guess
+            case _ => None
+          }
+          case _ => None
+        }
+      case _ => None
+    }
+
+  def hitRate : Double = this.synchronized {
+    if (hits + misses == 0) 0.0 else hits.toDouble / (hits + misses)
+  }
+
+  def printStats() : Unit = this.synchronized {
+    println(s"Model cache: $hits hits, $misses misses, hit rate $hitRate")
+  }
+
+  def clear() : Unit = this.synchronized {
+    models = List(Map.empty[PureVar,PureVal])
+    hits = 0
+    misses = 0
+  }
+}
@@ -0,0 +1,161 @@
+package edu.colorado.hopper.solver
+
+import java.util.concurrent.atomic.AtomicLong
+
+import edu.colorado.hopper.client.UnitTests
+import edu.colorado.hopper.state._
+import edu.colorado.thresher.core.Options
+
+/** Store of unsatisfiable cores learned from earlier solver calls. A constraint set that contains a substitution
+  * instance of a stored core is unsatisfiable, so we can refute it by matching syntactically instead of asking the
+  * solver. Cores are shared across paths and across queries; PureVar's in a core act as pattern variables */
+object RefutationLemmas {
+  def USE_LEMMAS = Options.REFUTATION_LEMMAS
+  val MAX_LEMMAS = 512
+  // cores bigger than this are too expensive to match and too specific to be worth keeping
+  val MAX_LEMMA_SIZE = 6
+
+  private class Lemma(val constraints : List[PureConstraint]) {
+    val shapes : Set[String] = constraints.map(c => SATCache.shape(c)).toSet
+    override def toString : String = constraints.mkString(" ^ ")
+  }
+
+  // written under the lock, but read without it, since reads far outnumber writes
+  @volatile private var lemmas = List.empty[Lemma]
+  private val hits = new AtomicLong
+
+  def learn(core : Set[PureConstraint]) : Unit =
+    if (USE_LEMMAS && !core.isEmpty && core.size <= MAX_LEMMA_SIZE) {
+      // order by shape so that the most constrained shapes are tried first when matching
+      val lemma = new Lemma(core.toList.sortBy(c => SATCache.shape(c)))
+      this.synchronized {
+        if (!lemmas.exists(l => l.constraints == lemma.constraints)) lemmas = (lemma :: lemmas).take(MAX_LEMMAS)
+      }
+    }
+
+  /** @return true if @param constraints contain an instance of a learned core (and thus are unsatisfiable) */
+  def isRefutedByLemma(constraints : Iterable[PureConstraint]) : Boolean = USE_LEMMAS && {
+    val curLemmas = lemmas
+    curLemmas.nonEmpty && {
+      val byShape = constraints.groupBy(c => SATCache.shape(c))
+      curLemmas.find(l => l.shapes.forall(s => byShape.contains(s)) &&
+                          matches(l.constraints, byShape, Map.empty[PureVar,PureVar])) match {
+        case Some(l) =>
+          if (Options.PRINT_REFS) println(s"Refuted by learned lemma $l")
+          hits.incrementAndGet()
+          true
+        case None => false
+      }
+    }
+  }
+
+  private def matches(lemma : List[PureConstraint], byShape : Map[String,Iterable[PureConstraint]],
+                      sub : Map[PureVar,PureVar]) : Boolean = lemma match {
+    case l :: rest => byShape.getOrElse(SATCache.shape(l), Nil).exists(c => unify(l, c, sub) match {
+      case Some(sub) => matches(rest, byShape, sub)
+      case None => false
+    })
+    case Nil => true
+  }
+
+  // an instance of an unsatisfiable formula under any substitution is unsatisfiable, so sub need not be injective
+  private def unify(l : PureConstraint, c : PureConstraint, sub : Map[PureVar,PureVar]) : Option[Map[PureVar,PureVar]] =
+    (l, c) match {
+      case (PureAtomicConstraint(lLhs, lOp, lRhs), PureAtomicConstraint(cLhs, cOp, cRhs)) if lOp == cOp =>
+        unify(lLhs, cLhs, sub).flatMap(sub => unify(lRhs, cRhs, sub))
+      case (PureDisjunctiveConstraint(lTerms), PureDisjunctiveConstraint(cTerms)) if lTerms.size == cTerms.size =>
+        // c is an instance of l if its disjuncts are instances of the disjuncts of l, one for one
+        unifyTerms(lTerms.toList, cTerms.toList, sub)
+      case _ => None
+    }
+
+  private def unifyTerms(lTerms : List[PureAtomicConstraint], cTerms : List[PureAtomicConstraint],
+                         sub : Map[PureVar,PureVar]) : Option[Map[PureVar,PureVar]] = lTerms match {
+    case l :: rest =>
+      cTerms.toStream.flatMap(c => unify(l, c, sub).flatMap(sub => unifyTerms(rest, cTerms.diff(List(c)), sub)))
+        .headOption
+    case Nil => Some(sub)
+  }
+
+  private def unify(l : PureExpr, c : PureExpr, sub : Map[PureVar,PureVar]) : Option[Map[PureVar,PureVar]] =
+    (l, c) match {
+      case (lVar@PureVar(lTyp), cVar@PureVar(cTyp)) if lTyp == cTyp => sub.get(lVar) match {
+        case Some(v) => if (v == cVar) Some(sub) else None
+        case None => Some(sub + (lVar -> cVar))
+      }
+      case (PureBinExpr(lLhs, lOp, lRhs), PureBinExpr(cLhs, cOp, cRhs)) if lOp == cOp =>
+        unify(lLhs, cLhs, sub).flatMap(sub => unify(lRhs, cRhs, sub))
+      case (lVal : PureVal, cVal : PureVal) if lVal.getClass == cVal.getClass && lVal == cVal => Some(sub)
+      case _ => None
+    }
+
+  def printStats() : Unit = println(s"Refutation lemmas: ${lemmas.size} learned, ${hits.get} refutations by lemma")
+
+  def clear() : Unit = {
+    this.synchronized { lemmas = List.empty[Lemma] }
+    hits.set(0)
+  }
+}
+
+object RefutationLemmasTests extends UnitTests {
+
+  /** run @param body with lemmas on and an empty lemma store, and leave the store empty for whatever runs next */
+  private def withNoLemmas(body : => Unit) : Unit = {
+    val useLemmas = Options.REFUTATION_LEMMAS
+    Options.REFUTATION_LEMMAS = true
+    RefutationLemmas.clear()
+    try body finally {
+      RefutationLemmas.clear()
+      Options.REFUTATION_LEMMAS = useLemmas
+    }
+  }
+
+  private def or(terms : PureAtomicConstraint*) : PureConstraint = Pure.makePureDisjunctiveConstraint(terms.toSet)
+
+  private def expectRefuted(expected : Boolean, constraints : List[PureConstraint]) : Unit =
+    assert(RefutationLemmas.isRefutedByLemma(constraints) == expected,
+           s"Expected $constraints to ${if (expected) "" else "not "}be refuted by a lemma")
+
+  override def tests : List[(String, () => Unit)] = List(
+    ("Instance", () => withNoLemmas {
+      val (x, y, z) = (Pure.makePureIntVar, Pure.makePureIntVar, Pure.makePureIntVar)
+      RefutationLemmas.learn(Set(Pure.makeGtConstraint(x, IntVal(5)), Pure.makeLtConstraint(x, IntVal(3))))
+      // renaming x to y gives an instance, whatever else is in the set
+      expectRefuted(true, List(Pure.makeLtConstraint(y, IntVal(3)), Pure.makeEqConstraint(z, IntVal(1)),
+                               Pure.makeGtConstraint(y, IntVal(5))))
+      // x can't stand for two different variables
+      expectRefuted(false, List(Pure.makeGtConstraint(y, IntVal(5)), Pure.makeLtConstraint(z, IntVal(3))))
+      // constants must match exactly
+      expectRefuted(false, List(Pure.makeGtConstraint(y, IntVal(5)), Pure.makeLtConstraint(y, IntVal(4))))
+    }),
+    ("Disjunction", () => withNoLemmas {
+      val (a, b, c, d) = (Pure.makePureIntVar, Pure.makePureIntVar, Pure.makePureIntVar, Pure.makePureIntVar)
+      RefutationLemmas.learn(Set(or(Pure.makeEqConstraint(a, IntVal(1)), Pure.makeEqConstraint(b, IntVal(1))),
+                                 Pure.makeNeConstraint(a, IntVal(1)), Pure.makeNeConstraint(b, IntVal(1))))
+      // the disjuncts of the instance can be matched in any order
+      expectRefuted(true, List(Pure.makeNeConstraint(d, IntVal(1)), Pure.makeNeConstraint(c, IntVal(1)),
+                               or(Pure.makeEqConstraint(d, IntVal(1)), Pure.makeEqConstraint(c, IntVal(1)))))
+      expectRefuted(false, List(Pure.makeNeConstraint(d, IntVal(1)), Pure.makeNeConstraint(c, IntVal(1)),
+                                or(Pure.makeEqConstraint(d, IntVal(1)), Pure.makeEqConstraint(c, IntVal(2)))))
+    }),
+    ("TooBig", () => withNoLemmas {
+      val xs = List.fill(RefutationLemmas.MAX_LEMMA_SIZE + 1)(Pure.makePureIntVar)
+      val core = (Pure.makeLtConstraint(xs.last, xs.head) :: xs.zip(xs.tail).map(pair =>
+        Pure.makeLtConstraint(pair._1, pair._2))).toSet[PureConstraint]
+      RefutationLemmas.learn(core)
+      expectRefuted(false, core.toList)
+    }),
+    ("LearnFromSolver", () => withNoLemmas {
+      // the decider can't handle the disjunction, so refuting this takes the solver, which should learn the core
+      val (x, y, z) = (Pure.makePureIntVar, Pure.makePureIntVar, Pure.makePureIntVar)
+      val constraints = List(or(Pure.makeEqConstraint(x, IntVal(1)), Pure.makeEqConstraint(x, IntVal(2))),
+                             Pure.makeGtConstraint(x, IntVal(5)))
+      SATCache.clear() // a cached result for these constraints would skip the solver, and with it the learning
+      val solver = new DpllSolver
+      try assert(!solver.checkConstraints(constraints), s"Expected $constraints to be UNSAT")
+      finally solver.dispose()
+      expectRefuted(true, List(Pure.makeGtConstraint(y, IntVal(5)), Pure.makeEqConstraint(z, IntVal(0)),
+                               or(Pure.makeEqConstraint(y, IntVal(2)), Pure.makeEqConstraint(y, IntVal(1)))))
+    })
+  )
+}
@@ -0,0 +1,103 @@
+package edu.colorado.hopper.solver
+
+import com.twitter.util.LruMap
+import edu.colorado.hopper.state._
+import edu.colorado.thresher.core.Options
+
+/** Cache of solver results shared by all solvers. Keys are canonical renderings of constraint sets in which PureVar's
+  * are renamed in order of first appearance, so alpha-equivalent constraint sets share an entry. The canonical form is
+  * not perfect (some alpha-equivalent sets get different keys), but equal keys always mean alpha-equivalent sets */
+object SATCache {
+  def USE_CACHE = Options.SAT_CACHE
+  val CACHE_SIZE = 10000
+
+  private val cache = new LruMap[String,Boolean](CACHE_SIZE)
+  private var hits = 0L
+  private var misses = 0L
+
+  /** @return true if @param constraints are satisfiable. computed by @param check on a cache miss */
+  def checkSAT(constraints : Iterable[PureConstraint], check : => Boolean) : Boolean =
+    getOrCheck(canonicalize(List(constraints)), check)
+
+  /** @return true if @param lhs does *not* imply @param rhs (i.e., lhs ^ !rhs is satisfiable). computed by @param check
+    * on a cache miss */
+  def checkNotImplies(lhs : Iterable[PureConstraint], rhs : Iterable[PureConstraint], check : => Boolean) : Boolean =
+    getOrCheck("!=>" + canonicalize(List(lhs, rhs)), check)
+
+  /** @return the cached result for @param constraints, if any */
+  def get(constraints : Iterable[PureConstraint]) : Option[Boolean] =
+    if (!USE_CACHE) None
+    else cache.synchronized { cache.get(canonicalize(List(constraints))) } match {
+      case hit@Some(_) =>
+        this.synchronized { hits += 1 }
+        hit
+      case None => None
+    }
+
+  /** record that @param constraints are satisfiable iff @param res. used by batched checks that bypass checkSAT */
+  def put(constraints : Iterable[PureConstraint], res : Boolean) : Unit =
+    if (USE_CACHE) {
+      val key = canonicalize(List(constraints))
+      this.synchronized { misses += 1 }
+      cache.synchronized { cache.put(key, res) }
+    }
+
+  private def getOrCheck(key : String, check : => Boolean) : Boolean =
+    if (!USE_CACHE) check
+    else cache.synchronized { cache.get(key) } match {
+      case Some(res) =>
+        this.synchronized { hits += 1 }
+        res
+      case None =>
+        // don't hold the lock while the solver runs. UnknownSMTResult's propagate and are not cached
+        val res = check
+        this.synchronized { misses += 1 }
+        cache.synchronized { cache.put(key, res) }
+        res
+    }
+
+  // rendering of a constraint with all variables replaced by their type. used to put constraints in a canonical order
+  private[solver] def shape(c : PureConstraint) : String = render(c, v => v.typ.toString)
+
+  private def render(c : PureConstraint, varName : PureVar => String) : String = c match {
+    case PureAtomicConstraint(lhs, op, rhs) =>
+      s"(${render(lhs, varName)} ${Pure.cmpOpToString(op)} ${render(rhs, varName)})"
+    case PureDisjunctiveConstraint(terms) =>
+      // sort by shape first so that the order of terms in the set doesn't matter
+      terms.toList.sortBy(t => shape(t)).map(t => render(t, varName)).mkString("(V ", " ", ")")
+  }
+
+  private def render(e : PureExpr, varName : PureVar => String) : String = e match {
+    case PureBinExpr(lhs, op, rhs) => s"(${render(lhs, varName)} ${Pure.binOpToString(op)} ${render(rhs, varName)})"
+    case v@PureVar(_) => varName(v)
+    case v : PureVal => v.getClass.getSimpleName + ":" + v.v
+  }
+
+  /** rename the variables in each of @param constraintSets (sharing names across sets) and render the result */
+  private def canonicalize(constraintSets : List[Iterable[PureConstraint]]) : String = {
+    var names = Map.empty[PureVar,String]
+    def varName(v : PureVar) : String = names.get(v) match {
+      case Some(name) => name
+      case None =>
+        val name = s"${v.typ}#${names.size}"
+        names += (v -> name)
+        name
+    }
+    constraintSets.map(constraints =>
+      constraints.toList.sortBy(c => shape(c)).map(c => render(c, varName)).mkString(" ^ ")
+    ).mkString(" | ")
+  }
+
+  def hitRate : Double = this.synchronized {
+    if (hits + misses == 0) 0.0 else hits.toDouble / (hits + misses)
+  }
+
+  def printStats() : Unit = this.synchronized {
+    println(s"SAT cache: $hits hits, $misses misses, hit rate $hitRate")
+  }
+
+  def clear() : Unit = {
+    cache.synchronized { cache.clear() }
+    this.synchronized { hits = 0; misses = 0 }
+  }
+}
@@ -0,0 +1,214 @@
+package edu.colorado.hopper.solver
+
+import java.io.{BufferedReader, BufferedWriter, IOException, InputStreamReader, OutputStreamWriter}
+
+import edu.colorado.walautil.Types.MSet
+import edu.colorado.walautil.Util
+
+import scala.collection.mutable.ArrayBuffer
+
+object SmtLib2Solver {
+  private val DEBUG = false
+  // declarations are global so that they survive pop's. this way, we only have to declare each name once, and we can
+  // replay the declarations if we have to restart the solver process
+  private val PRELUDE = List("(set-option :print-success false)", "(set-option :global-declarations true)",
+                              "(set-option :produce-unsat-cores true)")
+  // when we have declared more names than this and the solver holds no assertions, we reset it to drop the names
+  private val MAX_DECLARATIONS = 10000
+}
+
+/** Solver that sends SMT-LIB2 text to an external solver process over a pipe. If the process crashes, the check that
+  * was in flight fails with an UnknownSMTResult and the process is restarted; the JVM is unaffected. Assertions made
+  * before the crash are lost, which only makes later checks more likely to return SAT (i.e., fewer refutations).
+  * @param cmd - command that starts a solver reading SMT-LIB2 commands from stdin, e.g. z3 -in -smt2 */
+class SmtLib2Solver(cmd : Seq[String]) extends Solver[String] {
+  import SmtLib2Solver._
+
+  // names we have declared so far, and their declarations in the order we sent them
+  private val declared : MSet[String] = Util.makeSet[String]
+  private val declarations = new ArrayBuffer[String]
+
+  private var proc : Process = null
+  private var in : BufferedReader = null
+  private var out : BufferedWriter = null
+  // number of push's on the current process that have not been pop'ed
+  private var scopes = 0
+  // number of push's that were lost when the process crashed and have not been pop'ed yet
+  private var lostScopes = 0
+  // number of assertions in the solver, and the number there were at each push
+  private var liveAssertions = 0
+  private var scopeAssertions = List.empty[Int]
+
+  private def start() : Unit = {
+    proc = new ProcessBuilder(cmd : _*).redirectErrorStream(true).start()
+    in = new BufferedReader(new InputStreamReader(proc.getInputStream))
+    out = new BufferedWriter(new OutputStreamWriter(proc.getOutputStream))
+    PRELUDE.foreach(c => write(c))
+    declarations.foreach(c => write(c))
+  }
+
+  private def write(c : String) : Unit = {
+    if (DEBUG) println("SMT> " + c)
+    out.write(c)
+    out.newLine()
+  }
+
+  /** kill the current process (if any). the next command will start a new one */
+  private def kill() : Unit = {
+    if (proc != null) proc.destroy()
+    proc = null
+    lostScopes += scopes
+    scopes = 0
+    liveAssertions = 0
+    scopeAssertions = Nil
+  }
+
+  /** reset the solver to forget the names we have declared. only done when no assertions would be lost */
+  private def compact() : Unit =
+    if (proc != null && scopes == 0 && liveAssertions == 0 && declarations.size > MAX_DECLARATIONS) {
+      declared.clear()
+      declarations.clear()
+      send("(reset)")
+      PRELUDE.foreach(c => send(c))
+    }
+
+  private def send(c : String) : Unit = {
+    if (proc == null) start()
+    try write(c)
+    catch {
+      case e : IOException =>
+        kill()
+        throw new UnknownSMTResult("SMT solver process died: " + e)
+    }
+  }
+
+  /** send @param c and wait for a sat/unsat/unknown answer */
+  private def check(c : String) : Boolean = {
+    send(c)
+    SolverStats.timeCheck(liveAssertions)(try {
+      out.flush()
+      var errMsg : Option[String] = None
+      var line = in.readLine()
+      while (line != null && line != "sat" && line != "unsat" && line != "unknown") {
+        // the solver reports problems with earlier commands here, just before the answer to the check
+        if (line.startsWith("(error")) errMsg = Some(line)
+        line = in.readLine()
+      }
+      line match {
+        case null =>
+          kill()
+          throw new UnknownSMTResult("SMT solver process exited unexpectedly")
+        case _ if errMsg.isDefined => throw new UnknownSMTResult("SMT solver error " + errMsg.get)
+        case "unsat" => false
+        case "sat" => true
+        case _ =>
+          // this usually happens because of timeouts
+          throw new UnknownSMTResult("SMT solver decidability or timeout issue--got unknown")
+      }
+    } catch {
+      case e : IOException =>
+        kill()
+        throw new UnknownSMTResult("SMT solver process died: " + e)
+    })
+  }
+
+  private def declare(name : String, sort : String) : String = {
+    if (declared.add(name)) {
+      val decl = s"(declare-const $name $sort)"
+      declarations += decl
+      send(decl)
+    }
+    name
+  }
+
+  // quote all names since assumption literals are just numbers
+  private def quote(s : String) : String = s"|$s|"
+
+  override def checkSAT : Boolean = check("(check-sat)")
+
+  override def checkSATWithAssumptions(assumes : List[String]) : Boolean =
+    check(s"(check-sat-assuming (${assumes.map(assume => mkBoolVar(assume)).mkString(" ")}))")
+
+  override def push() : Unit = {
+    compact()
+    send("(push 1)")
+    scopes += 1
+    scopeAssertions = liveAssertions :: scopeAssertions
+  }
+
+  override def pop() : Unit =
+    if (scopes > 0) {
+      send("(pop 1)")
+      scopes -= 1
+      liveAssertions = scopeAssertions.head
+      scopeAssertions = scopeAssertions.tail
+    } else if (lostScopes > 0) lostScopes -= 1 // this scope died with the old process; nothing to pop
+    else sys.error("Pop without matching push")
+
+  override def getUNSATCore : String = {
+    send("(get-unsat-core)")
+    try {
+      out.flush()
+      // the core is a parenthesized list of names, possibly spanning several lines
+      var core = ""
+      var line = in.readLine()
+      while (line != null && (core + line).count(_ == '(') != (core + line).count(_ == ')')) {
+        core += line + " "
+        line = in.readLine()
+      }
+      if (line == null) {
+        kill()
+        throw new UnknownSMTResult("SMT solver process exited unexpectedly")
+      }
+      core += line
+      if (core.startsWith("(error")) throw new UnknownSMTResult("SMT solver error " + core)
+      core.replaceAll("[()|]", " ").trim
+    } catch {
+      case e : IOException =>
+        kill()
+        throw new UnknownSMTResult("SMT solver process died: " + e)
+    }
+  }
+
+  override def dispose() : Unit =
+    if (proc != null) {
+      try {
+        write("(exit)")
+        out.flush()
+      } catch {
+        case e : IOException => () // process is already gone
+      }
+      proc.destroy()
+      proc = null
+    }
+
+  override def mkAssert(a : String) : Unit = {
+    SolverStats.recordAssert()
+    send(s"(assert $a)")
+    liveAssertions += 1
+  }
+
+  override def mkNot(o : String) : String = s"(not $o)"
+  override def mkEq(lhs : String, rhs : String) : String = s"(= $lhs $rhs)"
+  override def mkNe(lhs : String, rhs : String) : String = s"(not (= $lhs $rhs))"
+  override def mkGt(lhs : String, rhs : String) : String = s"(> $lhs $rhs)"
+  override def mkLt(lhs : String, rhs : String) : String = s"(< $lhs $rhs)"
+  override def mkGe(lhs : String, rhs : String) : String = s"(>= $lhs $rhs)"
+  override def mkLe(lhs : String, rhs : String) : String = s"(<= $lhs $rhs)"
+
+  override def mkAdd(lhs : String, rhs : String) : String = s"(+ $lhs $rhs)"
+  override def mkSub(lhs : String, rhs : String) : String = s"(- $lhs $rhs)"
+  override def mkMul(lhs : String, rhs : String) : String = s"(* $lhs $rhs)"
+  override def mkDiv(lhs : String, rhs : String) : String = s"(div $lhs $rhs)"
+  override def mkRem(lhs : String, rhs : String) : String = s"(mod $lhs $rhs)"
+  override def mkImplies(lhs : String, rhs : String) : String = s"(=> $lhs $rhs)"
+  override def mkAnd(lhs : String, rhs : String) : String = s"(and $lhs $rhs)"
+  override def mkOr(lhs : String, rhs : String) : String = s"(or $lhs $rhs)"
+  override def mkXor(lhs : String, rhs : String) : String = s"(xor $lhs $rhs)"
+
+  // SMT-LIB2 has no negative literals
+  override def mkIntVal(i : Int) : String = if (i < 0) s"(- ${-i.toLong})" else i.toString
+  override def mkBoolVal(b : Boolean) : String = b.toString
+  override def mkIntVar(s : String) : String = declare(quote(s), "Int")
+  override def mkBoolVar(s : String) : String = declare(quote(s), "Bool")
+}
@@ -3,12 +3,26 @@ package edu.colorado.hopper.solver
 import com.ibm.wala.shrikeBT.{IBinaryOpInstruction, IConditionalBranchInstruction}
 import com.ibm.wala.types.TypeReference
 import edu.colorado.hopper.state.{BoolVal, CharVal, IntVal, PureAtomicConstraint, PureBinExpr, PureConstraint, PureDisjunctiveConstraint, PureExpr, PureVar}
+import edu.colorado.thresher.core.Options
 import edu.colorado.walautil.Types._
 
 trait Assumptions
 
 class UnknownSMTResult(msg : String) extends Exception(msg)
 
+object Solver {
+  // UNSAT cores with at most this many constraints are minimized
+  val MAX_CORE_MINIMIZE = 8
+
+  /** @return a fresh solver of the kind selected by Options.SMT_SOLVER */
+  def make() : Solver[_] = Options.SMT_SOLVER match {
+    case "z3" => new Z3Solver
+    case "smtlib2" => new SmtLib2Solver(Options.SMT_SOLVER_CMD.split("\\s+").toList)
+    case "dpll" => new DpllSolver
+    case other => sys.error("Unknown SMT solver " + other + "; expecting z3, smtlib2, or dpll")
+  }
+}
+
 /** SMT solver parameterized by its AST or expression type */
 trait Solver[T] {
   // checking
@@ -22,6 +36,133 @@ trait Solver[T] {
     res
   }
 
+  /** check the satisfiability of @param constraints on their own. constraints asserted via mkAssertWithAssumption do
+    * not affect the result, since no assumption literals are enabled */
+  def checkConstraints(constraints : Iterable[PureConstraint]) : Boolean =
+    DifferenceBoundDecider.decide(constraints) match {
+      case Some(res) => res // simple enough to decide without the solver
+      case None =>
+        ModelCache.isSatisfiedByCachedModel(constraints) ||
+        (!RefutationLemmas.isRefutedByLemma(constraints) && SATCache.checkSAT(constraints, {
+          val res = checkIsolated(constraints)
+          // remember why the constraints are UNSAT so that we can refute similar constraint sets without the solver. the
+          // constraints are already known to be UNSAT here, so if the solver gives up while extracting or minimizing
+          // the core we only lose the lemma, not the refutation
+          if (!res && RefutationLemmas.USE_LEMMAS)
+            try getUNSATCore(constraints).foreach(core => RefutationLemmas.learn(core))
+            catch { case e : UnknownSMTResult => () }
+          res
+        }))
+    }
+
+  /** push, assert @param constraints, check, and pop. if the constraints are SAT, save the model (if any) */
+  private def checkIsolated(constraints : Iterable[PureConstraint]) : Boolean = {
+    push
+    try {
+      constraints.foreach(c => mkAssert(c))
+      val res = checkSAT
+      if (res) this match {
+        case s : ModelSolver[_] => s.model.foreach(m => ModelCache.add(m)) // save the model for later checks
+        case _ => ()
+      }
+      res
+    } finally pop
+  }
+
+  /** @return a subset of @param constraints that is UNSAT on its own, or None if @param constraints are SAT. cores with
+    * at most MAX_CORE_MINIMIZE constraints are minimized by dropping constraints one at a time */
+  def getUNSATCore(constraints : Iterable[PureConstraint]) : Option[Set[PureConstraint]] = {
+    val constraintList = constraints.toList
+    val core =
+      if (constraintList.size <= 1) {
+        if (checkIsolated(constraintList)) None else Some(constraintList.toSet)
+      } else {
+        // track each constraint with its own assumption literal, then ask which literals the refutation needed
+        val literals = constraintList.indices.map(i => "core" + i).toList
+        push
+        try {
+          constraintList.zip(literals).foreach(pair => mkAssertWithAssumption(pair._2, pair._1))
+          if (checkSATWithAssumptions(literals)) None
+          else {
+            val coreLiterals = getUNSATCore.split("\\s+").toSet
+            Some(constraintList.zip(literals).collect({ case (c, l) if coreLiterals.contains(l) => c }).toSet)
+          }
+        } finally pop
+      }
+    core match {
+      case Some(core) if core.size > 1 && core.size <= Solver.MAX_CORE_MINIMIZE =>
+        Some(core.foldLeft (core) ((core, c) => {
+          val smaller = core - c
+          val smallerSAT = DifferenceBoundDecider.decide(smaller) match {
+            case Some(res) => res
+            case None => checkIsolated(smaller)
+          }
+          if (smallerSAT) core else smaller // c is needed for the refutation iff dropping it makes the rest SAT
+        }))
+      case core => core
+    }
+  }
+
+  /** @return for each of @param candidates, true if it is satisfiable together with @param base. candidates that the
+    * fast paths of checkConstraints can't decide share a single solver session: base is asserted once, each candidate
+    * is guarded by its own assumption literal, and each check enables only one literal. a candidate whose check ends in
+    * an UnknownSMTResult is reported as satisfiable */
+  def checkCandidates(base : Iterable[PureConstraint], candidates : List[PureConstraint]) : List[Boolean] = {
+    val baseList = base.toList
+    // everything we can decide without the solver. a model found while checking one candidate may decide later ones
+    def decideQuickly(c : PureConstraint) : Option[Boolean] = {
+      val constraints = c :: baseList
+      DifferenceBoundDecider.decide(constraints) match {
+        case None =>
+          if (ModelCache.isSatisfiedByCachedModel(constraints)) Some(true)
+          else if (RefutationLemmas.isRefutedByLemma(constraints)) Some(false)
+          else SATCache.get(constraints)
+        case res => res
+      }
+    }
+
+    val quick = candidates.map(c => decideQuickly(c))
+    if (quick.forall(res => res.isDefined)) quick.map(res => res.get)
+    else {
+      val undecided = candidates.zip(quick).zipWithIndex.collect({ case ((c, None), i) => (c, "cand" + i) })
+      push
+      val decided = try {
+        baseList.foreach(c => mkAssert(c))
+        undecided.foreach(pair => mkAssertWithAssumption(pair._2, pair._1))
+        undecided.foldLeft (Map.empty[PureConstraint,Boolean]) ((decided, pair) => pair match {
+          case (c, _) if decided.contains(c) => decided
+          case (c, literal) => decideQuickly(c) match {
+            case Some(res) => decided + (c -> res)
+            case None =>
+              try {
+                val res = checkSATWithAssumptions(List(literal))
+                if (res) this match {
+                  case s : ModelSolver[_] => s.model.foreach(m => ModelCache.add(m))
+                  case _ => ()
+                }
+                SATCache.put(c :: baseList, res)
+                decided + (c -> res)
+              } catch {
+                case e : UnknownSMTResult => decided + (c -> true) // can't refute; keep the candidate
+              }
+          }
+        })
+      } finally pop
+      candidates.zip(quick).map(pair => pair._2.getOrElse(decided(pair._1)))
+    }
+  }
+
+  /** @return true if @param lhs does *not* imply @param rhs, checked on their own like checkConstraints */
+  def checkNotImplies(lhs : Iterable[PureConstraint], rhs : Iterable[PureConstraint]) : Boolean =
+    SATCache.checkNotImplies(lhs, rhs, {
+      push
+      try {
+        mkNotImpliesAssert(lhs, rhs)
+        checkSAT
+      } finally pop
+    })
+
+  /** @return the names of the assumption literals in the UNSAT core of the last check, separated by whitespace */
   def getUNSATCore : String
   def push() : Unit
   def pop() : Unit
@@ -0,0 +1,108 @@
+package edu.colorado.hopper.solver
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{Callable, CountDownLatch, Executors}
+
+import edu.colorado.hopper.client.UnitTests
+import edu.colorado.hopper.state.{IntVal, Pure}
+import edu.colorado.walautil.Types.MSet
+import edu.colorado.walautil.Util
+
+/** Hands out one solver per thread (for Z3Solver, one Z3 Context per thread; for SmtLib2Solver, one solver process per
+  * thread). Each solver is only ever touched by the thread that created it, so parallel queries can check constraints
+  * without contending on a single synchronized solver the way they do with ThreadSafeZ3Solver
+  * @param makeSolver - creates a new solver for a thread that does not have one yet */
+class SolverPool[T <: Solver[_]](makeSolver : () => T) {
+  // every solver we have handed out, so that we can dispose all of them at the end
+  private val solvers : MSet[T] = Util.makeSet[T]
+
+  private var threadSolver = makeThreadSolver
+
+  private def makeThreadSolver : ThreadLocal[T] = new ThreadLocal[T] {
+    override def initialValue() : T = {
+      val solver = makeSolver()
+      solvers.synchronized { solvers += solver }
+      solver
+    }
+  }
+
+  /** @return the solver owned by the calling thread, creating it if this thread has not asked for one before */
+  def get : T = this.synchronized { threadSolver }.get()
+
+  /** @return the number of distinct solvers (i.e., threads) this pool has handed out */
+  def size : Int = solvers.synchronized { solvers.size }
+
+  /** dispose every solver in the pool. threads that ask for a solver afterward get a fresh one */
+  def dispose() : Unit = this.synchronized {
+    solvers.synchronized {
+      solvers.foreach(solver => solver.dispose())
+      solvers.clear()
+    }
+    threadSolver = makeThreadSolver
+  }
+}
+
+object SolverPoolTests extends UnitTests {
+  private val NUM_THREADS = 8
+
+  /** @return the results of running @param task on NUM_THREADS threads at once */
+  private def onThreads[T](task : () => T) : List[T] = {
+    val pool = Executors.newFixedThreadPool(NUM_THREADS)
+    // make every thread wait for the others, so that no thread runs two tasks
+    val start = new CountDownLatch(NUM_THREADS)
+    try (1 to NUM_THREADS).map(_ => pool.submit(new Callable[T] {
+      override def call() : T = {
+        start.countDown()
+        start.await()
+        task()
+      }
+    })).map(f => f.get()).toList
+    finally pool.shutdown()
+  }
+
+  override def tests : List[(String, () => Unit)] = List(
+    ("OnePerThread", () => {
+      val pool = new SolverPool(() => new DpllSolver)
+      try {
+        assert(pool.get eq pool.get, "A thread should always get the same solver")
+        val solvers = onThreads(() => pool.get)
+        assert(solvers.distinct.size == NUM_THREADS && !solvers.exists(s => s eq pool.get),
+               "Each thread should get its own solver")
+        assert(pool.size == NUM_THREADS + 1, s"Expected ${NUM_THREADS + 1} solvers, got ${pool.size}")
+      } finally pool.dispose()
+    }),
+    ("Dispose", () => {
+      val disposed = new AtomicInteger
+      val pool = new SolverPool(() => new DpllSolver {
+        override def dispose() : Unit = {
+          disposed.incrementAndGet()
+          super.dispose()
+        }
+      })
+      val before = pool.get
+      onThreads(() => pool.get)
+      pool.dispose()
+      assert(disposed.get == NUM_THREADS + 1 && pool.size == 0, s"Disposed ${disposed.get} solvers")
+      assert(!(pool.get eq before), "Threads should get a fresh solver after the pool is disposed")
+      pool.dispose()
+    }),
+    ("ParallelChecks", () => {
+      // threads push, assert, and pop on their own solvers at the same time without seeing each other's constraints
+      val pool = new SolverPool(() => new DpllSolver)
+      try {
+        val results = onThreads(() => (1 to 200).forall(i => {
+          val solver = pool.get
+          val x = Pure.makePureIntVar
+          solver.push
+          try {
+            solver.mkAssert(Pure.makeGtConstraint(x, IntVal(i)))
+            val sat = solver.checkSAT
+            solver.mkAssert(Pure.makeLtConstraint(x, IntVal(i)))
+            sat && !solver.checkSAT
+          } finally solver.pop
+        }))
+        assert(results.forall(res => res), "Wrong results from parallel checks")
+      } finally pool.dispose()
+    })
+  )
+}
@@ -0,0 +1,47 @@
+package edu.colorado.hopper.solver
+
+/** Counters for solver usage shared by all solvers: number of assertions, number of checks, check latency, and the
+  * number of assertions live in the solver at each check. Printing the stats periodically shows whether solver state
+  * (and thus check latency) grows over the course of a long run */
+object SolverStats {
+  // print a line of stats every this many checks. 0 disables periodic printing
+  val PRINT_INTERVAL = 0
+
+  private var asserts = 0L
+  private var checks = 0L
+  private var checkNanos = 0L
+  private var maxLiveAssertions = 0
+  // checks and time spent checking since the last periodic print
+  private var windowChecks = 0L
+  private var windowNanos = 0L
+
+  def recordAssert() : Unit = this.synchronized { asserts += 1 }
+
+  /** run @param check and record its latency. @param liveAssertions is the number of assertions in the solver */
+  def timeCheck(liveAssertions : Int)(check : => Boolean) : Boolean = {
+    val start = System.nanoTime()
+    try check
+    finally {
+      val elapsed = System.nanoTime() - start
+      this.synchronized {
+        checks += 1
+        checkNanos += elapsed
+        windowChecks += 1
+        windowNanos += elapsed
+        maxLiveAssertions = math.max(maxLiveAssertions, liveAssertions)
+        if (PRINT_INTERVAL > 0 && windowChecks >= PRINT_INTERVAL) {
+          println(s"Solver: $checks checks, $asserts asserts, $liveAssertions live assertions, " +
+                  s"avg latency of last $windowChecks checks ${windowNanos / windowChecks / 1000} us")
+          windowChecks = 0
+          windowNanos = 0
+        }
+      }
+    }
+  }
+
+  def printStats() : Unit = this.synchronized {
+    val avgMicros = if (checks == 0) 0 else checkNanos / checks / 1000
+    println(s"Solver: $checks checks, $asserts asserts, at most $maxLiveAssertions live assertions at a check, " +
+            s"avg check latency $avgMicros us")
+  }
+}
@@ -1,7 +1,7 @@
 package edu.colorado.hopper.solver
 
-import com.microsoft.z3.{AST, ArithExpr, BoolExpr, Context, Expr, IntExpr, Status}
-import edu.colorado.hopper.state.{PureExpr, PureVal, PureVar}
+import com.microsoft.z3.{AST, ArithExpr, BoolExpr, Context, Expr, IntExpr, IntNum, Status, Z3Exception}
+import edu.colorado.hopper.state.{BoolVal, IntVal, PureExpr, PureVal, PureVar}
 import edu.colorado.walautil.Types.MMap
 
 import scala.collection.mutable.HashMap
@@ -18,18 +18,37 @@ class ThreadSafeZ3Solver extends ModelSolver[AST] {
 
   // We maintain a mapping from Z3 names to PureVars for producing useful models
   val names : MMap[String, PureVar] = new HashMap[String, PureVar]
+  // names added since each push. they are dropped on the matching pop so the table only holds names that live
+  // assertions use
+  private var scopeNames : List[List[String]] = Nil
 
-  override def checkSAT : Boolean = this.synchronized { interpretSolverOutput(solver.check) }
+  override def checkSAT : Boolean = this.synchronized {
+    SolverStats.timeCheck(solver.getNumAssertions)(interpretSolverOutput(solver.check))
+  }
 
   override def checkSATWithAssumptions(assumes : List[String]) : Boolean =
     this.synchronized {
-      interpretSolverOutput(solver.check(assumes.map(assume => ctx.mkBoolConst(assume)) : _*))
+      SolverStats.timeCheck(solver.getNumAssertions)(
+        interpretSolverOutput(solver.check(assumes.map(assume => ctx.mkBoolConst(assume)) : _*)))
     }
 
-  override def push() : Unit = this.synchronized { solver.push() }
-  override def pop() : Unit = this.synchronized { solver.pop() }
+  override def push() : Unit = this.synchronized {
+    solver.push()
+    scopeNames = Nil :: scopeNames
+  }
 
-  override def getUNSATCore : String = sys.error("Unimp")
+  override def pop() : Unit = this.synchronized {
+    solver.pop()
+    scopeNames match {
+      case scope :: outerScopes =>
+        scope.foreach(name => names.remove(name))
+        scopeNames = outerScopes
+      case Nil => ()
+    }
+  }
+
+  override def getUNSATCore : String =
+    this.synchronized { solver.getUnsatCore.map(e => e.toString).mkString(" ") }
 
   override def dispose() : Unit = this.synchronized {
     ctx.dispose()
@@ -43,7 +62,10 @@ class ThreadSafeZ3Solver extends ModelSolver[AST] {
       throw new UnknownSMTResult("Z3 decidability or timeout issue--got Status.UNKNOWN")
   }
 
-  override def mkAssert(a : AST) : Unit = this.synchronized { solver.add(a.asInstanceOf[BoolExpr]) }
+  override def mkAssert(a : AST) : Unit = this.synchronized {
+    SolverStats.recordAssert()
+    solver.add(a.asInstanceOf[BoolExpr])
+  }
 
   override def mkNot(o : AST) : AST = this.synchronized { ctx.mkNot(o.asInstanceOf[BoolExpr]) }
   override def mkEq(lhs : AST, rhs : AST) : AST =
@@ -87,12 +109,33 @@ class ThreadSafeZ3Solver extends ModelSolver[AST] {
     p match {
       // Every time we create a name referencing a PureVar in our solver,
       // add it to a mapping so we can resolve names later.
-      case p@PureVar(_) => names += (getSolverName(p) -> p)
+      case p@PureVar(_) =>
+        val name = getSolverName(p)
+        if (!names.contains(name)) {
+          names += (name -> p)
+          scopeNames match {
+            case scope :: outerScopes => scopeNames = (name :: scope) :: outerScopes
+            case Nil => ()
+          }
+        }
       case _ => {}
     }
     super.toAST(p)
   }
 
-  override def model: Option[Map[PureVar, PureVal]] = sys.error("Unimp")
+  override def model : Option[Map[PureVar, PureVal]] = this.synchronized {
+    val m = try solver.getModel catch { case e : Z3Exception => null } // no model if the last check wasn't SAT
+    if (m == null) None
+    else Some(m.getConstDecls.foldLeft (Map.empty[PureVar,PureVal]) ((map, decl) =>
+      names.get(decl.getName.toString) match {
+        case Some(p) => m.getConstInterp(decl) match {
+          case i : IntNum if i.getBigInteger.bitLength < 32 => map + (p -> IntVal(i.getInt))
+          case b : BoolExpr if b.isTrue => map + (p -> BoolVal(true))
+          case b : BoolExpr if b.isFalse => map + (p -> BoolVal(false))
+          case _ => map // value we can't represent as a PureVal
+        }
+        case None => map // assumption literal
+      }))
+  }
 
   }
\ No newline at end of file
@@ -42,20 +42,63 @@ class CallStackFrame(val node : CGNode, val localConstraints : MSet[LocalPtEdge]
     case _ => false
   }
   override def toString : String = ClassUtil.pretty(node) + " " + blk.toString + " " + index + " call: " + callInstr
-  override def hashCode : Int = Util.makeHash(List(node, blk, index))
+  // blk and index are mutable, so we can't precompute this. avoid allocating, though; frames are hashed often
+  override def hashCode : Int = (node.hashCode * Util.PRIME + blk.hashCode) * Util.PRIME + index
 }
 
-class CallStack(private val _stack : MStack[CallStackFrame] = new MStack[CallStackFrame]) {
+/** the location (method and block) of every frame of a call stack, top first. used as a key for loop invariants. its
+  * hash is computed in constant time from the hash the call stack maintains for the frames below the top */
+final class CallStackLoc(val top : (CGNode,ISSABasicBlock), val lower : List[(CGNode,ISSABasicBlock)], lowerHash : Int) {
+  override val hashCode : Int = lowerHash * Util.PRIME + top.##
+  override def equals(other : Any) : Boolean = other match {
+    case l : CallStackLoc =>
+      this.hashCode == l.hashCode && this.top == l.top && ((this.lower eq l.lower) || this.lower == l.lower)
+    case _ => false
+  }
+  override def toString : String = (top :: lower).toString
+}
+
+/** @param lowerLocs - locations of the frames below the top of @param _stack, innermost first
+  * @param lowerHashes - hash of the suffix of lowerLocs at each position. only the top frame's location changes as we
+  * execute, so these are updated only on push and pop, and clones share them */
+class CallStack(private val _stack : MStack[CallStackFrame] = new MStack[CallStackFrame],
+                private var lowerLocs : List[(CGNode,ISSABasicBlock)] = Nil, private var lowerHashes : List[Int] = Nil) {
   def stack : Iterable[CallStackFrame] = _stack
   def top : CallStackFrame = _stack.top  
-  def push(f : CallStackFrame) : Unit = _stack.push(f)
-  def pop : CallStackFrame = _stack.pop
-  def clear() : Unit = _stack.clear
+  def push(f : CallStackFrame) : Unit = {
+    if (!_stack.isEmpty) {
+      val loc = (top.node, top.blk)
+      lowerHashes = (lowerHash * Util.PRIME + loc.##) :: lowerHashes
+      lowerLocs = loc :: lowerLocs
+    }
+    _stack.push(f)
+  }
+  def pop : CallStackFrame = {
+    val f = _stack.pop
+    if (!_stack.isEmpty) {
+      lowerLocs = lowerLocs.tail
+      lowerHashes = lowerHashes.tail
+    }
+    f
+  }
+  def clear() : Unit = {
+    _stack.clear
+    lowerLocs = Nil
+    lowerHashes = Nil
+  }
   def size : Int = _stack.size
   def isEmpty : Boolean = _stack.isEmpty
+
+  private def lowerHash : Int = if (lowerHashes.isEmpty) 0 else lowerHashes.head
+
+  /** @return the location of every frame of this stack. the stack must be non-empty */
+  def loc : CallStackLoc = new CallStackLoc((top.node, top.blk), lowerLocs, lowerHash)
   
-  override def clone : CallStack = // can't use stack.clone because we need to clone each frame as well
-    new CallStack(stack.foldRight (new MStack[CallStackFrame]) ((frame, _stack) => _stack.push(frame.clone)))
+  override def clone : CallStack = // can't use stack.clone because we need to clone each frame as well. cloning a frame
+    // shares its constraints with the original if PERSISTENT_CONSTRAINTS is on (see SharedSet), so that this is linear
+    // in the depth of the stack only
+    new CallStack(stack.foldRight (new MStack[CallStackFrame]) ((frame, _stack) => _stack.push(frame.clone)), lowerLocs,
+                  lowerHashes)
   override def equals(that : Any) : Boolean = that match {
     case c : CallStack =>
       /*println("sizes are " + c.size + " and " + this.size)
@@ -66,5 +109,6 @@ class CallStack(private val _stack : MStack[CallStackFrame] = new MStack[CallSta
     case _ => false
   }
   override def toString : String = _stack.toString
-  override def hashCode : Int = Util.makeHash(List(_stack))
+  // equal stacks have equal frames, so they have equal lower locations and equal tops
+  override def hashCode : Int = if (_stack.isEmpty) 0 else lowerHash * Util.PRIME + top.hashCode
 }
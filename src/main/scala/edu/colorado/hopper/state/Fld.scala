@@ -53,7 +53,7 @@ case class ArrayFld(keys : Set[ArrayContentsKey], typ : TypeReference, index : O
     case _ => false
   }
   
-  override def hashCode : Int = Util.makeHash(List(keys, typ, index))
+  override val hashCode : Int = Util.makeHash(List(keys, typ, index))
     
   override def toString : String = {
     val indexStr = index match {
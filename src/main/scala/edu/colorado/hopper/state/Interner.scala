@@ -0,0 +1,110 @@
+package edu.colorado.hopper.state
+
+import java.lang.ref.WeakReference
+import java.util.WeakHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.{Callable, Executors}
+
+import com.ibm.wala.shrikeBT.IConditionalBranchInstruction
+import edu.colorado.hopper.client.UnitTests
+import edu.colorado.thresher.core.Options
+
+/** Hash-consing for immutable state components (points-to edges and pure constraints). each distinct value is kept once,
+  * so queries that hold equal constraints share them, and comparing equal constraints usually succeeds on the
+  * reference check in their equals methods. the table holds its entries weakly; values that no query refers to anymore
+  * are collected as usual */
+object Interner {
+  private def USE_INTERNING = Options.INTERN_STATE
+
+  // the table is split into stripes with a lock each, so that threads interning different values rarely wait for each
+  // other. must be a power of 2
+  private val NUM_STRIPES = 64
+  // map from value to its canonical copy. the canonical copy is the key itself, so we refer to it weakly as well
+  private val stripes = Array.fill(NUM_STRIPES)(new WeakHashMap[AnyRef,WeakReference[AnyRef]])
+
+  private val hits = new AtomicLong
+  private val misses = new AtomicLong
+
+  /** @return the canonical copy of @param t, making @param t canonical if there is none */
+  def intern[T <: AnyRef](t : T) : T =
+    if (!USE_INTERNING) t
+    else {
+      val hash = t.hashCode
+      val stripe = stripes((hash ^ (hash >>> 16)) & (NUM_STRIPES - 1))
+      val canonical = stripe.synchronized {
+        val canonical = stripe.get(t) match {
+          case null => null
+          case ref => ref.get
+        }
+        if (canonical == null) stripe.put(t, new WeakReference[AnyRef](t))
+        canonical
+      }
+      if (canonical == null) {
+        misses.incrementAndGet()
+        t
+      } else {
+        hits.incrementAndGet()
+        canonical.asInstanceOf[T]
+      }
+    }
+
+  def hitRate : Double = {
+    val (h, m) = (hits.get, misses.get)
+    if (h + m == 0) 0.0 else h.toDouble / (h + m)
+  }
+
+  def printStats() : Unit =
+    println(s"Interner: ${hits.get} hits, ${misses.get} misses, hit rate $hitRate")
+}
+
+object InternerTests extends UnitTests {
+  // a constraint that no other test interns, built without going through the interner
+  private def fresh(v : PureVar, i : Int) : PureAtomicConstraint =
+    PureAtomicConstraint(v, IConditionalBranchInstruction.Operator.EQ, IntVal(i))
+
+  /** run @param body with interning turned on or off according to @param intern */
+  private def withInterning(intern : Boolean)(body : => Unit) : Unit = {
+    val prev = Options.INTERN_STATE
+    Options.INTERN_STATE = intern
+    try body finally Options.INTERN_STATE = prev
+  }
+
+  override def tests : List[(String, () => Unit)] = List(
+    ("Canonical", () => withInterning(true) {
+      val v = Pure.makePureIntVar
+      val (c1, c2) = (fresh(v, 1), fresh(v, 1))
+      assert(!(c1 eq c2))
+      val canonical = Interner.intern(c1)
+      assert(canonical eq c1, "The first copy interned should become the canonical one")
+      assert(Interner.intern(c2) eq c1, "Equal values should intern to the same copy")
+      assert(!(Interner.intern(fresh(v, 2)) eq c1), "Different values should intern to different copies")
+    }),
+    ("Concurrent", () => withInterning(true) {
+      // every thread interns its own copies of the same values, and all must agree on the canonical copies
+      val v = Pure.makePureIntVar
+      val numThreads = 8
+      val pool = Executors.newFixedThreadPool(numThreads)
+      try {
+        val results = (1 to numThreads).map(_ => pool.submit(new Callable[List[PureAtomicConstraint]] {
+          override def call() : List[PureAtomicConstraint] = (1 to 1000).map(i => Interner.intern(fresh(v, i))).toList
+        })).map(f => f.get())
+        results.tail.foreach(res => assert(res.corresponds(results.head)((c1, c2) => c1 eq c2),
+                                           "Threads disagree on the canonical copies"))
+      } finally pool.shutdown()
+    }),
+    ("HitRate", () => withInterning(true) {
+      val v = Pure.makePureIntVar
+      // the table refers to its entries weakly, so hold on to the canonical copy
+      val canonical = Interner.intern(fresh(v, 0))
+      val before = Interner.hitRate
+      (1 to 100).foreach(_ => assert(Interner.intern(fresh(v, 0)) eq canonical))
+      assert(Interner.hitRate > before || before == 1.0, s"Hit rate should go up from $before")
+    }),
+    ("Disabled", () => withInterning(false) {
+      val v = Pure.makePureIntVar
+      val (c1, c2) = (fresh(v, 0), fresh(v, 0))
+      Interner.intern(c1)
+      assert(Interner.intern(c2) eq c2, "Values should be returned as is when interning is off")
+    })
+  )
+}
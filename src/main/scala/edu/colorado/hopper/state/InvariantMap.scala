@@ -1,5 +1,7 @@
 package edu.colorado.hopper.state
 
+import java.util.concurrent.atomic.AtomicLong
+
 import com.twitter.util.LruMap
 import edu.colorado.hopper.state.InvariantMap._
 
@@ -7,6 +9,26 @@ object InvariantMap {
   val DEBUG = false
   val USE_SUMMARIES = true // be careful! turning this off can lead to nontermination
   val MAX_SIZE = 1000
+
+  // counters shared by all invariant maps. they survive clearing and cloning so that we can compare runs that do and
+  // don't keep invariants across queries
+  private val lookups = new AtomicLong
+  private val hits = new AtomicLong
+  private val keptQueries = new AtomicLong
+  private val discardedQueries = new AtomicLong
+
+  /** record whether the invariants gathered by a query were kept for later queries (@param kept) or discarded */
+  def recordQuery(kept : Boolean) : Unit =
+    if (kept) keptQueries.incrementAndGet() else discardedQueries.incrementAndGet()
+
+  def hitRate : Double = {
+    val (numHits, numLookups) = (hits.get, lookups.get)
+    if (numLookups == 0) 0.0 else numHits.toDouble / numLookups
+  }
+
+  def printStats() : Unit =
+    println(s"Invariant maps: ${lookups.get} lookups, ${hits.get} refutations by invariant, hit rate $hitRate; " +
+            s"kept invariants from ${keptQueries.get} queries, discarded from ${discardedQueries.get}")
 }
 
 class InvariantMap[T](val invMap : LruMap[T,MinSet[Path]] = new LruMap[T,MinSet[Path]](MAX_SIZE)) { 
@@ -17,11 +39,14 @@ class InvariantMap[T](val invMap : LruMap[T,MinSet[Path]] = new LruMap[T,MinSet[
    * otherwise, return false and update the weakest invariant at @param key with @param p
    */
   // TODO: figure out when to widen here. if a constraint has a smaller concretization, but no new path vars, we should widen...
-  def pathEntailsInv(key : T, c : Path) : Boolean = {
+  // synchronized so that paths explored in parallel see each other's updates to the invariant
+  def pathEntailsInv(key : T, c : Path) : Boolean = invMap.synchronized {
     //println("inv contains key " + key + "? " + invMap.contains(key))
     val inv = invMap.getOrElse(key, new MinSet[Path])
     val newInv = inv + c.deepCopy
     if (DEBUG) println("inv was (size " + inv.size + ")" + inv + " newInv is " + newInv)
+    lookups.incrementAndGet()
+    if ((newInv eq inv) && USE_SUMMARIES) hits.incrementAndGet()
     if (newInv eq inv) {
       // if sums is unchanged after adding p, we know p |= sums
       if (DEBUG) {
@@ -43,10 +68,11 @@ class InvariantMap[T](val invMap : LruMap[T,MinSet[Path]] = new LruMap[T,MinSet[
     }
   }
   
-  def clear() : Unit = invMap.clear
+  def clear() : Unit = invMap.synchronized { invMap.clear }
     
-  override def clone : InvariantMap[T] = 
+  override def clone : InvariantMap[T] = invMap.synchronized {
     new InvariantMap(new LruMap(InvariantMap.MAX_SIZE, invMap.clone.underlying.asInstanceOf[java.util.Map[T,MinSet[Path]]]))
+  }
   
 }
 //} else {
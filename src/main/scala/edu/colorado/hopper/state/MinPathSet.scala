@@ -1,11 +1,17 @@
 package edu.colorado.hopper.state
 
+import com.ibm.wala.ipa.callgraph.CGNode
+import com.ibm.wala.ipa.callgraph.propagation.{InstanceFieldKey, InstanceKey, PointerKey}
+import edu.colorado.hopper.client.UnitTests
 import edu.colorado.walautil.Util
 
+import scala.collection.JavaConversions._
+import scala.util.Random
+
 trait Concretizable {
   def |=(other : Concretizable) : Boolean
   
-  def |=(other : MinSet[Concretizable]) : Boolean = other.exists(p => this |= p)
+  def |=(other : MinSet[Concretizable]) : Boolean = other.candidates(this).exists(p => this |= p)
   
   def deepCopy : Concretizable
   
@@ -16,33 +22,81 @@ object MinSet {
   def make[T <: Concretizable](paths : Iterable[T]) : MinSet[T] = paths.foldLeft (new MinSet[T]) ((set, p) => set + p)  
 }
 
-// TODO: I'm sure this could be much more efficient...
-class MinSet[T <: Concretizable](val paths : Set[T] = Util.makeISet[T]) extends Set[T] {   
-  
+/** Cheap syntactic summary of a query, used to rule out entailment between two queries without comparing their
+  * constraints or asking the solver. by the definition of Qry.|=, q1 |= q2 only if q1 and q2 are in the same method at
+  * the same call stack depth, q1 has at least as many heap and local constraints as q2, and every field and local
+  * variable that q2 constrains is also constrained by q1. the fields and local variables are summarized as a 64-bit
+  * Bloom filter */
+final class QrySignature(val node : CGNode, val stackSize : Int, val heapSize : Int, val localSize : Int,
+                         val bloom : Long) {
+  /** @return false if a query with this signature cannot entail a query with signature @param other */
+  def mayEntail(other : QrySignature) : Boolean =
+    node == other.node && stackSize == other.stackSize && heapSize >= other.heapSize &&
+    localSize >= other.localSize && (other.bloom & ~bloom) == 0L
+}
+
+object QrySignature {
+  // spread h over the 64 bits of the filter
+  private def bit(h : Int) : Long = 1L << ((h * -0x61c88647) >>> 26)
+
+  def make(q : Qry) : QrySignature = {
+    val heapBloom = q.heapConstraints.foldLeft (0L) ((bloom, e) => bloom | bit(e.fld match {
+      case f : ArrayFld => f.keys.## // ArrayFld's hash uses its type, but its equality doesn't
+      case f => f.##
+    }))
+    val bloom = q.localConstraints.foldLeft (heapBloom) ((bloom, e) => bloom | bit(e.src.##))
+    new QrySignature(q.node, q.callStack.size, q.heapConstraints.size, q.localConstraints.size, bloom)
+  }
+}
+
+/** @param sigs - signatures of (some of) @param paths. paths are usually copies that aren't changed after they're added,
+  * so we compute a signature once per path rather than once per comparison. if a path changes anyway, its signature is
+  * stale, which can only make us miss an entailment */
+class MinSet[T <: Concretizable](val paths : Set[T] = Util.makeISet[T],
+                                 private val sigs : Map[T,QrySignature] = Map.empty[T,QrySignature]) extends Set[T] {
+
+  private def getSignature(p : T) : QrySignature = sigs.get(p) match {
+    case Some(sig) => sig
+    case None => QrySignature.make(p.qry)
+  }
+
   /**
    * add @param newPath to the set if it is incomparable to all paths in the set, or if it entails
    * a path p currently in the set (remove p from the set, in this case)
    */
    def +(newPath : T) : MinSet[T] = {
     if (!paths.contains(newPath)) {
-      val newPaths = if (!paths.isEmpty) paths.foldLeft (Set.empty[T]) ((set, p) =>
+      val newSig = QrySignature.make(newPath.qry)
+      // compare signatures first so that we only check entailment (which may involve the solver) when it can hold
+      val newPaths = if (!paths.isEmpty) paths.foldLeft (Set.empty[T]) ((set, p) => {
+          val pSig = getSignature(p)
           //if (p |= newPath) set + newPath // newPath simpler than p; drop p and add newPath
           //else if (newPath |= p) return this // newPath more complicated than p; we won't add it          
-          if (newPath |= p) return this // newPath same as or more complicated than p; we won't add it
-          else if (p |= newPath) set + newPath // newPath simpler than p; drop p and add newPath
+          // newPath same as or more complicated than p; we won't add it
+          if (newSig.mayEntail(pSig) && (newPath |= p)) return this
+          // newPath simpler than p; drop p and add newPath
+          else if (pSig.mayEntail(newSig) && (p |= newPath)) set + newPath
           else (set + p) + newPath // newPath and p are incomparable
-        ) else Set(newPath)
-      new MinSet[T](newPaths) 
+        }) else Set(newPath)
+      val newSigs = newPaths.foldLeft (Map.empty[T,QrySignature]) ((m, p) =>
+        m + (p -> (if (p eq newPath) newSig else getSignature(p))))
+      new MinSet[T](newPaths, newSigs)
       
     } else this // paths already contains newPath, no need to change
   }
+
+  /** @return the paths in this set that @param c may entail, judging by signatures alone */
+  def candidates(c : Concretizable) : Iterator[T] = {
+    val cSig = QrySignature.make(c.qry)
+    paths.iterator.filter(p => cSig.mayEntail(getSignature(p)))
+  }
    
    /**
    * @return true if @param paths does not contain a path whose concretization is at least as large as @param p's, false otherwise
    */
-  def |=(path : T) : Boolean = paths.forall(p => !(path |= p))
+  def |=(path : T) : Boolean = candidates(path).forall(p => !(path |= p))
     
-  override def -(elem: T) : MinSet[T] = new MinSet[T](paths - elem)
+  override def -(elem: T) : MinSet[T] = new MinSet[T](paths - elem, sigs - elem)
   override def toList : List[T] = paths.toList
   override def contains(key: T) : Boolean = paths.contains(key)
   override def exists(t : T => Boolean) : Boolean = paths.exists(t)
@@ -51,4 +105,69 @@ class MinSet[T <: Concretizable](val paths : Set[T] = Util.makeISet[T]) extends
   override def isEmpty : Boolean = paths.isEmpty
   override def size : Int = paths.size
   override def toString = paths.toString
-}
\ No newline at end of file
+}
+object MinSetTests extends UnitTests {
+  private lazy val walaRes = makeWalaRes("casts/HashtableEnumeratorRefute")
+
+  // queries over the locals of main and the fields of the objects they point to, with randomly narrowed regions. the
+  // regions are drawn from a handful of choices per constraint so that many pairs of queries are comparable
+  private lazy val qrys : List[Qry] = {
+    val (cg, hg, hm) = (walaRes.cg, walaRes.hg, walaRes.hm)
+    val main = cg.getEntrypointNodes.find(n => n.getMethod.getName.toString == "main") match {
+      case Some(main) => main
+      case None => sys.error("Can't find main")
+    }
+    def getKeys(k : PointerKey) : Set[InstanceKey] =
+      hg.getSuccNodes(k).collect({ case k : InstanceKey => k }).toSet
+    def narrowings(rgn : Set[InstanceKey]) : List[Set[InstanceKey]] = rgn :: rgn.take(2).map(k => Set(k)).toList
+
+    val tbl = main.getIR.getSymbolTable
+    val locals = (1 to tbl.getMaxValueNumber).filter(i => !tbl.isConstant(i))
+      .map(i => (Var.makeLPK(i, main, hm), getKeys(Var.makeLPK(i, main, hm)))).filter(p => !p._2.isEmpty).take(6)
+    val flds = locals.flatMap(p => p._2).distinct.flatMap(k => hg.getSuccNodes(k).collect({
+      case f : InstanceFieldKey if !getKeys(f).isEmpty => (k, f.getField, getKeys(f))
+    })).take(6)
+    assert(!locals.isEmpty && !flds.isEmpty, "Expected main to have locals and heap locations to constrain")
+
+    val rand = new Random(0)
+    def pick[T](l : List[T]) : T = l(rand.nextInt(l.size))
+    val base = Qry.make(Nil, main, hm)
+    (1 to 60).map(_ => {
+      val q = base.clone
+      locals.filter(_ => rand.nextBoolean()).foreach(p =>
+        q.addLocalConstraint(PtEdge.make(p._1, ObjVar(pick(narrowings(p._2))))))
+      flds.filter(_ => rand.nextInt(3) == 0).foreach(t =>
+        q.addHeapConstraint(PtEdge.make(ObjVar(Set(t._1)), t._2, ObjVar(pick(narrowings(t._3))))))
+      q
+    }).toList
+  }
+
+  // MinSet.+ without the signature checks
+  private def naiveAdd(paths : Set[Qry], q : Qry) : Set[Qry] =
+    if (paths.contains(q)) paths
+    else if (paths.exists(p => q |= p)) paths
+    else paths.filter(p => !(p |= q)) + q
+
+  override def tests : List[(String, () => Unit)] = List(
+    ("SignatureIsNecessary", () => {
+      // a signature may only rule out entailments that don't hold
+      val sigs = qrys.map(q => QrySignature.make(q))
+      val pairs = for ((q1, sig1) <- qrys.zip(sigs); (q2, sig2) <- qrys.zip(sigs)) yield (q1, sig1, q2, sig2)
+      val numEntailed = pairs.count(t => {
+        val (q1, sig1, q2, sig2) = t
+        val entails = q1 |= q2
+        assert(!entails || sig1.mayEntail(sig2), s"Signatures rule out true entailment $q1 |= $q2")
+        entails
+      })
+      assert(numEntailed > qrys.size, "Expected some queries other than equal ones to be comparable")
+    }),
+    ("MatchesNaive", () => {
+      val (minSet, naive) = qrys.foldLeft ((new MinSet[Qry], Set.empty[Qry])) ((pair, q) => {
+        val (minSet, naive) = pair
+        assert((minSet |= q) == naive.forall(p => !(q |= p)), s"MinSet disagrees on whether it covers $q")
+        (minSet + q, naiveAdd(naive, q))
+      })
+      assert(minSet.paths == naive, s"MinSet kept ${minSet.size} queries, but should have kept ${naive.size}")
+    })
+  )
+}
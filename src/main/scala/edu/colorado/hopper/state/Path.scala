@@ -1,5 +1,7 @@
 package edu.colorado.hopper.state
 
+import java.util.concurrent.atomic.AtomicInteger
+
 import com.ibm.wala.analysis.pointers.HeapGraph
 import com.ibm.wala.classLoader.{IClass, IMethod}
 import com.ibm.wala.ipa.callgraph.propagation.{HeapModel, InstanceKey}
@@ -31,11 +33,9 @@ object Path {
     classNameBlacklist.contains(method.getDeclaringClass().getName().toString())
   }
   
-  var idCounter : Int = 0
-  def newId : Int = {
-    idCounter += 1    
-    idCounter 
-  }
+  // atomic because paths of the same query may be forked by several threads (see Options.PATH_THREADS)
+  private val idCounter = new AtomicInteger(0)
+  def newId : Int = idCounter.incrementAndGet()
   
   def ppPaths(paths : List[Path]) : Unit = { paths.foreach(p => print(p.id + " ")); println }
   
@@ -110,7 +110,7 @@ object Path {
   def setupBlockAndCallStack(p : Path, node : CGNode, blk : ISSABasicBlock, index : Int, jmpNum : Int) : Unit = {
     val qry = p.qry
     // TODO: push this code into switch on instructions below
-    val jmpLoc = new CallStackFrame(node, Util.makeSet[LocalPtEdge], blk, index)
+    val jmpLoc = new CallStackFrame(node, SharedSet.make[LocalPtEdge], blk, index)
     qry.callStack.push(jmpLoc)
     // need distinct copies because the StackFrame on the call stack will be mutated
     val copy = jmpLoc.clone
@@ -302,7 +302,7 @@ class Path(val qry : Qry, var lastBlk : WalaBlock = null,
       val exitBlk = ir.getControlFlowGraph().exit()
       if (!this.callStack.isEmpty) assert(this.node != node, "adding dup " + node + " to stack")
       //callStack.push(new StackFrame2(node, exitBlk, exitBlk.size - 1)) // start at last instr
-      qry.callStack.push(new CallStackFrame(node, Util.makeSet[LocalPtEdge], exitBlk, exitBlk.size - 1))
+      qry.callStack.push(new CallStackFrame(node, SharedSet.make[LocalPtEdge], exitBlk, exitBlk.size - 1))
     }
   }
 
@@ -452,7 +452,7 @@ class Path(val qry : Qry, var lastBlk : WalaBlock = null,
    * this entails @param set if the concretization of the the set is larger than or equal to
    * the concretization of this query
    */
-  override def |=(set : MinSet[Concretizable]) : Boolean = set.exists(p => this |= p)
+  override def |=(set : MinSet[Concretizable]) : Boolean = set.candidates(this).exists(p => this |= p)
   
   override def equals(other : Any) = other match { 
     case p : Path => this.qry.equals(p.qry) && (!Options.SOUND_EXCEPTIONS || this.exceptionTypes == p.exceptionTypes)
@@ -15,9 +15,9 @@ sealed case class LocalPtEdge(val src : StackVar, val snk : Val) extends PtEdge
   override def |=(other : PtEdge) = src == other.src && (snk |= other.snk)
   override def getVals : Set[Val] = Set(snk)
   override def clone : LocalPtEdge = this
-  override def hashCode : Int = Util.makeHash(List(src, snk))
+  override val hashCode : Int = Util.makeHash(List(src, snk))
   override def equals(other : Any) : Boolean = other match {
-    case e : LocalPtEdge => this.src == e.src && this.snk == e.snk
+    case e : LocalPtEdge => (this eq e) || (this.hashCode == e.hashCode && this.src == e.src && this.snk == e.snk)
     case _ => false
   }
   override def toString : String = src.toString() + " -> " + snk.toString()
@@ -30,9 +30,11 @@ sealed abstract class HeapPtEdge(val src : HeapVar, val fld : Fld, val snk : Val
   }}
 
   override def clone : HeapPtEdge = this
-  override def hashCode : Int = Util.makeHash(List(src, fld, snk))
+  // lazy because the subclasses override src, fld, and snk, so they aren't initialized yet when this constructor runs
+  override lazy val hashCode : Int = Util.makeHash(List(src, fld, snk))
   override def equals(other : Any) : Boolean = other match {
-    case e : HeapPtEdge => this.src == e.src && this.fld == e.fld && this.snk == e.snk
+    case e : HeapPtEdge =>
+      (this eq e) || (this.hashCode == e.hashCode && this.src == e.src && this.fld == e.fld && this.snk == e.snk)
     case _ => false
   }
   override def toString : String = src.toString() + "." + fld.toString() + " -> " + snk.toString()
@@ -64,21 +66,22 @@ sealed case class ArrayPtEdge(override val src : ObjVar, override val fld : Arra
   }
 }
 
+// edges made here are interned, so equal edges are usually the same object
 object PtEdge {  
   
   def make(src : HeapVar, fld : IField, snk : Val) : HeapPtEdge = make(src, InstanceFld(fld), snk)
   
   def make(src : HeapVar, fld : Fld, snk : Val) : HeapPtEdge = (src, fld) match {
-    case (src@ObjVar(_), fld@InstanceFld(_)) => ObjPtEdge(src, fld, snk)
-    case (src@ClassVar(_), fld@StaticFld(_)) => StaticPtEdge(src, fld, snk)
-    case (src@ObjVar(_), fld@ArrayFld(_, _, _)) => ArrayPtEdge(src, fld, snk)
+    case (src@ObjVar(_), fld@InstanceFld(_)) => Interner.intern(ObjPtEdge(src, fld, snk))
+    case (src@ClassVar(_), fld@StaticFld(_)) => Interner.intern(StaticPtEdge(src, fld, snk))
+    case (src@ObjVar(_), fld@ArrayFld(_, _, _)) => Interner.intern(ArrayPtEdge(src, fld, snk))
     case _ => sys.error("Bad HeapPtEdge components " + src + " . " + fld + " -> " + snk + 
                         " Classes " + src.getClass + " " + fld.getClass + " " + snk.getClass)
   }
   
   def make(src : StaticFieldKey, snk : Val) : HeapPtEdge =
-    StaticPtEdge(ClassVar(src.getField().getDeclaringClass()), StaticFld(src), snk)
-  def make(src : StackVar, snk : Val) : LocalPtEdge = LocalPtEdge(src, snk)
+    Interner.intern(StaticPtEdge(ClassVar(src.getField().getDeclaringClass()), StaticFld(src), snk))
+  def make(src : StackVar, snk : Val) : LocalPtEdge = Interner.intern(LocalPtEdge(src, snk))
   def make(src : LocalPointerKey, snk : Val) : LocalPtEdge = make(LocalVar(src), snk)
   def make(src : ReturnValueKey, snk : Val) : LocalPtEdge = make(ReturnVar(src), snk)   
 }
\ No newline at end of file
@@ -1,25 +1,35 @@
 package edu.colorado.hopper.state
 
+import java.util.concurrent.atomic.AtomicInteger
+
 import com.ibm.wala.analysis.pointers.HeapGraph
 import com.ibm.wala.classLoader.IField
 import com.ibm.wala.ipa.callgraph.propagation._
 import com.ibm.wala.ipa.callgraph.{CGNode, ContextKey}
 import com.ibm.wala.ipa.cha.IClassHierarchy
 import com.ibm.wala.ssa.{ISSABasicBlock, SSAGetInstruction, SSAInstruction}
-import com.microsoft.z3.AST
-import edu.colorado.hopper.solver.{ModelSolver, Solver, UnknownSMTResult, Z3Solver}
+import edu.colorado.hopper.solver.{Solver, UnknownSMTResult}
 import edu.colorado.hopper.state.Qry._
 import edu.colorado.hopper.util.PtUtil
 import edu.colorado.thresher.core.Options
 import edu.colorado.walautil.Types.MSet
-import edu.colorado.walautil.{CFGUtil, IRUtil, Util}
+import edu.colorado.walautil.{CFGUtil, ClassUtil, IRUtil, Util}
 
 import scala.collection.JavaConversions._
 
 object Qry {
   private def DEBUG = Options.DEBUG
-  private var qryIdCounter = 0
-  private def getFreshQryId = { qryIdCounter += 1; qryIdCounter }
+  // if true, send only the constraints that share (transitively) a variable with the constraint being checked to the
+  // solver rather than all constraints in the query's lineage. the other constraints are independent of the checked
+  // one, and they are already known to be satisfiable
+  private val SLICE_PURE_CONSTRAINTS = true
+  // when not slicing, each check enables one assumption literal per ancestor of the query. once a query has this many
+  // ancestors, its clones start a fresh lineage and re-assert their constraints under their own id instead
+  private val MAX_LINEAGE = 32
+  // atomic because queries may be created by several threads in parallel mode. a duplicate id would let two queries that
+  // share a solver see each other's assumptions
+  private val qryIdCounter = new AtomicInteger(0)
+  private def getFreshQryId = qryIdCounter.incrementAndGet()
   
   val NULL = Pure.makePureObjVar
   def getNullVar(q : Qry) : PureVar = {
@@ -37,17 +47,17 @@ object Qry {
   /** start execution at the beginning of @param n */
   def make(startEdges : Iterable[PtEdge], i : SSAInstruction, n : CGNode,  hm : HeapModel,
            startBeforeI : Boolean = false) : Qry =
-    make(startEdges, i, n, hm, new Z3Solver, startBeforeI)
+    make(startEdges, i, n, hm, Solver.make(), startBeforeI)
 
   def make(startEdges : Iterable[PtEdge], n : CGNode,  hm : HeapModel) : Qry = {
     val (localConstraints, heapConstraints) = makeLocalAndHeapConstraints(startEdges, n, hm)
     val callStack = makeCallStack(n, localConstraints, n.getIR().getControlFlowGraph().entry(), -1)
-    new Qry(heapConstraints, Util.makeSet[PureConstraint], callStack, new Z3Solver)
+    new Qry(heapConstraints, SharedSet.make[PureConstraint], callStack, Solver.make())
   }
   
   /** @param startBeforeI - if false, @param i will be the first instruction processed; otherwise, @param i will not be
     * processed */
-  def make(startEdges : Iterable[PtEdge], i : SSAInstruction, n : CGNode, hm : HeapModel, solver : ModelSolver[AST],
+  def make(startEdges : Iterable[PtEdge], i : SSAInstruction, n : CGNode, hm : HeapModel, solver : Solver[_],
            startBeforeI : Boolean) : Qry = {
     val (startBlk, startLine) = getStartLoc(i, n)
     val (localConstraints, heapConstraints) = makeLocalAndHeapConstraints(startEdges, n, hm)
@@ -55,7 +65,7 @@ object Qry {
       localConstraints.foldLeft (Set.empty[StackVar]) ((s, e) =>
         { assert(!s.contains(e.src), s"${e.src} appears as LHS more than once in $localConstraints"); s + e.src })
     val callStack = makeCallStack(n, localConstraints, startBlk, if (startBeforeI) startLine - 1 else startLine)
-    new Qry(heapConstraints, Util.makeSet[PureConstraint], callStack, solver)
+    new Qry(heapConstraints, SharedSet.make[PureConstraint], callStack, solver)
   } 
   
   private def makeCallStack(n : CGNode, localConstraints : MSet[LocalPtEdge], startBlk : ISSABasicBlock,
@@ -86,8 +96,8 @@ object Qry {
   
   private def makeLocalAndHeapConstraints(startEdges : Iterable[PtEdge], n : CGNode,
                                           hm : HeapModel) : (MSet[LocalPtEdge],MSet[HeapPtEdge]) = {
-    val localConstraints = Util.makeSet[LocalPtEdge]
-    val heapConstraints = Util.makeSet[HeapPtEdge]
+    val localConstraints = SharedSet.make[LocalPtEdge]
+    val heapConstraints = SharedSet.make[HeapPtEdge]
     startEdges.foreach(e => e match {
       case e : LocalPtEdge => localConstraints += e        
       case e : HeapPtEdge => heapConstraints += e      
@@ -108,7 +118,7 @@ object Qry {
   }
   
   // check l1 |= l2
-  private def |=(l1 : MSet[LocalPtEdge], l2 : MSet[LocalPtEdge]) : Boolean = {
+  private[hopper] def |=(l1 : MSet[LocalPtEdge], l2 : MSet[LocalPtEdge]) : Boolean = {
     l1.size >= l2.size && {
       // for every edge in l2, there exists some edge in l1 with a smaller concretization
       l2.forall(e1 => l1.exists(e2 => e1 |= e2))
@@ -141,6 +151,10 @@ class Qry(val heapConstraints : MSet[HeapPtEdge], val pureConstraints : MSet[Pur
           val parents : List[Int] = List.empty[Int], val id : Int = getFreshQryId) extends Concretizable {
         
   private val assumes = (id :: parents).map(i => i.toString)
+  // index from each var to the constraints in pureConstraints that mention it, used to slice the constraints we send to
+  // the solver. built on first use and kept up to date as pure constraints are added and removed. it is immutable, so
+  // clones share it until one of them changes its pure constraints
+  private var varConstraints : Map[PureVar,Set[PureConstraint]] = null
   def localConstraints : MSet[LocalPtEdge] = callStack.top.localConstraints
   def node : CGNode = callStack.top.node
   def blk : ISSABasicBlock = callStack.top.blk
@@ -176,7 +190,14 @@ class Qry(val heapConstraints : MSet[HeapPtEdge], val pureConstraints : MSet[Pur
     localConstraints -= e
   }
   
-  def removePureConstraint(p : PureConstraint) : Unit = pureConstraints -= p
+  def removePureConstraint(p : PureConstraint) : Unit =
+    if (pureConstraints.remove(p) && varConstraints != null) varConstraints = unindexConstraint(varConstraints, p)
+
+  // adds @param p to pureConstraints, keeping varConstraints up to date. @return true if p was not already there
+  private def addToPureConstraints(p : PureConstraint) : Boolean = pureConstraints.add(p) && {
+    if (varConstraints != null) varConstraints = indexConstraint(varConstraints, p)
+    true
+  }
   
   def addHeapConstraint(e : HeapPtEdge) : Boolean = if (heapConstraints.contains(e)) true else {
     
@@ -257,42 +278,110 @@ class Qry(val heapConstraints : MSet[HeapPtEdge], val pureConstraints : MSet[Pur
   }
     
   def addPureConstraint(p : PureConstraint) : Boolean = {
-    if (p.isStringConstraint) p match {
-      case PureAtomicConstraint(p@PureVar(_), _, _) => 
-        // TODO: string constraints unsupported for now. just add != null constraint
-        val neqNullConstraint = Pure.makeNeNullConstraint(p)         
-        if (pureConstraints.add(neqNullConstraint)) solver.mkAssertWithAssumption(id.toString, neqNullConstraint)          
-      case p => sys.error("Unexpected pure atomic constraint " + p)
-    } else if (p.isBitwiseConstraint || p.isFloatConstraint || p.isLongConstraint || p.isDoubleConstraint) p match {
-      case PureAtomicConstraint(p@PureVar(_), _, _) => 
-        // TODO: bitvector, long, and float ops unsuppored for now. drop related constraints
-        localConstraints.foreach(e => if (e.snk == p) localConstraints.remove(e))
-        heapConstraints.foreach(e => if (e.snk == p) heapConstraints.remove(e))       
-      case p => sys.error("Unexpected pure atomic constraint " + p)
-    } else { // normal case      
-       // TODO: do substitution in equality case?
-      // add constraint id => p
-      if (pureConstraints.add(p)) solver.mkAssertWithAssumption(id.toString, p)         
-    }   
+    // the constraint we actually added to pureConstraints, if any
+    val added : Option[PureConstraint] =
+      if (p.isStringConstraint) p match {
+        case PureAtomicConstraint(p@PureVar(_), _, _) =>
+          // TODO: string constraints unsupported for now. just add != null constraint
+          val neqNullConstraint = Pure.makeNeNullConstraint(p)
+          if (addToPureConstraints(neqNullConstraint)) Some(neqNullConstraint) else None
+        case p => sys.error("Unexpected pure atomic constraint " + p)
+      } else if (p.isBitwiseConstraint || p.isFloatConstraint || p.isLongConstraint || p.isDoubleConstraint) p match {
+        case PureAtomicConstraint(p@PureVar(_), _, _) =>
+          // TODO: bitvector, long, and float ops unsuppored for now. drop related constraints
+          localConstraints.foreach(e => if (e.snk == p) localConstraints.remove(e))
+          heapConstraints.foreach(e => if (e.snk == p) heapConstraints.remove(e))
+          None
+        case p => sys.error("Unexpected pure atomic constraint " + p)
+      } else { // normal case
+        // TODO: do substitution in equality case?
+        if (addToPureConstraints(p)) Some(p) else None
+      }
 
-    try {
-      val res = checkPureConstraintsSAT
-      if (!res && Options.PRINT_REFS) println(s"Refuted by pure constraint! ${this.id}")
-      res
-    } catch {
-      case e : UnknownSMTResult =>
-        // SMT solver can't handle this constraint; just drop it and assume SAT
-        removePureConstraint(p)
-        true
+    added match {
+      case Some(added) =>
+        // add constraint id => added
+        if (!SLICE_PURE_CONSTRAINTS) withSolver(_.mkAssertWithAssumption(id.toString, added))
+        try {
+          val dependent = if (SLICE_PURE_CONSTRAINTS) getDependentPureConstraints(added) else pureConstraints
+          val res = if (SLICE_PURE_CONSTRAINTS) withSolver(_.checkConstraints(dependent)) else checkPureConstraintsSAT
+          if (!res && Options.PRINT_REFS) {
+            println(s"Refuted by pure constraint! ${this.id} at line $curSourceLine of ${ClassUtil.pretty(node)}")
+            try withSolver(_.getUNSATCore(dependent)).foreach(core => println("UNSAT core: " + core.mkString(" ^ ")))
+            catch { case e : UnknownSMTResult => () } // debug output only; don't let it change the result
+          }
+          res
+        } catch {
+          case e : UnknownSMTResult =>
+            // SMT solver can't handle this constraint; just drop it and assume SAT
+            removePureConstraint(added)
+            true
+        }
+      case None => true // no new constraints
     }
   }
-  
-  def checkPureConstraintsSAT : Boolean = solver.checkSATWithAssumptions(assumes)
+
+  private def indexConstraint(m : Map[PureVar,Set[PureConstraint]],
+                              c : PureConstraint) : Map[PureVar,Set[PureConstraint]] =
+    c.getVars().foldLeft (m) ((m, v) => m + (v -> (m.getOrElse(v, Set.empty[PureConstraint]) + c)))
+
+  private def unindexConstraint(m : Map[PureVar,Set[PureConstraint]],
+                                c : PureConstraint) : Map[PureVar,Set[PureConstraint]] =
+    c.getVars().foldLeft (m) ((m, v) => m.get(v) match {
+      case Some(constraints) =>
+        val newConstraints = constraints - c
+        if (newConstraints.isEmpty) m - v else m + (v -> newConstraints)
+      case None => m
+    })
+
+  /** @return a map from each var to the constraints in pureConstraints that mention it */
+  private def getVarConstraints : Map[PureVar,Set[PureConstraint]] = {
+    if (varConstraints == null)
+      varConstraints =
+        pureConstraints.foldLeft (Map.empty[PureVar,Set[PureConstraint]]) ((m, c) => indexConstraint(m, c))
+    varConstraints
+  }
+
+  /** @return @param c and the constraints in pureConstraints that transitively share a variable with @param c */
+  private def getDependentPureConstraints(c : PureConstraint) : Set[PureConstraint] = {
+    val varConstraintsMap = getVarConstraints
+
+    @annotation.tailrec
+    def getDependentRec(worklist : List[PureVar], seen : Set[PureVar],
+                        dependent : Set[PureConstraint]) : Set[PureConstraint] = worklist match {
+      case v :: worklist =>
+        val newConstraints = varConstraintsMap.getOrElse(v, Set.empty[PureConstraint]).filterNot(c => dependent.contains(c))
+        val newVars = newConstraints.foldLeft (Set.empty[PureVar]) ((s, c) => c.getVars(s)) -- seen
+        getDependentRec(newVars.toList ++ worklist, seen ++ newVars, dependent ++ newConstraints)
+      case Nil => dependent
+    }
+
+    val vars = c.getVars()
+    getDependentRec(vars.toList, vars, Set(c))
+  }
+
+  /** run @param check on this query's solver. queries cloned from the same query share a solver, and the paths of a
+    * query may be explored by several threads (see Options.PATH_THREADS), so only one check may run at a time */
+  private def withSolver[A](check : Solver[_] => A) : A = solver.synchronized { check(solver) }
+
+  def checkPureConstraintsSAT : Boolean =
+    if (SLICE_PURE_CONSTRAINTS) withSolver(_.checkConstraints(pureConstraints))
+    else withSolver(_.checkSATWithAssumptions(assumes))
 
   // add tmpConstraint, check SAT, (implicitly) remove tmp constraint, return result of SAT check
   def checkTmpPureConstraint(tmpConstraint : PureConstraint) : Boolean =
-    solver.checkTemporaryConstraint(tmpConstraint, assumes)
-  
+    if (SLICE_PURE_CONSTRAINTS) withSolver(_.checkConstraints(getDependentPureConstraints(tmpConstraint)))
+    else withSolver(_.checkTemporaryConstraint(tmpConstraint, assumes))
+  
+  /** like checkTmpPureConstraint for each of @param tmpConstraints, but in a single solver session when possible.
+    * @return whether each of tmpConstraints is SAT with the constraints of this query, in the same order */
+  def checkTmpPureConstraints(tmpConstraints : List[PureConstraint]) : List[Boolean] =
+    if (SLICE_PURE_CONSTRAINTS) {
+      val base = tmpConstraints.foldLeft (Set.empty[PureConstraint]) ((base, c) =>
+        base ++ getDependentPureConstraints(c)) -- tmpConstraints
+      withSolver(_.checkCandidates(base, tmpConstraints))
+    } else tmpConstraints.map(c => checkTmpPureConstraint(c))
+
   def intersectAndSubstitute(o1 : ObjVar, rgn : Set[InstanceKey], hg : HeapGraph[InstanceKey]) : Option[ObjVar] =
     intersectAndSubstitute(o1, ObjVar(rgn), hg, subO2 = false)
   
@@ -300,7 +389,7 @@ class Qry(val heapConstraints : MSet[HeapPtEdge], val pureConstraints : MSet[Pur
                              subO2 : Boolean = true) : Option[ObjVar] =
     if (o1 == o2) Some(o1)
     else if (Var.canAlias(o1, o2)) {
-      val rgnInter = o1.rgn.intersect(o2.rgn)
+      val rgnInter = o1.intersect(o2)
       if (rgnInter.isEmpty) {
         if (Options.PRINT_REFS) println("Refuted by from constraints!")
         None
@@ -534,27 +623,21 @@ class Qry(val heapConstraints : MSet[HeapPtEdge], val pureConstraints : MSet[Pur
   def cleanup() : Unit = dispose
   
   override def |=(other : Concretizable) : Boolean = other match {
-    case q : Qry => Qry.heapImplies(this.heapConstraints, q.heapConstraints) &&
-                    // TODO: implement |= for call stack and delegate
+    case q : Qry => // TODO: implement |= for call stack and delegate
                     q.callStack.size == this.callStack.size &&
                     q.node == this.node &&
+                    Qry.heapImplies(this.heapConstraints, q.heapConstraints) &&
                     Qry.|=(this.localConstraints, q.localConstraints) &&
                     this.doZ3ImplicationCheck(q)
     case _ => sys.error("comparing qry to " + other)
   }
   
-  private def doZ3ImplicationCheck(q1 : Qry) : Boolean = {
-    solver.push
-    solver.mkNotImpliesAssert(pureConstraints, q1.pureConstraints)
-    val res =
-      try {
-        !solver.checkSAT
-      } catch {
-        case e : UnknownSMTResult => false
-      }
-    solver.pop
-    res
-  }  
+  private def doZ3ImplicationCheck(q1 : Qry) : Boolean =
+    try {
+      !withSolver(_.checkNotImplies(pureConstraints, q1.pureConstraints))
+    } catch {
+      case e : UnknownSMTResult => false
+    }
   
   override def deepCopy : Concretizable = sys.error("no")
 
@@ -563,9 +646,21 @@ class Qry(val heapConstraints : MSet[HeapPtEdge], val pureConstraints : MSet[Pur
   override def toString : String = id + "Q { " + constraintsToString(localConstraints, " *\n") + " *\n" + constraintsToString(heapConstraints, " *\n") + 
     " }\n{( " + constraintsToString(pureConstraints, " ^\n") + " )}"
       
-  override def clone : Qry = new Qry(heapConstraints.clone, pureConstraints.clone, callStack.clone, solver, id :: parents)
+  override def clone : Qry = {
+    val copy =
+      if (!SLICE_PURE_CONSTRAINTS && parents.size >= MAX_LINEAGE) {
+        val copy = new Qry(heapConstraints.clone, pureConstraints.clone, callStack.clone, solver)
+        withSolver(solver => copy.pureConstraints.foreach(c => solver.mkAssertWithAssumption(copy.id.toString, c)))
+        copy
+      } else new Qry(heapConstraints.clone, pureConstraints.clone, callStack.clone, solver, id :: parents)
+    copy.varConstraints = varConstraints
+    copy
+  }
 
-  override def hashCode : Int = Util.makeHash(List(heapConstraints, pureConstraints, callStack))
+  // constant-time: the constraint sets (see SharedSet.make) and the call stack maintain their hashes as they change
+  override def hashCode : Int =
+    (SharedSet.elemHashSum(heapConstraints) * Util.PRIME + SharedSet.elemHashSum(pureConstraints)) * Util.PRIME +
+    callStack.hashCode
   
   override def equals(other : Any) : Boolean = other match {
     case q : Qry => this.heapConstraints == q.heapConstraints  &&
@@ -0,0 +1,137 @@
+package edu.colorado.hopper.state
+
+import edu.colorado.hopper.client.UnitTests
+import edu.colorado.thresher.core.Options
+import edu.colorado.walautil.Types.MSet
+import edu.colorado.walautil.Util
+
+import scala.collection.{immutable, mutable}
+import scala.util.Random
+
+object SharedSet {
+  /** @return an empty set for holding query constraints. if PERSISTENT_CONSTRAINTS is off, this is a mutable hash set
+    * that is copied on clone, which is useful for comparing the cost of forking under both representations */
+  def make[T] : MSet[T] =
+    if (Options.PERSISTENT_CONSTRAINTS) new SharedSet[T](immutable.HashSet.empty[T], 0)
+    else new HashSumSet[T](Util.makeSet[T], 0)
+
+  /** @return the sum of the hashes of the elements of @param s. equal sets have equal sums, whatever their classes. this
+    * is constant-time for the sets returned by make */
+  def elemHashSum(s : MSet[_]) : Int = s match {
+    case s : SharedSet[_] => s.elemHashSum
+    case s : HashSumSet[_] => s.elemHashSum
+    case s => s.foldLeft (0) ((sum, e) => sum + e.##)
+  }
+}
+
+/** Mutable set backed by an immutable hash trie. cloning is constant-time: the clone and the original share the trie,
+  * and each update builds a new trie that shares all but the path to the updated element with the old one. this makes
+  * forking a path cheap, since siblings share the constraints they haven't changed. it also makes it safe to update the
+  * set while iterating over it, since iterators see the trie as it was when they were created
+  * @param elemHashSum - sum of the hashes of the elements of @param set, maintained as elements are added and removed */
+class SharedSet[T] private[state] (private var set : immutable.HashSet[T], private var elemHashSum : Int)
+  extends mutable.Set[T] with mutable.SetLike[T, SharedSet[T]] {
+
+  override def empty : SharedSet[T] = new SharedSet[T](immutable.HashSet.empty[T], 0)
+  override def contains(t : T) : Boolean = set.contains(t)
+  override def iterator : Iterator[T] = set.iterator
+  override def size : Int = set.size
+  override def foreach[U](f : T => U) : Unit = set.foreach(f)
+
+  override def +=(t : T) : this.type = {
+    val newSet = set + t
+    if (newSet.size != set.size) elemHashSum += t.##
+    set = newSet
+    this
+  }
+  override def -=(t : T) : this.type = {
+    val newSet = set - t
+    if (newSet.size != set.size) elemHashSum -= t.##
+    set = newSet
+    this
+  }
+  override def clear() : Unit = {
+    set = immutable.HashSet.empty[T]
+    elemHashSum = 0
+  }
+
+  override def clone() : SharedSet[T] = new SharedSet[T](set, elemHashSum)
+}
+
+/** Mutable hash set that maintains the sum of the hashes of its elements, like SharedSet. cloning copies the set
+  * @param elemHashSum - sum of the hashes of the elements of @param set, maintained as elements are added and removed */
+class HashSumSet[T] private[state] (private val set : MSet[T], private var elemHashSum : Int)
+  extends mutable.Set[T] with mutable.SetLike[T, HashSumSet[T]] {
+
+  override def empty : HashSumSet[T] = new HashSumSet[T](Util.makeSet[T], 0)
+  override def contains(t : T) : Boolean = set.contains(t)
+  override def iterator : Iterator[T] = set.iterator
+  override def size : Int = set.size
+  override def foreach[U](f : T => U) : Unit = set.foreach(f)
+
+  override def +=(t : T) : this.type = {
+    if (set.add(t)) elemHashSum += t.##
+    this
+  }
+  override def -=(t : T) : this.type = {
+    if (set.remove(t)) elemHashSum -= t.##
+    this
+  }
+  override def clear() : Unit = {
+    set.clear()
+    elemHashSum = 0
+  }
+
+  override def clone() : HashSumSet[T] = new HashSumSet[T](set.clone, elemHashSum)
+}
+
+object SharedSetTests extends UnitTests {
+  private def makeBoth : List[MSet[Int]] =
+    List(new SharedSet[Int](immutable.HashSet.empty[Int], 0), new HashSumSet[Int](Util.makeSet[Int], 0))
+
+  private def checkHashSum(s : MSet[Int]) : Unit = {
+    val expected = s.foldLeft (0) ((sum, e) => sum + e.##)
+    assert(SharedSet.elemHashSum(s) == expected, s"Hash sum ${SharedSet.elemHashSum(s)} of $s should be $expected")
+  }
+
+  override def tests : List[(String, () => Unit)] = List(
+    ("HashSum", () => makeBoth.foreach(s => {
+      // adding elements that are already there and removing ones that aren't must leave the sum alone
+      val rand = new Random(0)
+      (1 to 2000).foreach(_ => {
+        val e = rand.nextInt(100) - 50
+        if (rand.nextBoolean()) s += e else s -= e
+        checkHashSum(s)
+      })
+      s.clear()
+      checkHashSum(s)
+    })),
+    ("CloneIsIndependent", () => makeBoth.foreach(s => {
+      s ++= List(1, 2, 3)
+      val copy = s.clone()
+      copy += 4
+      copy -= 1
+      assert(s == Set(1, 2, 3), s"Original changed to $s")
+      assert(copy == Set(2, 3, 4), s"Clone is $copy")
+      s += 5
+      assert(copy == Set(2, 3, 4), s"Clone changed to $copy")
+      checkHashSum(s)
+      checkHashSum(copy)
+    })),
+    ("EqualAcrossRepresentations", () => {
+      val List(shared, hashSum) = makeBoth
+      List(7, -3, 12).foreach(e => { shared += e; hashSum += e })
+      assert(shared == hashSum && hashSum == shared, s"$shared and $hashSum should be equal")
+      assert(shared.hashCode == hashSum.hashCode, s"$shared and $hashSum should have the same hash code")
+      assert(SharedSet.elemHashSum(shared) == SharedSet.elemHashSum(mutable.HashSet(7, -3, 12)))
+    }),
+    ("UpdateWhileIterating", () => {
+      val shared = new SharedSet[Int](immutable.HashSet.empty[Int], 0)
+      shared ++= (1 to 100)
+      // iterators see the set as it was when they were created
+      shared.foreach(e => if (e % 2 == 0) shared -= e else shared += (e + 1000))
+      assert(shared.size == 100 && shared.forall(e => e % 2 == 1), s"Unexpected contents $shared")
+      checkHashSum(shared)
+    })
+  )
+}
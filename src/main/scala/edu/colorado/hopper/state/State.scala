@@ -1,5 +1,9 @@
 package edu.colorado.hopper.state
 
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
 import com.ibm.wala.analysis.reflection.InstanceKeyWithNode
 import com.ibm.wala.analysis.typeInference.TypeInference
 import com.ibm.wala.classLoader.IClass
@@ -8,9 +12,13 @@ import com.ibm.wala.ipa.callgraph.propagation.{HeapModel, InstanceKey, LocalPoin
 import com.ibm.wala.shrikeBT.{IBinaryOpInstruction, IConditionalBranchInstruction, IShiftInstruction, IUnaryOpInstruction}
 import com.ibm.wala.ssa.{SSAConditionalBranchInstruction, SymbolTable}
 import com.ibm.wala.types.TypeReference
+import edu.colorado.hopper.util.Region
 import edu.colorado.walautil.Types._
 import edu.colorado.walautil.{ClassUtil, Util}
 
+import scala.collection.JavaConversions
+import scala.collection.immutable.BitSet
+
 /**
  * Base components of analysis state--Val's and Var's
  */
@@ -40,9 +48,10 @@ sealed case class PureAtomicConstraint(val lhs : PureExpr, val op : CmpOp, val r
   override def getVars(s : Set[PureVar]) : Set[PureVar] = lhs.getVars(rhs.getVars(s))
   
   override def clone : PureConstraint = this
-  override def hashCode : Int = Util.makeHash(List(lhs, op, rhs))
+  override val hashCode : Int = Util.makeHash(List(lhs, op, rhs))
   override def equals(other : Any) : Boolean = other match {
-    case p : PureAtomicConstraint => this.lhs == p.lhs && this.op == p.op && this.rhs == p.rhs
+    case p : PureAtomicConstraint =>
+      (this eq p) || (this.hashCode == p.hashCode && this.lhs == p.lhs && this.op == p.op && this.rhs == p.rhs)
     case _ => false
   }
   override def toString : String = lhs.toString + " " + Pure.cmpOpToString(op) + " " + rhs.toString()
@@ -55,12 +64,13 @@ sealed case class PureDisjunctiveConstraint(val terms : Set[PureAtomicConstraint
   override def isFloatConstraint : Boolean = terms.exists(p => p.isFloatConstraint)
   override def isLongConstraint : Boolean = terms.exists(p => p.isLongConstraint)
   override def isDoubleConstraint : Boolean = terms.exists(p => p.isDoubleConstraint)
-  override def getVars(s : Set[PureVar]) : Set[PureVar] = terms.foldLeft (Set.empty[PureVar]) ((s, t) => t.getVars(s))
+  override def getVars(s : Set[PureVar]) : Set[PureVar] = terms.foldLeft (s) ((s, t) => t.getVars(s))
   
   override def clone : PureConstraint = this
-  override def hashCode : Int = Util.makeHash(terms.toList)
+  // order-independent, since equal term sets may iterate in different orders
+  override val hashCode : Int = terms.hashCode
   override def equals(other : Any) : Boolean = other match {
-    case p : PureDisjunctiveConstraint => this.terms == terms
+    case p : PureDisjunctiveConstraint => (this eq p) || (this.hashCode == p.hashCode && this.terms == p.terms)
     case _ => false
   }
   override def toString : String = Util.toCSVStr(terms, " V ")
@@ -89,7 +99,7 @@ sealed abstract class PureVal(val v : Any) extends PureExpr {
   override def isStringExpr : Boolean = this.isInstanceOf[StringVal]
   override def getVars(s : Set[PureVar] = Set.empty) : Set[PureVar] = s
   
-  override def hashCode : Int = Util.makeHash(List(v))
+  override def hashCode : Int = v.##
   override def equals(other : Any) : Boolean = other match {
     case p : PureVal => this.v == p.v
     case _ => false
@@ -157,7 +167,7 @@ sealed case class PureVar(val typ : TypeReference) extends PureExpr with Val {
 
   override def substitute(toSub : PureExpr, subFor : PureVar) : PureExpr = if (subFor == this) toSub else this
   
-  override def hashCode : Int = Util.makeHash(List(id))
+  override def hashCode : Int = id * Util.PRIME
   override def equals(other : Any) : Boolean = other match {
     case p : PureVar => this.id == p.id
     case _ => false
@@ -180,9 +190,10 @@ sealed case class PureBinExpr(lhs : PureExpr, op : BinOp, rhs : PureExpr) extend
     case IShiftInstruction.Operator.USHR => true
     case _ => false
   }
-  override def hashCode : Int = Util.makeHash(List(lhs, op, rhs))
+  override val hashCode : Int = Util.makeHash(List(lhs, op, rhs))
   override def equals(other : Any) : Boolean = other match {
-    case p : PureBinExpr => this.lhs == p.lhs && this.op == p.op && this.rhs == p.rhs
+    case p : PureBinExpr =>
+      (this eq p) || (this.hashCode == p.hashCode && this.lhs == p.lhs && this.op == p.op && this.rhs == p.rhs)
     case _ => false
   }
   override def toString : String = lhs.toString + " " + Pure.binOpToString(op) + " " + rhs.toString
@@ -226,7 +237,9 @@ sealed case class ClassVar(cls : IClass) extends HeapVar {
 case class ObjVar(rgn : Set[InstanceKey]) extends HeapVar with Val {
   require(!rgn.isEmpty, "Can't create ObjVar from empty region!")
   
-  val cantAlias : MSet[Int] = Util.makeSet
+  // concurrent because ObjVar's are shared between queries and paths that may be explored by different threads
+  val cantAlias : MSet[Int] =
+    JavaConversions.asScalaSet(Collections.newSetFromMap(new ConcurrentHashMap[Int,java.lang.Boolean]))
   
   val id = Var.getFreshObjId    
   
@@ -238,9 +251,25 @@ case class ObjVar(rgn : Set[InstanceKey]) extends HeapVar with Val {
   override def isArrayType : Boolean = rgn.exists(key => key.getConcreteType().isArrayClass())
   
   override def |=(other : Val) : Boolean = other match {
-    case o@ObjVar(oRgn) => rgn.subsetOf(oRgn)
+    case o@ObjVar(oRgn) => rgn.size <= oRgn.size && Region.subsetOf(words, o.words)
     case _ => false
   }
+
+  // rgn as a bitset, for fast subset and intersection checks
+  lazy val bits : BitSet = Region.toBits(rgn)
+  // the words of bits. subset and intersection checks on these don't allocate
+  private lazy val words : Array[Long] = bits.toBitMask
+
+  /** @return true if this and @param other have some instance key in common */
+  def intersects(other : ObjVar) : Boolean = Region.intersects(words, other.words)
+
+  /** @return the instance keys that this and @param other have in common */
+  def intersect(other : ObjVar) : Set[InstanceKey] = {
+    val inter = bits & other.bits
+    if (inter.size == rgn.size) rgn
+    else if (inter.size == other.rgn.size) other.rgn
+    else Region.toRgn(inter)
+  }
   
   override def hashCode : Int = id * Util.PRIME
 
@@ -256,10 +285,11 @@ case class ObjVar(rgn : Set[InstanceKey]) extends HeapVar with Val {
 }
 
 object Var {
-  private var objIdCounter = 0
-  def getFreshObjId : Int = { objIdCounter += 1; objIdCounter }
-  private var pureVarIdCounter = 0
-  def getFreshPureVarId : Int = { pureVarIdCounter += 1; pureVarIdCounter }
+  // atomic because parallel workers create vars concurrently. a duplicate id would make two distinct vars equal
+  private val objIdCounter = new AtomicInteger(0)
+  def getFreshObjId : Int = objIdCounter.incrementAndGet()
+  private val pureVarIdCounter = new AtomicInteger(0)
+  def getFreshPureVarId : Int = pureVarIdCounter.incrementAndGet()
   
   def makeLPK(valueNum : Int, n : CGNode, hm : HeapModel) : LocalPointerKey =
     hm.getPointerKeyForLocal(n, valueNum).asInstanceOf[LocalPointerKey]
@@ -358,21 +388,25 @@ object Pure {
     if (terms.size == 1) terms.head
     else PureDisjunctiveConstraint(terms)
   
+  // atomic constraints are interned, so equal constraints are usually the same object
+  def makeAtomicConstraint(op1 : PureExpr, op : CmpOp, op2 : PureExpr) : PureAtomicConstraint =
+    Interner.intern(PureAtomicConstraint(op1, op, op2))
+
   def makeEqConstraint(op1 : PureExpr, op2 : PureExpr) : PureAtomicConstraint = 
-    new PureAtomicConstraint(op1, IConditionalBranchInstruction.Operator.EQ, op2)
+    makeAtomicConstraint(op1, IConditionalBranchInstruction.Operator.EQ, op2)
   def makeNeConstraint(op1 : PureExpr, op2 : PureExpr) : PureAtomicConstraint = 
-    new PureAtomicConstraint(op1, IConditionalBranchInstruction.Operator.NE, op2)
+    makeAtomicConstraint(op1, IConditionalBranchInstruction.Operator.NE, op2)
   def makeEqBoolConstraint(op : PureExpr, b : Boolean) : PureAtomicConstraint = makeEqConstraint(op, IntVal(if (b) 1 else 0))
   def makeEqNullConstraint(op : PureVar) : PureAtomicConstraint = makeEqConstraint(op, Pure.NULL)
   def makeNeNullConstraint(op : PureVar) : PureAtomicConstraint = makeNeConstraint(op, Pure.NULL)
   def makeGtConstraint(op1 : PureExpr, op2 : PureExpr) : PureAtomicConstraint =
-    new PureAtomicConstraint(op1, IConditionalBranchInstruction.Operator.GT, op2)  
+    makeAtomicConstraint(op1, IConditionalBranchInstruction.Operator.GT, op2)  
   def makeGeConstraint(op1 : PureExpr, op2 : PureExpr) : PureAtomicConstraint =
-    new PureAtomicConstraint(op1, IConditionalBranchInstruction.Operator.GE, op2)  
+    makeAtomicConstraint(op1, IConditionalBranchInstruction.Operator.GE, op2)  
   def makeLtConstraint(op1 : PureExpr, op2 : PureExpr) : PureAtomicConstraint =
-    new PureAtomicConstraint(op1, IConditionalBranchInstruction.Operator.LT, op2)  
+    makeAtomicConstraint(op1, IConditionalBranchInstruction.Operator.LT, op2)  
   def makeLeConstraint(op1 : PureExpr, op2 : PureExpr) : PureAtomicConstraint =
-    new PureAtomicConstraint(op1, IConditionalBranchInstruction.Operator.LE, op2)
+    makeAtomicConstraint(op1, IConditionalBranchInstruction.Operator.LE, op2)
    
   def makeDefaultVal(typ : TypeReference) : PureVal = typ match {
     case TypeReference.Int => IntVal(0)
@@ -0,0 +1,221 @@
+package edu.colorado.hopper.util
+
+import com.ibm.wala.ipa.callgraph.{CGNode, CallGraph}
+import edu.colorado.hopper.client.UnitTests
+import edu.colorado.walautil.{ClassUtil, Timer}
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+import scala.util.Random
+
+object CGReachability {
+  // number of interval labelings to keep. each one rules out more unreachable pairs without a search
+  val NUM_LABELINGS = 2
+}
+
+/** Reachability index over @param cg, considering only the edges (caller, callee) for which @param keepEdge holds.
+  * answers "can src reach snk" without a traversal of the call graph in most cases, using linear memory. the index
+  * labels each strongly connected component of the call graph with intervals (as in GRAIL): each labeling is a
+  * post-order traversal of the condensed graph, and if src reaches snk, the interval of snk is contained in that of
+  * src. a failed containment check rules out reachability and a containment in the DFS tree of the first labeling
+  * proves it. the (rare) remaining cases fall back on a search of the condensed graph pruned by the same checks */
+class CGReachability(cg : CallGraph, keepEdge : (CGNode, CGNode) => Boolean = (_ : CGNode, _ : CGNode) => true) {
+  import CGReachability._
+
+  // SCC of each node, indexed by the number of the node in cg. SCC's are numbered in reverse topological order: if
+  // SCC c1 reaches a different SCC c2, then c1 > c2
+  private val scc = Array.fill(cg.getMaxNumber() + 1)(-1)
+  // successors of each SCC in the condensed graph
+  private val sccSuccs : Array[Array[Int]] = {
+    val timer = new Timer
+    timer.start()
+    val nodeSuccs = new Array[Array[Int]](scc.length)
+    cg.foreach(n => nodeSuccs(cg.getNumber(n)) =
+      cg.getSuccNodes(n).filter(succ => keepEdge(n, succ)).map(succ => cg.getNumber(succ)).toArray)
+    val numSccs = computeSccs(nodeSuccs)
+    val succs = Array.fill(numSccs)(new mutable.ArrayBuffer[Int])
+    nodeSuccs.indices.foreach(n => if (nodeSuccs(n) != null) nodeSuccs(n).foreach(succ =>
+      if (scc(n) != scc(succ)) succs(scc(n)) += scc(succ)
+    ))
+    timer.printTimeTaken(s"Computing $numSccs SCC's of ${cg.getNumberOfNodes()} call graph nodes")
+    succs.map(s => s.distinct.toArray)
+  }
+  // the intervals [lows(i)(c), posts(i)(c)] of each SCC c in each labeling i
+  private val (lows, posts) = (Array.ofDim[Int](NUM_LABELINGS, sccSuccs.length),
+                               Array.ofDim[Int](NUM_LABELINGS, sccSuccs.length))
+  // the post-order rank at which the DFS of the first labeling entered each SCC. the SCC's whose ranks lie between this
+  // and the post-order rank of c are the descendants of c in the DFS tree
+  private val treeStarts = new Array[Int](sccSuccs.length)
+
+  (0 until NUM_LABELINGS).foreach(i => label(i))
+
+  /** Tarjan's algorithm over @param nodeSuccs, without recursion so that deep call chains can't overflow the stack.
+    * fills in scc and @return the number of SCC's */
+  private def computeSccs(nodeSuccs : Array[Array[Int]]) : Int = {
+    val index = Array.fill(scc.length)(-1)
+    val lowlink = new Array[Int](scc.length)
+    val onStack = new Array[Boolean](scc.length)
+    val nextSucc = new Array[Int](scc.length)
+    val sccStack = new mutable.ArrayBuffer[Int]
+    val work = new mutable.ArrayBuffer[Int]
+    var nextIndex = 0
+    var numSccs = 0
+
+    def visit(n : Int) : Unit = {
+      index(n) = nextIndex
+      lowlink(n) = nextIndex
+      nextIndex += 1
+      sccStack += n
+      onStack(n) = true
+      work += n
+    }
+
+    nodeSuccs.indices.foreach(root => if (nodeSuccs(root) != null && index(root) == -1) {
+      visit(root)
+      while (!work.isEmpty) {
+        val n = work.last
+        if (nextSucc(n) < nodeSuccs(n).length) {
+          val succ = nodeSuccs(n)(nextSucc(n))
+          nextSucc(n) += 1
+          if (index(succ) == -1) visit(succ)
+          else if (onStack(succ)) lowlink(n) = math.min(lowlink(n), index(succ))
+        } else {
+          work.remove(work.size - 1)
+          if (!work.isEmpty) lowlink(work.last) = math.min(lowlink(work.last), lowlink(n))
+          if (lowlink(n) == index(n)) {
+            // n is the root of an SCC. everything above it on the stack belongs to the SCC
+            var m = -1
+            do {
+              m = sccStack.remove(sccStack.size - 1)
+              onStack(m) = false
+              scc(m) = numSccs
+            } while (m != n)
+            numSccs += 1
+          }
+        }
+      }
+    })
+    numSccs
+  }
+
+  /** compute labeling @param i by a post-order DFS of the condensed graph. each labeling visits roots and successors in
+    * a different order, so they rule out different pairs */
+  private def label(i : Int) : Unit = {
+    val (low, post) = (lows(i), posts(i))
+    val numSccs = sccSuccs.length
+    val visited = new Array[Boolean](numSccs)
+    val nextSucc = new Array[Int](numSccs)
+    val work = new mutable.ArrayBuffer[Int]
+    var rank = 0
+    // the ith successor of c to visit
+    def getSucc(c : Int, succNum : Int) : Int =
+      if (i % 2 == 0) sccSuccs(c)(succNum) else sccSuccs(c)(sccSuccs(c).length - 1 - succNum)
+
+    def visit(c : Int) : Unit = {
+      visited(c) = true
+      low(c) = Int.MaxValue
+      if (i == 0) treeStarts(c) = rank
+      work += c
+    }
+
+    // SCC's with high numbers are closest to the roots of the call graph
+    val roots = if (i % 2 == 0) (numSccs - 1 to 0 by -1) else (0 until numSccs)
+    roots.foreach(root => if (!visited(root)) {
+      visit(root)
+      while (!work.isEmpty) {
+        val c = work.last
+        if (nextSucc(c) < sccSuccs(c).length) {
+          val succ = getSucc(c, nextSucc(c))
+          nextSucc(c) += 1
+          // the condensed graph is acyclic, so a visited successor has already been labeled
+          if (!visited(succ)) visit(succ) else low(c) = math.min(low(c), low(succ))
+        } else {
+          work.remove(work.size - 1)
+          post(c) = rank
+          low(c) = math.min(low(c), rank)
+          rank += 1
+          if (!work.isEmpty) low(work.last) = math.min(low(work.last), low(c))
+        }
+      }
+    })
+  }
+
+  private def getScc(n : CGNode) : Int = {
+    val num = cg.getNumber(n)
+    if (num < 0 || num >= scc.length) -1 else scc(num)
+  }
+
+  /** @return false if SCC @param src cannot reach SCC @param snk according to the labels */
+  private def mayReach(src : Int, snk : Int) : Boolean =
+    src > snk && (0 until NUM_LABELINGS).forall(i => lows(i)(src) <= lows(i)(snk) && posts(i)(snk) <= posts(i)(src))
+
+  /** search the condensed graph from SCC @param src for SCC @param snk, skipping SCC's that the labels rule out */
+  private def search(src : Int, snk : Int) : Boolean = {
+    val visited = new mutable.BitSet
+    var work = List(src)
+    visited += src
+    var found = false
+    while (!found && !work.isEmpty) {
+      val c = work.head
+      work = work.tail
+      val succs = sccSuccs(c)
+      var j = 0
+      while (!found && j < succs.length) {
+        val succ = succs(j)
+        if (succ == snk) found = true
+        else if (!visited(succ) && mayReach(succ, snk)) {
+          visited += succ
+          work = succ :: work
+        }
+        j += 1
+      }
+    }
+    found
+  }
+
+  /** @return true if @param snk is reachable from @param src (every node is reachable from itself) */
+  def canReach(src : CGNode, snk : CGNode) : Boolean = {
+    val (srcScc, snkScc) = (getScc(src), getScc(snk))
+    if (srcScc == -1 || snkScc == -1) src == snk
+    else if (srcScc == snkScc) true
+    else if (treeStarts(srcScc) <= posts(0)(snkScc) && posts(0)(snkScc) <= posts(0)(srcScc)) true
+    else mayReach(srcScc, snkScc) && search(srcScc, snkScc)
+  }
+}
+
+object CGReachabilityTests extends UnitTests {
+  private lazy val cg = makeWalaRes("casts/HashtableEnumeratorRefute").cg
+
+  /** @return the nodes reachable from @param src along the edges for which @param keepEdge holds, by a plain search */
+  private def reachableFrom(src : CGNode, keepEdge : (CGNode, CGNode) => Boolean) : Set[CGNode] = {
+    val reached = mutable.Set(src)
+    var work = List(src)
+    while (!work.isEmpty) {
+      val n = work.head
+      work = work.tail
+      cg.getSuccNodes(n).foreach(succ => if (keepEdge(n, succ) && reached.add(succ)) work = succ :: work)
+    }
+    reached.toSet
+  }
+
+  /** compare the index with a search from each of a sample of the nodes of cg */
+  private def checkAgainstSearch(keepEdge : (CGNode, CGNode) => Boolean) : Unit = {
+    val index = new CGReachability(cg, keepEdge)
+    val nodes = cg.toIndexedSeq
+    val rand = new Random(0)
+    // the roots of the call graph, plus random nodes
+    val srcs = cg.getEntrypointNodes.toList ++ (1 to 100).map(_ => nodes(rand.nextInt(nodes.size)))
+    srcs.foreach(src => {
+      val reachable = reachableFrom(src, keepEdge)
+      nodes.foreach(snk => assert(index.canReach(src, snk) == reachable.contains(snk),
+                                  s"Index says $snk is ${if (reachable.contains(snk)) "not " else ""}reachable from $src"))
+    })
+  }
+
+  override def tests : List[(String, () => Unit)] = List(
+    ("AllEdges", () => checkAgainstSearch((_ : CGNode, _ : CGNode) => true)),
+    ("SomeEdges", () =>
+      // follow only the calls into application code, like the frontier index that AndroidUtil builds
+      checkAgainstSearch((_ : CGNode, callee : CGNode) => !ClassUtil.isLibrary(callee)))
+  )
+}
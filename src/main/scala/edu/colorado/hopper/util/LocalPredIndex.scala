@@ -0,0 +1,95 @@
+package edu.colorado.hopper.util
+
+import com.ibm.wala.analysis.pointers.HeapGraph
+import com.ibm.wala.ipa.callgraph.CGNode
+import com.ibm.wala.ipa.callgraph.propagation.{InstanceKey, LocalPointerKey}
+import edu.colorado.hopper.client.UnitTests
+import edu.colorado.walautil.Timer
+
+import scala.collection.JavaConversions._
+import scala.collection.immutable.BitSet
+import scala.collection.mutable
+import scala.util.Random
+
+/** Reverse points-to index over @param hg: for each instance key, the local pointer keys that may point to it and the
+  * methods those locals belong to. both are kept as bitsets, so the locals (or methods) that may point into a region are
+  * the union of a few bitsets rather than a walk over the heap graph predecessors of every key in the region. regions
+  * are given as bitsets in Region's numbering */
+class LocalPredIndex(hg : HeapGraph[InstanceKey]) {
+  // number of each local pointer key and method, and the key or method of each number
+  private val locals = new mutable.ArrayBuffer[LocalPointerKey]
+  private val nodes = new mutable.ArrayBuffer[CGNode]
+  // map from the number of an instance key to the locals that may point to it, and to their methods
+  private val (localsOf, nodesOf) : (Map[Int,BitSet], Map[Int,BitSet]) = {
+    val timer = new Timer
+    timer.start()
+    val nodeNums = mutable.Map.empty[CGNode,Int]
+    val keyLocals = mutable.Map.empty[Int,mutable.BitSet]
+    val keyNodes = mutable.Map.empty[Int,mutable.BitSet]
+    hg.foreach(k => k match {
+      case l : LocalPointerKey =>
+        val localNum = locals.size
+        locals += l
+        val nodeNum = nodeNums.getOrElseUpdate(l.getNode, {
+          nodes += l.getNode
+          nodes.size - 1
+        })
+        hg.getSuccNodes(l).foreach(k => k match {
+          case k : InstanceKey =>
+            val keyNum = Region.getNumber(k)
+            keyLocals.getOrElseUpdate(keyNum, new mutable.BitSet) += localNum
+            keyNodes.getOrElseUpdate(keyNum, new mutable.BitSet) += nodeNum
+          case _ => ()
+        })
+      case _ => ()
+    })
+    timer.printTimeTaken(s"Indexing ${locals.size} locals by the instance keys they point to")
+    (keyLocals.mapValues(bits => bits.toImmutable).toMap, keyNodes.mapValues(bits => bits.toImmutable).toMap)
+  }
+
+  private def union(rgn : BitSet, m : Map[Int,BitSet]) : BitSet =
+    rgn.foldLeft (BitSet.empty) ((bits, k) => m.get(k) match {
+      case Some(kBits) => bits | kBits
+      case None => bits
+    })
+
+  /** @return the locals that may point into @param rgn, as a bitset */
+  def getLocalPredBits(rgn : BitSet) : BitSet = union(rgn, localsOf)
+
+  /** @return the methods holding a local that may point into @param rgn, as a bitset */
+  def getLocalPredNodeBits(rgn : BitSet) : BitSet = union(rgn, nodesOf)
+
+  def toLocals(bits : BitSet) : Set[LocalPointerKey] =
+    bits.foldLeft (Set.empty[LocalPointerKey]) ((s, i) => s + locals(i))
+
+  def toNodes(bits : BitSet) : Set[CGNode] = bits.foldLeft (Set.empty[CGNode]) ((s, i) => s + nodes(i))
+
+  /** @return the locals that may point into @param rgn */
+  def getLocalPreds(rgn : BitSet) : Set[LocalPointerKey] = toLocals(getLocalPredBits(rgn))
+
+  /** @return the methods holding a local that may point into @param rgn */
+  def getLocalPredNodes(rgn : BitSet) : Set[CGNode] = toNodes(getLocalPredNodeBits(rgn))
+}
+
+object LocalPredIndexTests extends UnitTests {
+  override def tests : List[(String, () => Unit)] = List(
+    ("MatchesHeapGraph", () => {
+      // compare the index with the predecessors of each region in the heap graph
+      val hg = makeWalaRes("casts/HashtableEnumeratorRefute").hg
+      val index = new LocalPredIndex(hg)
+      def localPreds(k : InstanceKey) : Set[LocalPointerKey] =
+        hg.getPredNodes(k).collect({ case l : LocalPointerKey => l }).toSet
+      val keys = hg.collect({ case k : InstanceKey => k }).toIndexedSeq
+      assert(!keys.isEmpty, "Expected the heap graph to have instance keys")
+      val rand = new Random(0)
+      val rgns = keys.map(k => Set(k)) ++ (1 to 200).map(_ => (1 to 1 + rand.nextInt(8)).map(_ =>
+        keys(rand.nextInt(keys.size))).toSet)
+      rgns.foreach(rgn => {
+        val preds = rgn.flatMap(k => localPreds(k))
+        val bits = Region.toBits(rgn)
+        assert(index.getLocalPreds(bits) == preds, s"Wrong locals for $rgn")
+        assert(index.getLocalPredNodes(bits) == preds.map(l => l.getNode), s"Wrong methods for $rgn")
+      })
+    })
+  )
+}
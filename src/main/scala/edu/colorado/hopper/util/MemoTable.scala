@@ -0,0 +1,38 @@
+package edu.colorado.hopper.util
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/** Thread-safe memo table for facts that depend only on the program (and so never need to be invalidated). two threads
+  * that miss on the same key at the same time may both compute the fact, but they agree on the value that is kept
+  * @param name - name of the fact, for printing statistics
+  * @param maxSize - number of facts after which we stop memoizing new ones. for tables whose keys are unlikely to
+  * repeat, this keeps the table from growing with every query */
+class MemoTable[K,V](val name : String, val maxSize : Int = Int.MaxValue) {
+  private val table = new ConcurrentHashMap[K,V]
+  private val hits = new AtomicLong
+  private val misses = new AtomicLong
+
+  /** @return the value memoized for @param k, computing it with @param compute on a miss */
+  def getOrElseUpdate(k : K, compute : => V) : V = {
+    val memoized = table.get(k)
+    if (memoized != null) {
+      hits.incrementAndGet()
+      memoized
+    } else {
+      // don't block other threads while computing the fact
+      val v = compute
+      misses.incrementAndGet()
+      if (table.size >= maxSize) v
+      else {
+        val old = table.putIfAbsent(k, v)
+        if (old == null) v else old
+      }
+    }
+  }
+
+  def size : Int = table.size()
+
+  def printStats() : Unit =
+    println(s"$name: ${hits.get} hits, ${misses.get} misses, ${table.size} facts")
+}
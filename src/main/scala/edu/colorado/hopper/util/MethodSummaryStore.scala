@@ -0,0 +1,195 @@
+package edu.colorado.hopper.util
+
+import java.io.{File, PrintWriter}
+import java.nio.file.{AtomicMoveNotSupportedException, Files, StandardCopyOption}
+import java.security.MessageDigest
+
+import com.ibm.wala.classLoader.IBytecodeMethod
+import com.ibm.wala.ipa.callgraph.{CGNode, CallGraph}
+import com.ibm.wala.ssa.{SSAArrayStoreInstruction, SSAPutInstruction}
+import edu.colorado.walautil.Timer
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+import scala.io.Source
+
+/** facts about the heap effects of a method and all of its transitive callees
+  * @param writtenFields - names of the (instance or static) fields that may be written
+  * @param writesArrays - true if an array element may be written
+  * @param initClasses - names of the classes whose constructors may run */
+case class MethodSummary(writtenFields : Set[String], writesArrays : Boolean, initClasses : Set[String]) {
+  def ++(other : MethodSummary) : MethodSummary =
+    MethodSummary(writtenFields ++ other.writtenFields, writesArrays || other.writesArrays,
+                  initClasses ++ other.initClasses)
+}
+
+object MethodSummaryStore {
+  private val EMPTY = MethodSummary(Set.empty[String], writesArrays = false, Set.empty[String])
+
+  private def sha1(s : String) : String =
+    MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8")).map(b => "%02x".format(b)).mkString
+
+  /** @return the summaries for the nodes of @param cg, reusing the ones stored in @param file (if it exists) and
+    * writing all of them back to it */
+  def make(cg : CallGraph, file : File) : MethodSummaryStore = {
+    val store = new MethodSummaryStore(cg, if (file.exists()) load(file) else Map.empty[String,MethodSummary])
+    store.save(file)
+    store
+  }
+
+  // format: one summary per line, as hash \t writesArrays \t comma-separated fields \t comma-separated classes
+  private def load(file : File) : Map[String,MethodSummary] = {
+    def splitSet(s : String) : Set[String] = s.split(",").filter(s => !s.isEmpty).toSet
+    val src = Source.fromFile(file)
+    try
+      src.getLines().foldLeft (Map.empty[String,MethodSummary]) ((m, line) => line.split("\t", -1) match {
+        case Array(key, writesArrays, flds, classes) =>
+          m + (key -> MethodSummary(splitSet(flds), writesArrays.toBoolean, splitSet(classes)))
+        case _ => m // corrupt line; we'll just recompute the summary
+      })
+    finally src.close()
+  }
+}
+
+/** Summaries of the heap effects of each method in @param cg. each strongly connected component of the call graph is
+  * keyed by a hash of the bytecode of its methods and the keys of the components it calls, so a summary computed in
+  * an earlier run is reused only if neither the methods nor anything they (transitively) call has changed.
+  * @param stored - summaries from earlier runs, by key */
+class MethodSummaryStore(cg : CallGraph, stored : Map[String,MethodSummary]) {
+  import MethodSummaryStore._
+
+  private var hits = 0
+  private var misses = 0
+  // key and summary of each component, in the order we computed them
+  private val computed = new mutable.LinkedHashMap[String,MethodSummary]
+  private val summaries : Map[CGNode,MethodSummary] = {
+    val timer = new Timer
+    timer.start()
+    val (sccOf, sccs) = computeSCCs()
+    val init = (Map.empty[Int,String], Map.empty[CGNode,MethodSummary])
+    val (_, summaries) = sccs.zipWithIndex.foldLeft (init) ((pair, sccPair) => {
+      val (keys, summaries) = pair
+      val (scc, sccNum) = sccPair
+      val callees = scc.flatMap(n => cg.getSuccNodes(n).toList).map(n => sccOf(n)).distinct.filter(i => i != sccNum)
+      // callees precede their callers in sccs, so their keys and summaries are already computed
+      val key = sha1((scc.map(n => getMethodContents(n)).sorted ++ callees.map(i => keys(i)).sorted).mkString("\n"))
+      val summary = stored.get(key) match {
+        case Some(summary) =>
+          hits += 1
+          summary
+        case None =>
+          misses += 1
+          val calleeSummaries = callees.map(i => summaries(sccs(i).head))
+          (scc.map(n => getOwnSummary(n)) ++ calleeSummaries).foldLeft (EMPTY) ((s1, s2) => s1 ++ s2)
+      }
+      computed.put(key, summary)
+      (keys + (sccNum -> key), scc.foldLeft (summaries) ((summaries, n) => summaries + (n -> summary)))
+    })
+    timer.printTimeTaken(s"Computing method summaries ($hits reused, $misses computed)")
+    summaries
+  }
+
+  /** @return the summary of @param n and its transitive callees, if we have one */
+  def get(n : CGNode) : Option[MethodSummary] = summaries.get(n)
+
+  /** write the summaries for the current call graph to @param file, replacing its contents. we write to a temporary
+    * file next to @param file and rename it, so a run that is killed midway or a concurrent run never leaves a
+    * truncated store behind */
+  def save(file : File) : Unit = {
+    val dir = file.getAbsoluteFile.getParentFile
+    val tmp = File.createTempFile(file.getName, ".tmp", dir)
+    try {
+      val writer = new PrintWriter(tmp)
+      try computed.foreach(pair => {
+        val (key, s) = pair
+        writer.println(s"$key\t${s.writesArrays}\t${s.writtenFields.mkString(",")}\t${s.initClasses.mkString(",")}")
+      })
+      finally writer.close()
+      try Files.move(tmp.toPath, file.toPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+      catch {
+        case e : AtomicMoveNotSupportedException =>
+          Files.move(tmp.toPath, file.toPath, StandardCopyOption.REPLACE_EXISTING)
+      }
+    } finally Files.deleteIfExists(tmp.toPath)
+  }
+
+  // the bytecode of n's method, or its IR if it has no bytecode (e.g., synthetic methods)
+  private def getMethodContents(n : CGNode) : String = {
+    val m = n.getMethod
+    val body = m match {
+      case m : IBytecodeMethod if m.getInstructions != null => m.getInstructions.mkString(" ")
+      case _ => n.getIR match {
+        case null => ""
+        case ir => ir.toString
+      }
+    }
+    m.getSignature + " " + body
+  }
+
+  // heap effects of the instructions of n alone
+  private def getOwnSummary(n : CGNode) : MethodSummary = {
+    val initClasses =
+      if (n.getMethod.isInit) Set(n.getMethod.getDeclaringClass.getName.toString) else Set.empty[String]
+    val summary = MethodSummary(Set.empty[String], writesArrays = false, initClasses)
+    n.getIR match {
+      case null => summary
+      case ir =>
+        ir.iterateAllInstructions().foldLeft (summary) ((s, i) =>
+          i match {
+            case i : SSAPutInstruction => s.copy(writtenFields = s.writtenFields + i.getDeclaredField.getName.toString)
+            case i : SSAArrayStoreInstruction => s.copy(writesArrays = true)
+            case _ => s
+          })
+    }
+  }
+
+  /** Tarjan's algorithm, with an explicit stack since call chains can be deep. @return a map from node to the index of
+    * its strongly connected component and the components, ordered so that callees come before their callers */
+  private def computeSCCs() : (Map[CGNode,Int], IndexedSeq[List[CGNode]]) = {
+    val index = mutable.Map.empty[CGNode,Int]
+    val lowlink = mutable.Map.empty[CGNode,Int]
+    val onStack = mutable.Set.empty[CGNode]
+    val stack = mutable.Stack.empty[CGNode]
+    val sccs = new mutable.ArrayBuffer[List[CGNode]]
+
+    cg.foreach(root => if (!index.contains(root)) {
+      val work = mutable.Stack.empty[(CGNode, Iterator[CGNode])]
+      def visit(n : CGNode) : Unit = {
+        index.put(n, index.size)
+        lowlink.put(n, index(n))
+        stack.push(n)
+        onStack += n
+        work.push((n, cg.getSuccNodes(n).toList.iterator))
+      }
+
+      visit(root)
+      while (!work.isEmpty) {
+        val (n, succs) = work.top
+        if (succs.hasNext) {
+          val succ = succs.next()
+          if (!index.contains(succ)) visit(succ)
+          else if (onStack.contains(succ)) lowlink.put(n, math.min(lowlink(n), index(succ)))
+        } else {
+          work.pop()
+          if (!work.isEmpty) {
+            val parent = work.top._1
+            lowlink.put(parent, math.min(lowlink(parent), lowlink(n)))
+          }
+          if (lowlink(n) == index(n)) {
+            var scc = List.empty[CGNode]
+            var m : CGNode = null
+            do {
+              m = stack.pop()
+              onStack -= m
+              scc = m :: scc
+            } while (m != n)
+            sccs += scc
+          }
+        }
+      }
+    })
+    val sccOf = sccs.zipWithIndex.foldLeft (Map.empty[CGNode,Int]) ((m, pair) =>
+      pair._1.foldLeft (m) ((m, n) => m + (n -> pair._2)))
+    (sccOf, sccs)
+  }
+}
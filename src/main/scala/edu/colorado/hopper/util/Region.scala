@@ -0,0 +1,136 @@
+package edu.colorado.hopper.util
+
+import java.util.concurrent.{Callable, ConcurrentHashMap, Executors}
+
+import com.ibm.wala.classLoader.{IClass, NewSiteReference}
+import com.ibm.wala.ipa.callgraph.propagation.InstanceKey
+import com.ibm.wala.ipa.callgraph.{CGNode, CallGraph}
+import com.ibm.wala.util.collections.Pair
+import edu.colorado.hopper.client.UnitTests
+import edu.colorado.hopper.state.ObjVar
+
+import scala.collection.immutable.BitSet
+import scala.util.Random
+
+/** Compact representation of abstract regions (sets of instance keys) as bitsets over a numbering of the keys.
+  * subset and intersection checks on bitsets compare a word of keys at a time rather than hashing each key, which
+  * matters for the regions of large apps that hold hundreds of keys. the numbering covers the keys of a single analysis;
+  * clients call reset whenever they build a new call graph and heap graph, so that the numbers stay dense and we don't
+  * hold on to the keys of programs we are done with */
+object Region {
+  @volatile private var numbering = new Numbering
+
+  /** start a fresh numbering. call before creating the ObjVar's or indices of a new analysis */
+  def reset() : Unit = numbering = new Numbering
+
+  /** @return the number of @param k, i.e., its index in the bitset representation of a region */
+  def getNumber(k : InstanceKey) : Int = numbering.getNumber(k)
+
+  /** @return the bitset representation of @param rgn */
+  def toBits(rgn : Set[InstanceKey]) : BitSet = {
+    val numbering = this.numbering
+    rgn.foldLeft (BitSet.empty) ((bits, k) => bits + numbering.getNumber(k))
+  }
+
+  /** @return the region represented by @param bits */
+  def toRgn(bits : BitSet) : Set[InstanceKey] = {
+    val numbering = this.numbering
+    bits.foldLeft (Set.empty[InstanceKey]) ((rgn, i) => rgn + numbering.getKey(i))
+  }
+
+  /** @return true if the bitsets whose words are @param words1 and @param words2 have some bit in common */
+  def intersects(words1 : Array[Long], words2 : Array[Long]) : Boolean = {
+    var i = math.min(words1.length, words2.length) - 1
+    while (i >= 0 && (words1(i) & words2(i)) == 0) i -= 1
+    i >= 0
+  }
+
+  /** @return true if every bit of the bitset whose words are @param words1 is also in the one whose words are
+    * @param words2 */
+  def subsetOf(words1 : Array[Long], words2 : Array[Long]) : Boolean = {
+    var i = words1.length - 1
+    while (i >= 0 && (words1(i) & ~(if (i < words2.length) words2(i) else 0L)) == 0) i -= 1
+    i < 0
+  }
+
+  /** numbers keys in the order in which we first see them. lookups of keys that already have a number don't lock */
+  private class Numbering {
+    private val numbers = new ConcurrentHashMap[InstanceKey,Integer]
+    private val keys = new ConcurrentHashMap[Integer,InstanceKey]
+
+    def getNumber(k : InstanceKey) : Int = numbers.get(k) match {
+      case null => synchronized {
+        numbers.get(k) match {
+          case null =>
+            val num = keys.size
+            // publish the key before the number so that anyone who sees the number can look up the key
+            keys.put(num, k)
+            numbers.put(k, num)
+            num
+          case num => num
+        }
+      }
+      case num => num
+    }
+
+    def getKey(num : Int) : InstanceKey = keys.get(num)
+  }
+}
+
+object RegionTests extends UnitTests {
+  private def makeKey(name : String) : InstanceKey = new InstanceKey {
+    override def getConcreteType : IClass = null
+    override def getCreationSites(cg : CallGraph) : java.util.Iterator[Pair[CGNode,NewSiteReference]] = null
+    override def toString : String = name
+  }
+
+  // more keys than fit in one word, so that the bitsets of the regions have different lengths
+  private lazy val keys = (0 until 200).map(i => makeKey("k" + i))
+
+  private def randomRgn(rand : Random) : Set[InstanceKey] = {
+    val size = 1 + rand.nextInt(10)
+    (1 to size).foldLeft (Set.empty[InstanceKey]) ((rgn, _) => rgn + keys(rand.nextInt(keys.size)))
+  }
+
+  override def tests : List[(String, () => Unit)] = List(
+    ("Reset", () => {
+      Region.reset()
+      val (k1, k2) = (makeKey("fresh1"), makeKey("fresh2"))
+      assert(Region.getNumber(k1) == 0 && Region.getNumber(k2) == 1 && Region.getNumber(k1) == 0,
+             "Numbers should be dense and start from 0 after a reset")
+    }),
+    ("SetOperations", () => {
+      // compare the bitset operations against the same operations on the sets of keys
+      val rand = new Random(0)
+      (1 to 1000).foreach(_ => {
+        val (rgn1, rgn2) = (randomRgn(rand), randomRgn(rand))
+        val (o1, o2) = (ObjVar(rgn1), ObjVar(rgn2))
+        assert(Region.toRgn(Region.toBits(rgn1)) == rgn1, s"$rgn1 doesn't survive the trip to a bitset and back")
+        assert(o1.intersects(o2) == !rgn1.intersect(rgn2).isEmpty, s"Wrong intersection check for $rgn1 and $rgn2")
+        assert(o1.intersect(o2) == rgn1.intersect(rgn2), s"Wrong intersection of $rgn1 and $rgn2")
+        assert((o1 |= o2) == rgn1.subsetOf(rgn2), s"Wrong subset check for $rgn1 and $rgn2")
+      })
+    }),
+    ("DifferentLengths", () => {
+      val (short, long) = (Array(5L), Array(4L, 1L))
+      assert(Region.intersects(short, long) && Region.intersects(long, short))
+      assert(!Region.subsetOf(short, long) && !Region.subsetOf(long, short))
+      assert(Region.subsetOf(Array(4L), long) && !Region.intersects(Array(0L, 0L, 2L), long))
+      assert(Region.subsetOf(Array(4L, 0L, 0L), long) && Region.subsetOf(Array.empty[Long], short))
+    }),
+    ("ConcurrentNumbering", () => {
+      // threads that number the same keys in different orders must agree, and the numbers must stay dense
+      Region.reset()
+      val numThreads = 8
+      val pool = Executors.newFixedThreadPool(numThreads)
+      try {
+        val results = (1 to numThreads).map(i => pool.submit(new Callable[Map[InstanceKey,Int]] {
+          override def call() : Map[InstanceKey,Int] =
+            new Random(i).shuffle(keys).foldLeft (Map.empty[InstanceKey,Int]) ((m, k) => m + (k -> Region.getNumber(k)))
+        })).map(f => f.get())
+        results.foreach(res => assert(res == results.head, "Threads disagree on the numbering"))
+        assert(results.head.values.toSet == (0 until keys.size).toSet, "Numbers should be dense")
+      } finally pool.shutdown()
+    })
+  )
+}
@@ -0,0 +1,22 @@
+package bounds.SwitchCasesOverflow;
+public class SwitchCasesOverflow {
+
+    public static void main(String[] args) {
+	int[] buf = new int[3];
+	int i;
+	// the two case groups give sibling paths the disjunctions i == 1 V i == 2 and i == 3 V i == 4. the first is
+	// refuted; what we learn from it must not refute the second
+	switch (args.length) {
+	case 1: case 2:
+	    i = args.length;
+	    break;
+	case 3: case 4:
+	    i = args.length;
+	    break;
+	default:
+	    i = 0;
+	}
+	buf[i] = 7;
+    }
+
+}